@@ -2,6 +2,7 @@ package minimetro;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Point;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.ConcurrentModificationException;
@@ -25,6 +26,14 @@ public class AStarSolver {
 
     private int nbStepsMax = 50;
 
+    // The search stays within this distance of the box around start and end, in squares,
+    // and gives up after exploring that many squares.
+    private static final int SEARCH_MARGIN = 2 * ChunkMatrix.CHUNK_SIZE;
+    private static final int MAX_NB_EXPLORED_SQUARES = 30000;
+    // Copy of the buildable squares of the search area, made on the thread of the GUI
+    // so that the search never reads the chunks of the world.
+    private LongHashMap<boolean[]> buildableSquares;
+
     private static double TURN_COST = 5.0;
     private static double HORIZ_VERTIC_COST = 1;
     private static double DIAGONAL_COST = 1.5;
@@ -65,11 +74,27 @@ public class AStarSolver {
         start.gScore = 0;
         start.hScore = 0;
         openList.add(start);
+        copyTerrain();
     }
 
     public void setEnd(int row, int col) {
         System.out.println("solver.setEnd(" + row + ", " + col + ")");
         end = new PathPoint(col, row, null);
+        copyTerrain();
+    }
+
+    /**
+     * Copy the terrain around start and end; called each time one of them
+     * changes.
+     */
+    private void copyTerrain() {
+        if (start == null || end == null) {
+            buildableSquares = null;
+            return;
+        }
+        buildableSquares = world.getBuildableSquares(
+                Math.min(start.y, end.y) - SEARCH_MARGIN, Math.max(start.y, end.y) + SEARCH_MARGIN,
+                Math.min(start.x, end.x) - SEARCH_MARGIN, Math.max(start.x, end.x) + SEARCH_MARGIN);
     }
 
     public void reset() {
@@ -78,12 +103,14 @@ public class AStarSolver {
         finalPath.clear();
         openList.add(start);
         isEndReached = false;
+        copyTerrain();
     }
 
     public void fullReset() {
         reset();
         start = null;
         end = null;
+        buildableSquares = null;
         openList.clear();
     }
 
@@ -216,6 +243,10 @@ public class AStarSolver {
         if (openList.isEmpty()) {
             return -1; // No solution.
         }
+        if (closedList.size() >= MAX_NB_EXPLORED_SQUARES) {
+            System.out.println("A*: no solution found within " + MAX_NB_EXPLORED_SQUARES + " squares.");
+            return -1;
+        }
 
         // Get the lowest f-score node
         PathPoint currentNode = openList.remove(0);
@@ -270,8 +301,8 @@ public class AStarSolver {
 
         ArrayList<PathPoint> neighbors = new ArrayList<>();
         // Request the available neighbors from the terrain, i.e. the cells where rails can be built.
-        for (Cell c : world.getAvailableNeighbors(currentNode.y, currentNode.x)) {
-            neighbors.add(new PathPoint(c.col, c.row, currentNode));
+        for (Point p : World.getAvailableNeighbors(buildableSquares, currentNode.y, currentNode.x)) {
+            neighbors.add(new PathPoint(p.x, p.y, currentNode));
         }
 
         return neighbors;
@@ -0,0 +1,185 @@
+package minimetro;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The set of cells that must be updated during each step.
+ *
+ * Each cell remembers its own position in the set, which gives membership
+ * test, insertion and removal in constant time. Removal moves the last cell
+ * into the hole, so the order is only restored by sortIfNeeded(), which sorts
+ * the cells by chunk, then by row and column, so that neighbouring cells are
+ * processed together.
+ *
+ * @author arthu
+ */
+public class ActiveCellSet implements Iterable<Cell> {
+
+    private static final Comparator<Cell> CHUNK_ORDER = new Comparator<Cell>() {
+        @Override
+        public int compare(Cell c0, Cell c1) {
+            int result = Integer.compare(Math.floorDiv(c0.getRow(), ChunkMatrix.CHUNK_SIZE),
+                    Math.floorDiv(c1.getRow(), ChunkMatrix.CHUNK_SIZE));
+            if (result == 0) {
+                result = Integer.compare(Math.floorDiv(c0.getCol(), ChunkMatrix.CHUNK_SIZE),
+                        Math.floorDiv(c1.getCol(), ChunkMatrix.CHUNK_SIZE));
+            }
+            if (result == 0) {
+                result = Integer.compare(c0.getRow(), c1.getRow());
+            }
+            if (result == 0) {
+                result = Integer.compare(c0.getCol(), c1.getCol());
+            }
+            return result;
+        }
+    };
+
+    private Cell cells[];
+    private int size;
+    private boolean isSorted;
+
+    public ActiveCellSet() {
+        cells = new Cell[64];
+        size = 0;
+        isSorted = true;
+    }
+
+    /**
+     * Add a cell if it is not in the set yet.
+     *
+     * @param c
+     * @return true when the cell was added
+     */
+    protected boolean add(Cell c) {
+        if (c == null || contains(c)) {
+            return false;
+        }
+        if (size == cells.length) {
+            cells = Arrays.copyOf(cells, 2 * size);
+        }
+        cells[size] = c;
+        c.activeSetIndex = size;
+        if (size > 0 && CHUNK_ORDER.compare(cells[size - 1], c) > 0) {
+            isSorted = false;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Remove a cell from the set.
+     *
+     * @param c
+     * @return true when the cell was in the set
+     */
+    protected boolean remove(Cell c) {
+        if (!contains(c)) {
+            return false;
+        }
+        removeAt(c.activeSetIndex);
+        return true;
+    }
+
+    private void removeAt(int index) {
+        Cell removed = cells[index];
+        size--;
+        if (index != size) {
+            cells[index] = cells[size];
+            cells[index].activeSetIndex = index;
+            isSorted = false;
+        }
+        cells[size] = null;
+        removed.activeSetIndex = -1;
+    }
+
+    protected boolean contains(Cell c) {
+        if (c == null) {
+            return false;
+        }
+        int index = c.activeSetIndex;
+        return index >= 0 && index < size && cells[index] == c;
+    }
+
+    protected int size() {
+        return size;
+    }
+
+    protected boolean isEmpty() {
+        return size == 0;
+    }
+
+    protected Cell get(int index) {
+        return cells[index];
+    }
+
+    /**
+     * Direct access to the cells, for the parallel steps.
+     * Only the first size() entries are valid.
+     */
+    protected Cell[] getArray() {
+        return cells;
+    }
+
+    protected void clear() {
+        for (int index = 0; index < size; index++) {
+            cells[index].activeSetIndex = -1;
+            cells[index] = null;
+        }
+        size = 0;
+        isSorted = true;
+    }
+
+    /**
+     * Restore the chunk order if cells were added or removed since the last
+     * sort. The set is usually almost sorted, which makes this cheap.
+     */
+    protected void sortIfNeeded() {
+        if (!isSorted) {
+            Arrays.sort(cells, 0, size, CHUNK_ORDER);
+            for (int index = 0; index < size; index++) {
+                cells[index].activeSetIndex = index;
+            }
+            isSorted = true;
+        }
+    }
+
+    /**
+     * Iterate over the cells. Removing through the iterator is allowed; the
+     * cell moved into the hole is then visited next.
+     */
+    @Override
+    public Iterator<Cell> iterator() {
+        return new Iterator<Cell>() {
+            private int cursor = 0;
+            private boolean canRemove = false;
+
+            @Override
+            public boolean hasNext() {
+                return cursor < size;
+            }
+
+            @Override
+            public Cell next() {
+                if (cursor >= size) {
+                    throw new NoSuchElementException();
+                }
+                canRemove = true;
+                cursor++;
+                return cells[cursor - 1];
+            }
+
+            @Override
+            public void remove() {
+                if (!canRemove) {
+                    throw new IllegalStateException();
+                }
+                canRemove = false;
+                cursor--;
+                removeAt(cursor);
+            }
+        };
+    }
+}
@@ -2,6 +2,7 @@ package minimetro;
 
 import java.awt.Point;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Generates terrain with Perlin noise and biomes.
@@ -19,9 +20,19 @@ public class BiomePerlinNoise extends PerlinNoise {
     private int nbBiomes = 500;
     private int maxDistance = 5;
 
+    // Uniform grid of buckets over the bounding box of the centers, built once.
+    // The indices of the centers of bucket b are in bucketContent, from
+    // bucketStart[b] to bucketStart[b + 1] excluded.
+    private int centerX[], centerY[];
+    private double gridX0, gridY0, bucketSize;
+    private int nbBucketRows, nbBucketCols;
+    private int bucketStart[];
+    private int bucketContent[];
+
     public BiomePerlinNoise(double initLargestSpatialPeriod, long seed) {
         super(initLargestSpatialPeriod, seed);
         initBiomeCenters();
+        initBuckets();
         System.out.println("Constructing BiomePerlinNoise "
                 + "with period " + initLargestSpatialPeriod
                 + " and seed " + seed);
@@ -55,31 +66,190 @@ public class BiomePerlinNoise extends PerlinNoise {
         }
     }
 
+    /**
+     * Sort the centers into a grid of square buckets, about two centers per
+     * bucket.
+     */
+    private void initBuckets() {
+        int nbCenters = biomeCenters.size();
+        centerX = new int[nbCenters];
+        centerY = new int[nbCenters];
+        int xMin = Integer.MAX_VALUE, xMax = Integer.MIN_VALUE;
+        int yMin = Integer.MAX_VALUE, yMax = Integer.MIN_VALUE;
+        for (int i = 0; i < nbCenters; i++) {
+            centerX[i] = biomeCenters.get(i).x;
+            centerY[i] = biomeCenters.get(i).y;
+            xMin = Math.min(xMin, centerX[i]);
+            xMax = Math.max(xMax, centerX[i]);
+            yMin = Math.min(yMin, centerY[i]);
+            yMax = Math.max(yMax, centerY[i]);
+        }
+        double width = Math.max(1, xMax - xMin);
+        double height = Math.max(1, yMax - yMin);
+        bucketSize = Math.max(1, Math.sqrt(2 * width * height / Math.max(1, nbCenters)));
+        gridX0 = xMin;
+        gridY0 = yMin;
+        nbBucketCols = (int) (width / bucketSize) + 1;
+        nbBucketRows = (int) (height / bucketSize) + 1;
+
+        int nbBuckets = nbBucketRows * nbBucketCols;
+        int bucketOf[] = new int[nbCenters];
+        bucketStart = new int[nbBuckets + 1];
+        for (int i = 0; i < nbCenters; i++) {
+            bucketOf[i] = getBucketRow(centerY[i]) * nbBucketCols + getBucketCol(centerX[i]);
+            bucketStart[bucketOf[i] + 1]++;
+        }
+        for (int b = 0; b < nbBuckets; b++) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        bucketContent = new int[nbCenters];
+        int nextInBucket[] = new int[nbBuckets];
+        for (int i = 0; i < nbCenters; i++) {
+            int b = bucketOf[i];
+            bucketContent[bucketStart[b] + nextInBucket[b]] = i;
+            nextInBucket[b]++;
+        }
+    }
+
+    /**
+     * Column of the bucket that contains x, or of the closest bucket when x is
+     * outside of the grid.
+     */
+    private int getBucketCol(double x) {
+        return Math.max(0, Math.min(nbBucketCols - 1, (int) Math.floor((x - gridX0) / bucketSize)));
+    }
+
+    private int getBucketRow(double y) {
+        return Math.max(0, Math.min(nbBucketRows - 1, (int) Math.floor((y - gridY0) / bucketSize)));
+    }
+
     /**
      * Find which biome the point (x, y) belongs to.
      *
+     * The buckets are visited in square rings around the bucket of the point;
+     * the search stops when the next ring cannot contain a closer center.
+     *
      * @param x
      * @param y
      * @return
      */
     protected int getBiome(double x, double y) {
-        double minDistance = Double.MAX_VALUE;
+        if (centerX.length == 0) {
+            return -1;
+        }
+        int bucketRow = getBucketRow(y);
+        int bucketCol = getBucketCol(x);
+        double minSquaredDistance = Double.MAX_VALUE;
         int closestBiomeIndex = -1;
-        for (int currentIndex = 0; currentIndex < biomeCenters.size(); currentIndex++) {
-            Point biomeCenter = biomeCenters.get(currentIndex);
-            double currentDistance = getDistance(biomeCenter.x, biomeCenter.y, x, y);
-            if (currentDistance < minDistance) {
-                minDistance = currentDistance;
-                closestBiomeIndex = currentIndex;
+        int maxRing = Math.max(nbBucketRows, nbBucketCols);
+        for (int ring = 0; ring <= maxRing; ring++) {
+            // A bucket of ring k is at least (k-1) buckets away from the point,
+            // or from its projection on the grid when it is outside.
+            double minRingDistance = (ring - 1) * bucketSize;
+            if (ring > 1 && minRingDistance * minRingDistance > minSquaredDistance) {
+                break;
+            }
+            for (int row = bucketRow - ring; row <= bucketRow + ring; row++) {
+                if (row < 0 || row >= nbBucketRows) {
+                    continue;
+                }
+                boolean isRingBorder = (row == bucketRow - ring || row == bucketRow + ring);
+                // Inside the ring, only the first and last columns are new.
+                int colStep = (isRingBorder || ring == 0) ? 1 : 2 * ring;
+                for (int col = bucketCol - ring; col <= bucketCol + ring; col += colStep) {
+                    if (col < 0 || col >= nbBucketCols) {
+                        continue;
+                    }
+                    int b = row * nbBucketCols + col;
+                    for (int k = bucketStart[b]; k < bucketStart[b + 1]; k++) {
+                        int i = bucketContent[k];
+                        double squaredDistance = getSquaredDistance(centerX[i], centerY[i], x, y);
+                        if (squaredDistance < minSquaredDistance
+                                || (squaredDistance == minSquaredDistance && i < closestBiomeIndex)) {
+                            minSquaredDistance = squaredDistance;
+                            closestBiomeIndex = i;
+                        }
+                    }
+                }
             }
         }
         return closestBiomeIndex;
     }
 
-    private double getDistance(int x, int y, double x0, double y0) {
+    /**
+     * Find the biome of a whole rectangular tile of regularly spaced points;
+     * the point (row, col) of the tile is at (x0 + col * dx, y0 + row * dy).
+     *
+     * The closest center to the middle of the tile is found first; the points
+     * of the tile are then only compared with the few centers that may be
+     * closer to one of them.
+     *
+     * @param result receives the biome of the point (row, col) at index row *
+     * nbCols + col
+     * @param nbRows
+     * @param nbCols
+     * @param x0
+     * @param y0
+     * @param dx
+     * @param dy
+     */
+    protected void fillBiomeTile(int result[], int nbRows, int nbCols, double x0, double y0, double dx, double dy) {
+        if (centerX.length == 0) {
+            Arrays.fill(result, 0, nbRows * nbCols, -1);
+            return;
+        }
+        double xMiddle = x0 + (nbCols - 1) * dx / 2;
+        double yMiddle = y0 + (nbRows - 1) * dy / 2;
+        double halfWidth = Math.abs((nbCols - 1) * dx) / 2;
+        double halfHeight = Math.abs((nbRows - 1) * dy) / 2;
+        double halfDiagonal = Math.sqrt(halfWidth * halfWidth + halfHeight * halfHeight);
+        int middleBiome = getBiome(xMiddle, yMiddle);
+        double middleDistance = Math.sqrt(getSquaredDistance(centerX[middleBiome], centerY[middleBiome], xMiddle, yMiddle));
+
+        // A center that is farther than this from the middle is never the closest one in the tile.
+        double maxDistance = middleDistance + 2 * halfDiagonal;
+        double maxSquaredDistance = maxDistance * maxDistance;
+        int candidates[] = new int[centerX.length];
+        int nbCandidates = 0;
+        for (int row = getBucketRow(yMiddle - maxDistance); row <= getBucketRow(yMiddle + maxDistance); row++) {
+            for (int col = getBucketCol(xMiddle - maxDistance); col <= getBucketCol(xMiddle + maxDistance); col++) {
+                int b = row * nbBucketCols + col;
+                for (int k = bucketStart[b]; k < bucketStart[b + 1]; k++) {
+                    int i = bucketContent[k];
+                    if (getSquaredDistance(centerX[i], centerY[i], xMiddle, yMiddle) <= maxSquaredDistance) {
+                        candidates[nbCandidates] = i;
+                        nbCandidates++;
+                    }
+                }
+            }
+        }
+        // Ascending indices, so that the ties are resolved as in getBiome.
+        Arrays.sort(candidates, 0, nbCandidates);
+
+        for (int row = 0; row < nbRows; row++) {
+            double y = y0 + row * dy;
+            for (int col = 0; col < nbCols; col++) {
+                double x = x0 + col * dx;
+                int closest = -1;
+                double minSquaredDistance = Double.MAX_VALUE;
+                for (int c = 0; c < nbCandidates; c++) {
+                    int i = candidates[c];
+                    double squaredDistance = getSquaredDistance(centerX[i], centerY[i], x, y);
+                    if (squaredDistance < minSquaredDistance
+                            || (squaredDistance == minSquaredDistance && i < closest)) {
+                        minSquaredDistance = squaredDistance;
+                        closest = i;
+                    }
+                }
+                result[row * nbCols + col] = closest;
+            }
+        }
+    }
+
+    private double getSquaredDistance(int x, int y, double x0, double y0) {
         double dx = x - x0;
         double dy = y - y0;
-        return Math.sqrt(dx * dx + dy * dy);
+        return dx * dx + dy * dy;
     }
 
     public ArrayList<Point> getCenters() {
@@ -64,6 +64,35 @@ public enum CardinalPoint {
         }
     }
 
+    /**
+     * Inverse of getIntValue.
+     *
+     * @param value between 0 and 7
+     * @return the matching direction, CENTER for any other value.
+     */
+    protected static CardinalPoint fromIntValue(int value) {
+        switch (value) {
+        case 0:
+            return NORTH;
+        case 1:
+            return NORTHEAST;
+        case 2:
+            return EAST;
+        case 3:
+            return SOUTHEAST;
+        case 4:
+            return SOUTH;
+        case 5:
+            return SOUTHWEST;
+        case 6:
+            return WEST;
+        case 7:
+            return NORTHWEST;
+        default:
+            return CENTER;
+        }
+    }
+
     protected int difference(CardinalPoint other) {
         if (this.equals(CENTER) || other.equals(CENTER)) {
             return Integer.MAX_VALUE;
@@ -3,13 +3,10 @@ package minimetro;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics;
-import java.awt.Graphics2D;
+import java.awt.geom.Ellipse2D;
 import java.awt.geom.Point2D;
 import java.io.FileWriter;
-import static java.lang.Math.PI;
-import static java.lang.Math.cos;
 import static java.lang.Math.max;
-import static java.lang.Math.sin;
 import java.util.ArrayList;
 
 /**
@@ -20,8 +17,6 @@ import java.util.ArrayList;
  */
 public class Cell {
 
-    private static int DEFAULT_NB_RAILS = 10;
-
     protected static double cellSize = 10;
 
     protected Color color;
@@ -30,9 +25,12 @@ public class Cell {
     protected ArrayList<TransferringTrain> trainsLeavingCell;
     double maxHeadingDiff = 10;
 
-    private ArrayList<CardinalPoint> links;
-    private ArrayList<RailSegment> rails;
-    private int nbRails;
+    // Directions of the rail links, one bit per CardinalPoint.
+    private byte linkMask;
+    // Most recent link, -1 when there is none; the other link of the mask is the oldest one.
+    private byte newestLink;
+    // Shared geometry of the rails, positioned on the center of the cell; null when the cell has no rails.
+    private RailTemplate railTemplate;
 
     protected Point2D.Double absolutePosition; // This point is the center of the cell.
     protected int row, col; // Position on the grid.
@@ -42,9 +40,8 @@ public class Cell {
     protected double stopTimerDuration;
 
     private boolean isActive;
-
-    protected double altitude;
-    protected int biome;
+    // Position in the set of active cells, -1 when not in the set.
+    protected int activeSetIndex;
 
     private static int NB_CELLS_CREATED = 0;
     protected int id;
@@ -53,12 +50,13 @@ public class Cell {
         color = Color.gray;
         trainElements = new ArrayList<>();
         trainsLeavingCell = new ArrayList<>();
-        rails = new ArrayList<>();
-        nbRails = DEFAULT_NB_RAILS;
+        railTemplate = null;
         absolutePosition = new Point2D.Double();
-        links = new ArrayList<>();
+        linkMask = 0;
+        newestLink = -1;
         speedLimit = Integer.MAX_VALUE;
         isActive = false;
+        activeSetIndex = -1;
         id = NB_CELLS_CREATED;
         NB_CELLS_CREATED++;
     }
@@ -71,19 +69,12 @@ public class Cell {
         this();
         if (previousCell != null) {
             this.absolutePosition = previousCell.absolutePosition;
-            this.links = new ArrayList<>();
-            for (CardinalPoint cp : previousCell.links) {
-                this.links.add(cp);
-            }
-            this.rails = new ArrayList<>();
-            for (RailSegment rail : previousCell.rails) {
-                this.rails.add(new RailSegment(rail));
-            }
-            this.nbRails = previousCell.nbRails;
+            this.linkMask = previousCell.linkMask;
+            this.newestLink = previousCell.newestLink;
+            this.railTemplate = previousCell.railTemplate;
             this.speedLimit = previousCell.speedLimit;
             this.stopTimerDuration = previousCell.stopTimerDuration;
             this.isActive = previousCell.isActive;
-            this.altitude = previousCell.altitude;
             this.row = previousCell.row;
             this.col = previousCell.col;
         }
@@ -94,19 +85,6 @@ public class Cell {
         this.absolutePosition = newAbsPos;
     }
 
-    /**
-     * Paint the cell's background. This represents the nature of the terrain
-     * (grass, sea, ...).
-     */
-    protected void paintBackground(Graphics g, double x0, double y0, double zoom, Color c) {
-        final int xApp = (int) ((absolutePosition.x - cellSize / 2) * zoom + x0);
-        final int yApp = (int) (g.getClipBounds().height - ((absolutePosition.y + cellSize / 2) * zoom + y0));
-        final int appSize = (int) (zoom * cellSize) + 1;
-        Graphics2D g2 = (Graphics2D) g;
-        g2.setColor(c);
-        g2.fillRect(xApp, yApp, appSize, appSize);
-    }
-
     /**
      * Paint the cell's foreground.
      */
@@ -123,27 +101,58 @@ public class Cell {
     /**
      * Paint the cell's foreground.
      * Rails, speed signs. Trains are painted by the paintTrains method.
+     * The panel uses the cached TrackLayer of the chunk instead; this builds a
+     * layer for this cell alone.
      */
     protected void paintForeground(Graphics g, double x0, double y0, double zoom) {
+        TrackLayer layer = new TrackLayer();
+        addToTrackLayer(layer);
+        layer.paint(g, x0, y0, zoom);
+    }
+
+    /**
+     * Add the rails and the sign of this cell to a track layer, and register
+     * the cell if it has texts to paint.
+     *
+     * @param layer
+     */
+    protected void addToTrackLayer(TrackLayer layer) {
+        if (railTemplate != null) {
+            railTemplate.addTo(layer, absolutePosition.x, absolutePosition.y);
+        }
+        addSpeedLimitSign(layer);
+        if (getSpeedLimitText() != null || stopTimerDuration > 0) {
+            layer.addOverlayCell(this);
+        }
+    }
+
+    /**
+     * Paint the parts of the foreground that are not cached in the track
+     * layer: the value of the speed sign and the stop timer.
+     */
+    protected void paintOverlay(Graphics g, double x0, double y0, double zoom) {
         // On-screen coordinates of the center of the cell:
         final double xApp = absolutePosition.x * zoom + x0;
         final double yApp = g.getClipBounds().height - (absolutePosition.y * zoom + y0);
         final double appSize = zoom * cellSize;
 
-        if (rails != null && !rails.isEmpty()) {
-            for (RailSegment railSegment : rails) {
-                if (railSegment != null) {
-                    railSegment.paint(g, x0, y0, zoom);
-                }
-            }
+        String text = getSpeedLimitText();
+        if (text != null) {
+            Point2D.Double sign = getSignPosition();
+            final double xSign = sign.x * zoom + x0;
+            final double ySign = g.getClipBounds().height - (sign.y * zoom + y0);
+            g.setColor(Color.black);
+            g.setFont(new Font("helvetica", Font.PLAIN, (int) (appSize / 15)));
+            int textWidth = g.getFontMetrics().stringWidth(text);
+            int textHeight = g.getFontMetrics().getHeight();
+            g.drawString(text, (int) xSign - textWidth / 2, (int) ySign + textHeight / 2);
         }
-        paintSpeedLimitSign(g, xApp, yApp, appSize);
 
         g.setColor(Color.black);
         g.setFont(new Font("helvetica", Font.PLAIN, (int) (max(10, appSize / 15))));
 
         if (stopTimerDuration > 0) {
-            String text = "Stop for " + stopTimerDuration + " seconds";
+            text = "Stop for " + stopTimerDuration + " seconds";
             g.drawString(text, (int) (xApp - appSize / 2 + 5), (int) (yApp - appSize / 2 + 15));
         }
     }
@@ -162,25 +171,25 @@ public class Cell {
 
     // A cell has tracks if it is linked to at least one neighbor.
     protected boolean hasRails() {
-        return !rails.isEmpty();
+        return railTemplate != null;
     }
 
-    protected void setLoco() {
+    protected void setLoco(TrainPhysicsStore store) {
         if (hasRails()) {
             Point2D.Double locoPosition = new Point2D.Double(absolutePosition.x,
                     absolutePosition.y);
-            this.trainElements.add(0, new Locomotive(locoPosition));
-            this.trainElements.get(0).headingDegrees = this.getCenterHeading();
+            this.trainElements.add(0, new Locomotive(store, locoPosition));
+            this.trainElements.get(0).setHeadingDegrees(this.getCenterHeading());
         }
         snapToRail();
     }
 
-    protected void setWagon() {
+    protected void setWagon(TrainPhysicsStore store) {
         if (hasRails()) {
             Point2D.Double wagonPosition = new Point2D.Double(absolutePosition.x,
                     absolutePosition.y);
-            this.trainElements.add(0, new Wagon(wagonPosition));
-            this.trainElements.get(0).headingDegrees = this.getCenterHeading();
+            this.trainElements.add(0, new Wagon(store, wagonPosition));
+            this.trainElements.get(0).setHeadingDegrees(this.getCenterHeading());
         }
         snapToRail();
     }
@@ -192,16 +201,43 @@ public class Cell {
      * @param newTrain
      */
     protected void addTrainElement(TrainElement newTrain) {
+        if (newTrain.isTrackRelative) {
+            enterTrack(newTrain);
+        }
         this.trainElements.add(newTrain);
         newTrain.setRow(this.row);
         newTrain.setCol(this.col);
-        snapToRail();
+        if (!newTrain.isTrackRelative) {
+            snapToRail();
+        }
         if (this.stopTimerDuration > 0) {
             // The train shall stop when it leaves but not now as it just arrived.
             newTrain.stopTimerDuration = -1;
         }
     }
 
+    /**
+     * Continue the movement along the rails of an element that leaves a
+     * neighboring cell. Any other element is put on the rails at the closest
+     * point. The other elements of the cell are not moved, as some of them may
+     * be leaving it during this step.
+     *
+     * @param te
+     */
+    private void enterTrack(TrainElement te) {
+        CardinalPoint exit = te.trackExit;
+        boolean hasEntered = false;
+        if (te.isOnTrack() && exit != null && exit != CardinalPoint.CENTER && railTemplate != null) {
+            hasEntered = railTemplate.enter(te, CardinalPoint.getOpposite(exit), absolutePosition.x, absolutePosition.y);
+        }
+        if (!hasEntered) {
+            te.detachFromTrack();
+            if (railTemplate != null && !te.isFollower) {
+                railTemplate.attach(te, absolutePosition.x, absolutePosition.y);
+            }
+        }
+    }
+
     protected boolean hasLoco() {
         if (trainElements != null) {
             for (TrainElement te : trainElements) {
@@ -261,12 +297,6 @@ public class Cell {
         return null;
     }
 
-    public void resetForces() {
-        for (TrainElement te : trainElements) {
-            te.resetForces();
-        }
-    }
-
     /**
      * Compute new speed based on engine power
      *
@@ -294,7 +324,12 @@ public class Cell {
 
             trainElement.observeCurrentSpeedLimit();
 
-            CardinalPoint leavingDirection = isTrainElementLeaving(trainElement);
+            CardinalPoint leavingDirection;
+            if (trainElement.isOnTrack()) {
+                leavingDirection = trainElement.trackExit;
+            } else {
+                leavingDirection = isTrainElementLeaving(trainElement);
+            }
             if (leavingDirection != CardinalPoint.CENTER) {
                 // The element has travelled to the next cell.
                 trainsLeavingCell.add(new TransferringTrain(trainElement, leavingDirection));
@@ -304,23 +339,13 @@ public class Cell {
 
     }
 
-    /**
-     * Compute the 2d position of the train from its linear position and the
-     * tracks details.
-     *
-     * @return the 2d position relative to the current cell.
-     */
-    Point2D.Double getTrainPosition(TrainElement te) {
-        return te.absolutePosition;
-    }
-
     /**
      * Get the heading of the center of the track.
      *
      * @return the heading of the center of the track
      */
     protected double getCenterHeading() {
-        return rails.get(nbRails / 2).getHeadingInDegrees();
+        return railTemplate.getCenterHeading();
     }
 
     protected TrainElement getTrainElement() {
@@ -359,12 +384,6 @@ public class Cell {
         return false;
     }
 
-    void computeNewSpeeds(double dt) {
-        for (TrainElement te : trainElements) {
-            te.computeNewSpeed(dt);
-        }
-    }
-
     void setAbsoluteCoordinates(Point2D.Double cellPosition) {
         absolutePosition = cellPosition;
     }
@@ -409,10 +428,21 @@ public class Cell {
      */
     void snapToRail() {
         for (TrainElement te : trainElements) {
+            if (te.isFollower) {
+                // Already on the path of its locomotive.
+                continue;
+            }
+            if (te.isTrackRelative) {
+                if (railTemplate != null && te.trackTemplate != railTemplate) {
+                    railTemplate.attach(te, absolutePosition.x, absolutePosition.y);
+                }
+                // Elements already on the rails of this cell are not moved.
+                continue;
+            }
             RailSegment closestRail = findClosestRailSegment(te);
             if (closestRail != null) {
                 // snap the TrainElement to the rail
-                closestRail.snapTrain(te);
+                closestRail.snapTrain(te, absolutePosition.x, absolutePosition.y);
             }
         }
     }
@@ -421,366 +451,88 @@ public class Cell {
      * Find the rail that is closest to the TrainElement
      */
     protected RailSegment findClosestRailSegment(TrainElement te) {
-        double minDistance = Double.MAX_VALUE;
-        RailSegment closestSegment = null;
-        for (RailSegment r : rails) {
-            double distance = r.getDistance(te);
-            if (distance < minDistance) {
-                minDistance = distance;
-                closestSegment = r;
-            }
-        }
-        return closestSegment;
-    }
-
-    protected String getLinks() {
-        String result = "";
-        for (CardinalPoint link : links) {
-            result += link + " ";
+        if (railTemplate == null) {
+            return null;
         }
-        return result;
+        return railTemplate.findClosestSegment(te, absolutePosition.x, absolutePosition.y);
     }
 
     /**
-     * Add a link from this cell to the specified direction.
-     * A cell may have 0, 1 or 2 links (TODO: a switch shall behave differently)
+     * Get the distance between a TrainElement and the closest rail of this
+     * cell.
      *
-     * @param newLinkDirection
+     * @param te
+     * @return the distance, or Double.MAX_VALUE if the cell has no rails.
      */
-    void addLink(CardinalPoint newLinkDirection) {
-        if (newLinkDirection != null) {
-            // The new direction must be placed in first position in the list (as the most recent one).
-            if (links.contains(newLinkDirection)) {
-                links.remove(newLinkDirection);
-            }
-            links.add(0, newLinkDirection);
+    protected double getDistanceToRails(TrainElement te) {
+        RailSegment closestRail = findClosestRailSegment(te);
+        if (closestRail == null) {
+            return Double.MAX_VALUE;
         }
-        // If the cell is already linked to two other cells, remove the oldest connection.
-        if (links.size() > 2) {
-            links.remove(2);
-        }
-
-        updateTracks();
-    }
-
-    /**
-     * Test for 90° turns between horizontal and vertical.
-     *
-     * @return true when the selected exit is connected in an axis-aligned 90°
-     * turn with the entrance.
-     */
-    private boolean isTrackTurningAxisAligned() {
-        return this.isTrackTurningAxisAligned(0, 1);
+        return closestRail.getDistance(te, absolutePosition.x, absolutePosition.y);
     }
 
-    private boolean isTrackTurningAxisAligned(int index0, int index1) {
-        try {
-            int difference = links.get(index0).difference(links.get(index1));
-            boolean result = difference == 2 || difference == 6;
-            return result;
-        } catch (NullPointerException | IndexOutOfBoundsException e) {
-            return false;
+    protected String getLinks() {
+        String result = "";
+        if (newestLink >= 0) {
+            result += getNewestLink() + " ";
         }
-    }
-
-    /**
-     * Test for 45° turns. Example: a track going from North to SouthWest
-     *
-     * @return
-     */
-    private boolean isTrackTurning45() {
-        return this.isTrackTurning45(0, 1);
-    }
-
-    private boolean isTrackTurning45(int index0, int index1) {
-        try {
-            int difference = links.get(index0).difference(links.get(index1));
-            boolean result = difference == 3 || difference == 5;
-            return result;
-        } catch (IndexOutOfBoundsException e) {
-            return false;
+        if (getOldestLink() != null) {
+            result += getOldestLink() + " ";
         }
+        return result;
     }
 
-    /**
-     * Test for a track that does not turn within this cell.
-     *
-     * @return
-     */
-    private boolean isTrackStraight() {
-        return this.isTrackStraight(0, 1);
-    }
-
-    private boolean isTrackStraight(int index0, int index1) {
-        try {
-            int difference = links.get(index0).difference(links.get(index1));
-            boolean result = difference == 4;
-            return result;
-
-        } catch (IndexOutOfBoundsException e) {
-            return false;
-        }
+    private CardinalPoint getNewestLink() {
+        return newestLink < 0 ? null : CardinalPoint.fromIntValue(newestLink);
     }
 
     /**
-     * Test for a straight diagonal track.
+     * Get the link that is not the most recent one.
      *
-     * @return
+     * @return the oldest link, or null if the cell has less than two links.
      */
-    private boolean isTrackDiagonal(int index0, int index1) {
-
-        // Each link must be NE, SE, SW or NW.
-        boolean result = (links.get(index0)).getIntValue() % 2 == 1
-                && (links.get(index1)).getIntValue() % 2 == 1;
-
-        return result;
-    }
-
-    /**
-     * Set the rail segments in accordance with the cardinal points specified by
-     * the link list.
-     *
-     */
-    private void updateTracks() {
-
-        rails.clear();
-
-        if (isTrackTurningAxisAligned() || isTrackTurning45()) {
-            updateTurningTracks();
-        } else if (isTrackStraight()) {
-            updateStraightTracks();
+    private CardinalPoint getOldestLink() {
+        if (newestLink < 0) {
+            return null;
+        }
+        int otherLinks = linkMask & ~(1 << newestLink) & 0xff;
+        if (otherLinks == 0) {
+            return null;
         }
+        return CardinalPoint.fromIntValue(Integer.numberOfTrailingZeros(otherLinks));
     }
 
     /**
-     * Create the rails when the tracks go N-S, E-W, NW-SE or SW-NE, without
-     * turns.
+     * Add a link from this cell to the specified direction.
+     * A cell may have 0, 1 or 2 links (TODO: a switch shall behave differently)
+     *
+     * @param newLinkDirection
      */
-    private void updateStraightTracks() {
-        updateStraightTracks(0, 1, rails);
-    }
-
-    private void updateStraightTracks(int firstIndex, int secondIndex, ArrayList<RailSegment> railsParam) {
-        double xCell = absolutePosition.x, yCell = absolutePosition.y;
-        double xStart = xCell, xEnd = xCell, yStart = yCell, yEnd = yCell;
-
-        if (links.size() >= firstIndex) {
-            CardinalPoint firstLink = links.get(firstIndex);
-            switch (firstLink) {
-            case WEST:
-                xStart = xCell - cellSize / 2;
-                yStart = yCell;
-                break;
-            case NORTHWEST:
-                xStart = xCell - cellSize / 2;
-                yStart = yCell + cellSize / 2;
-                break;
-            case NORTH:
-                xStart = xCell;
-                yStart = yCell + cellSize / 2;
-                break;
-            case NORTHEAST:
-                xStart = xCell + cellSize / 2;
-                yStart = yCell + cellSize / 2;
-                break;
-            case EAST:
-                xStart = xCell + cellSize / 2;
-                yStart = yCell;
-                break;
-            case SOUTHEAST:
-                xStart = xCell + cellSize / 2;
-                yStart = yCell - cellSize / 2;
-                break;
-            case SOUTH:
-                xStart = xCell;
-                yStart = yCell - cellSize / 2;
-                break;
-            case SOUTHWEST:
-                xStart = xCell - cellSize / 2;
-                yStart = yCell - cellSize / 2;
-                break;
-            default:
-                xStart = xCell;
-                yStart = yCell;
-            }
-        }
-        if (links.size() >= secondIndex) {
-            CardinalPoint secondLink = links.get(secondIndex);
-            switch (secondLink) {
-            case WEST:
-                xEnd = xCell - cellSize / 2;
-                yEnd = yCell;
-                break;
-            case NORTHWEST:
-                xEnd = xCell - cellSize / 2;
-                yEnd = yCell + cellSize / 2;
-                break;
-            case NORTH:
-                xEnd = xCell;
-                yEnd = yCell + cellSize / 2;
-                break;
-            case NORTHEAST:
-                xEnd = xCell + cellSize / 2;
-                yEnd = yCell + cellSize / 2;
-                break;
-            case EAST:
-                xEnd = xCell + cellSize / 2;
-                yEnd = yCell;
-                break;
-            case SOUTHEAST:
-                xEnd = xCell + cellSize / 2;
-                yEnd = yCell - cellSize / 2;
-                break;
-            case SOUTH:
-                xEnd = xCell;
-                yEnd = yCell - cellSize / 2;
-                break;
-            case SOUTHWEST:
-                xEnd = xCell - cellSize / 2;
-                yEnd = yCell - cellSize / 2;
-                break;
-            default:
-                xEnd = xCell;
-                yEnd = yCell;
+    void addLink(CardinalPoint newLinkDirection) {
+        if (newLinkDirection != null && newLinkDirection.getIntValue() >= 0) {
+            int newBit = 1 << newLinkDirection.getIntValue();
+            // If the cell is already linked to two other cells, remove the oldest connection.
+            if ((linkMask & newBit) == 0 && Integer.bitCount(linkMask & 0xff) >= 2) {
+                linkMask = (byte) (1 << newestLink);
             }
+            linkMask |= newBit;
+            // The new direction becomes the most recent one.
+            newestLink = (byte) newLinkDirection.getIntValue();
         }
 
-        int actualNbRails = nbRails;
-        if (isTrackDiagonal(firstIndex, secondIndex)) {
-            actualNbRails = (int) (nbRails * 1.41);
-        }
-        for (int i = 0; i < actualNbRails; i++) {
-            double x0 = xStart + i * (xEnd - xStart) / actualNbRails;
-            double y0 = yStart + i * (yEnd - yStart) / actualNbRails;
-            double x1 = xStart + (i + 1) * (xEnd - xStart) / actualNbRails;
-            double y1 = yStart + (i + 1) * (yEnd - yStart) / actualNbRails;
-            railsParam.add(new RailSegment(x0, y0, x1, y1));
-        }
+        updateTracks();
     }
 
     /**
-     * Create the rails when the tracks go from N-S to E-W, with a turn,
-     * or when they go from axis-aligned to diagonal.
+     * Use the shared rails that match the links of this cell.
      */
-    private void updateTurningTracks() {
-        this.updateTurningTracks(0, 1, this.rails);
-    }
-
-    private void updateTurningTracks(int index0, int index1, ArrayList<RailSegment> railsParam) {
-
-        double xCenter = 0, yCenter = 0;
-        double radius;
-        double angleStart = 0, angleEnd = 0;
-
-        // Add the curved part for both 45 and 90 degrees turns.
-        if (isTrackTurning45(index0, index1)) {
-            radius = cellSize * (1 + 1.414) / 2;
-
-            // Horizontal EAST
-            if (isLinked(CardinalPoint.NORTHWEST, index0, index1) && isLinked(CardinalPoint.EAST, index0, index1)) {
-                xCenter = absolutePosition.x + cellSize / 2;
-                yCenter = absolutePosition.y + cellSize * (2.414 / 2);
-                angleStart = 5 * PI / 4;
-                angleEnd = 3 * PI / 2;
-            } else if (isLinked(CardinalPoint.SOUTHWEST, index0, index1) && isLinked(CardinalPoint.EAST, index0, index1)) {
-                xCenter = absolutePosition.x + cellSize / 2;
-                yCenter = absolutePosition.y - cellSize * (2.414 / 2);
-                angleStart = 3 * PI / 4;
-                angleEnd = PI / 2;
-            } // Horizontal WEST
-            else if (isLinked(CardinalPoint.NORTHEAST, index0, index1) && isLinked(CardinalPoint.WEST, index0, index1)) {
-                xCenter = absolutePosition.x - cellSize / 2;
-                yCenter = absolutePosition.y + cellSize * (2.414 / 2);
-                angleStart = 3 * PI / 2;
-                angleEnd = 7 * PI / 4;
-            } else if (isLinked(CardinalPoint.SOUTHEAST, index0, index1) && isLinked(CardinalPoint.WEST, index0, index1)) {
-                xCenter = absolutePosition.x - cellSize / 2;
-                yCenter = absolutePosition.y - cellSize * (2.414 / 2);
-                angleStart = PI / 2;
-                angleEnd = PI / 4;
-            } // Vertical NORTH
-            else if (isLinked(CardinalPoint.NORTH, index0, index1) && isLinked(CardinalPoint.SOUTHWEST, index0, index1)) {
-                xCenter = absolutePosition.x - cellSize * (2.414 / 2);
-                yCenter = absolutePosition.y + cellSize / 2;
-                angleStart = 0;
-                angleEnd = -PI / 4;
-            } else if (isLinked(CardinalPoint.NORTH, index0, index1) && isLinked(CardinalPoint.SOUTHEAST, index0, index1)) {
-                xCenter = absolutePosition.x + cellSize * (2.414 / 2);
-                yCenter = absolutePosition.y + cellSize / 2;
-                angleStart = PI;
-                angleEnd = 5 * PI / 4;
-            } // Vertical SOUTH
-            else if (isLinked(CardinalPoint.SOUTH, index0, index1) && isLinked(CardinalPoint.NORTHWEST, index0, index1)) {
-                xCenter = absolutePosition.x - cellSize * (2.414 / 2);
-                yCenter = absolutePosition.y - cellSize / 2;
-                angleStart = 0;
-                angleEnd = PI / 4;
-            } else if (isLinked(CardinalPoint.SOUTH, index0, index1) && isLinked(CardinalPoint.NORTHEAST, index0, index1)) {
-                xCenter = absolutePosition.x + cellSize * (2.414 / 2);
-                yCenter = absolutePosition.y - cellSize / 2;
-                angleStart = PI;
-                angleEnd = 3 * PI / 4;
-            }
-
+    private void updateTracks() {
+        CardinalPoint oldestLink = getOldestLink();
+        if (oldestLink != null) {
+            railTemplate = RailTemplate.get(getNewestLink(), oldestLink);
         } else {
-            // Axis-aligned right-angled turns
-            radius = cellSize / 2;
-            if (isLinked(CardinalPoint.SOUTH, index0, index1) && isLinked(CardinalPoint.EAST, index0, index1)) {
-                xCenter = absolutePosition.x + cellSize / 2;
-                yCenter = absolutePosition.y - cellSize / 2;
-                angleStart = PI;
-                angleEnd = PI / 2;
-                radius = cellSize / 2;
-            } else if (isLinked(CardinalPoint.EAST, index0, index1) && isLinked(CardinalPoint.NORTH, index0, index1)) {
-                xCenter = absolutePosition.x + cellSize / 2;
-                yCenter = absolutePosition.y + cellSize / 2;
-                angleStart = 3 * PI / 2;
-                angleEnd = PI;
-                radius = cellSize / 2;
-            } else if (isLinked(CardinalPoint.NORTH, index0, index1) && isLinked(CardinalPoint.WEST, index0, index1)) {
-                xCenter = absolutePosition.x - cellSize / 2;
-                yCenter = absolutePosition.y + cellSize / 2;
-                angleStart = 4 * PI / 2;
-                angleEnd = 3 * PI / 2;
-                radius = cellSize / 2;
-            } else if (isLinked(CardinalPoint.WEST, index0, index1) && isLinked(CardinalPoint.SOUTH, index0, index1)) {
-                xCenter = absolutePosition.x - cellSize / 2;
-                yCenter = absolutePosition.y - cellSize / 2;
-                angleStart = PI / 2;
-                angleEnd = 0;
-                radius = cellSize / 2;
-            }
-        }
-
-        for (int i = 0; i < nbRails; i++) {
-            double x0 = xCenter + radius * cos(angleStart + i * (angleEnd - angleStart) / nbRails);
-            double y0 = yCenter + radius * sin(angleStart + i * (angleEnd - angleStart) / nbRails);
-            double x1 = xCenter + radius * cos(angleStart + (i + 1) * (angleEnd - angleStart) / nbRails);
-            double y1 = yCenter + radius * sin(angleStart + (i + 1) * (angleEnd - angleStart) / nbRails);
-            railsParam.add(new RailSegment(x0, y0, x1, y1));
-        }
-
-        // 45 degrees turns require an additional straight part
-        if (isTrackTurning45(index0, index1)) {
-            double unitLength = (2 - 1.414) / 4; // The length of the straight part
-            int nbAdditionalSegments = 4;
-            double dx = unitLength / nbAdditionalSegments;
-
-            for (int i = 0; i < nbAdditionalSegments; i++) {
-                if (isLinked(CardinalPoint.NORTHEAST, index0, index1)) {
-                    railsParam.add(new RailSegment(absolutePosition.x + cellSize * (0.5 - i * dx), absolutePosition.y + cellSize * (0.5 - i * dx),
-                            absolutePosition.x + cellSize * (0.5 - (i + 1) * dx), absolutePosition.y + cellSize * (0.5 - (i + 1) * dx)));
-                } else if (isLinked(CardinalPoint.SOUTHEAST, index0, index1)) {
-                    railsParam.add(new RailSegment(absolutePosition.x + cellSize * (0.5 - i * dx), absolutePosition.y - cellSize * (0.5 - i * dx),
-                            absolutePosition.x + cellSize * (0.5 - (i + 1) * dx), absolutePosition.y - cellSize * (0.5 - (i + 1) * dx)));
-                } else if (isLinked(CardinalPoint.SOUTHWEST, index0, index1)) {
-                    railsParam.add(new RailSegment(absolutePosition.x - cellSize * (0.5 - i * dx), absolutePosition.y - cellSize * (0.5 - i * dx),
-                            absolutePosition.x - cellSize * (0.5 - (i + 1) * dx), absolutePosition.y - cellSize * (0.5 - (i + 1) * dx)));
-                } else if (isLinked(CardinalPoint.NORTHWEST, index0, index1)) {
-                    railsParam.add(new RailSegment(absolutePosition.x - cellSize * (0.5 - i * dx), absolutePosition.y + cellSize * (0.5 - i * dx),
-                            absolutePosition.x - cellSize * (0.5 - (i + 1) * dx), absolutePosition.y + cellSize * (0.5 - (i + 1) * dx)));
-                }
-            }
+            railTemplate = null;
         }
     }
 
@@ -791,45 +543,38 @@ public class Cell {
      * and is not a station; false otherwise.
      */
     protected boolean isEmpty() {
-        return trainElements.isEmpty() && rails.isEmpty();
+        return trainElements.isEmpty() && railTemplate == null;
     }
 
     /**
-     * Return true when the cell has a link in the specified direction.
+     * Test if a cell has a rail link in the given direction.
      *
      * @param cardinalPoint
-     * @param index0 the first exit we're testing (can be 0 to 1 for regular
-     * tracks, or 0 to 3 for switches)
-     * @param index1 the second exit we're testing (can be 0 to 1 for regular
-     * tracks, or 0 to 3 for switches)
      * @return
      */
-    private boolean isLinked(CardinalPoint cardinalPoint, int index0, int index1) {
-        try {
-            if (links.isEmpty()) {
-                return false;
-            }
-            return links.size() > index0 && links.get(index0) == cardinalPoint
-                    || links.size() > index1 && links.get(index1) == cardinalPoint;
-        } catch (ArrayIndexOutOfBoundsException e) {
+    protected boolean isLinked(CardinalPoint cardinalPoint) {
+        if (cardinalPoint == null || cardinalPoint.getIntValue() < 0) {
             return false;
         }
+        return (linkMask & (1 << cardinalPoint.getIntValue())) != 0;
     }
 
     /**
-     * Test if a cell has a rail link in the given direction.
+     * Tell if the cell may be removed from the world without losing anything.
      *
-     * @param cardinalPoint
-     * @return
+     * @return true when the cell has no link, no train, no sign and is not a
+     * station.
      */
-    protected boolean isLinked(CardinalPoint cardinalPoint) {
-        return isLinked(cardinalPoint, 0, 1);
+    protected boolean isUnused() {
+        return isEmpty() && linkMask == 0
+                && speedLimit == Integer.MAX_VALUE && stopTimerDuration <= 0;
     }
 
     protected void removeTracksAndLinks() {
         if (!hasTrain()) {
-            rails.clear();
-            links.clear();
+            railTemplate = null;
+            linkMask = 0;
+            newestLink = -1;
         }
     }
 
@@ -838,18 +583,6 @@ public class Cell {
         trainsLeavingCell.clear();
     }
 
-    protected void startLocos() {
-        for (TrainElement te : trainElements) {
-            te.start();
-        }
-    }
-
-    protected void stopLocos() {
-        for (TrainElement te : trainElements) {
-            te.stop();
-        }
-    }
-
     /**
      * Set the speed limit for that cell.
      * Setting the same limit as the cell already has shall deactivate the
@@ -881,63 +614,66 @@ public class Cell {
     }
 
     /**
-     * Paint a speed limit roadsign, with the value in a circle.
+     * Get the text of the speed limit roadsign.
      *
-     * @param xApp
-     * @param yApp
-     * @param appSize
+     * @return the text, or null if the cell has no sign.
      */
-    private void paintSpeedLimitSign(Graphics g, double xApp, double yApp, double appSize) {
-
-        String text = "";
-        boolean mustDisplaySign = false;
-
+    private String getSpeedLimitText() {
         if (speedLimit == -1) {
-            text = "End";
-            mustDisplaySign = true;
+            return "End";
         } else if (speedLimit == Integer.MAX_VALUE) {
             // Not set
-        } else {
+            return null;
+        } else if (speedLimit >= 10) {
             // Actual positive value
-            if (speedLimit >= 10) {
-                text = "" + (int) speedLimit;
-            } else {
-                text = "" + speedLimit;
-            }
-            mustDisplaySign = true;
+            return "" + (int) speedLimit;
+        } else {
+            return "" + speedLimit;
         }
+    }
 
-        if (mustDisplaySign) {
-            // Find a spot in the cell far enough from the railroad
-            // Default spot is above the center of the cell, halfway from the North border.
-            double xSign = xApp;
-            double ySign = yApp;
-
-            if (isLinked(CardinalPoint.NORTH, 0, 1) || isLinked(CardinalPoint.NORTH, 2, 3)) {
-                // Second spot, halfway to the South border
-                if (isLinked(CardinalPoint.SOUTH, 0, 1) || isLinked(CardinalPoint.SOUTH, 2, 3)) {
-                    // Cell is linked North and South, the sign shall be placed in the East.
-                    xSign += appSize / 4;
-                } else {
-                    ySign += appSize / 4;
-                }
+    /**
+     * Find a spot in the cell far enough from the railroad for the speed sign.
+     *
+     * @return the absolute coordinates of the center of the sign.
+     */
+    private Point2D.Double getSignPosition() {
+        // Default spot is above the center of the cell, halfway from the North border.
+        double xSign = absolutePosition.x;
+        double ySign = absolutePosition.y;
+
+        if (isLinked(CardinalPoint.NORTH)) {
+            // Second spot, halfway to the South border
+            if (isLinked(CardinalPoint.SOUTH)) {
+                // Cell is linked North and South, the sign shall be placed in the East.
+                xSign += cellSize / 4;
             } else {
-                ySign -= appSize / 4;
+                ySign -= cellSize / 4;
             }
+        } else {
+            ySign += cellSize / 4;
+        }
+        return new Point2D.Double(xSign, ySign);
+    }
 
-            double diskRadius = appSize / 8;
-            g.setColor(Color.red);
-            g.fillOval((int) (xSign - diskRadius), (int) (ySign - diskRadius), (int) (2 * diskRadius), (int) (2 * diskRadius));
-            g.setColor(Color.black);
-            g.drawOval((int) (xSign - diskRadius), (int) (ySign - diskRadius), (int) (2 * diskRadius), (int) (2 * diskRadius));
-            g.setColor(Color.white);
+    /**
+     * Add the disks of the speed limit roadsign to a track layer; the value is
+     * painted by paintOverlay.
+     *
+     * @param layer
+     */
+    private void addSpeedLimitSign(TrackLayer layer) {
+        if (getSpeedLimitText() != null) {
+            Point2D.Double sign = getSignPosition();
+            double diskRadius = cellSize / 8;
+            Ellipse2D.Double disk = new Ellipse2D.Double(sign.x - diskRadius, sign.y - diskRadius,
+                    2 * diskRadius, 2 * diskRadius);
+            layer.getPath(TrackLayer.SIGNS, Color.red, true).append(disk, false);
+            layer.getPath(TrackLayer.SIGNS, Color.black, false).append(disk, false);
             diskRadius = 0.8 * diskRadius;
-            g.fillOval((int) (xSign - diskRadius), (int) (ySign - diskRadius), (int) (2 * diskRadius), (int) (2 * diskRadius));
-            g.setColor(Color.black);
-            g.setFont(new Font("helvetica", Font.PLAIN, (int) (appSize / 15)));
-            int textWidth = g.getFontMetrics().stringWidth(text);
-            int textHeight = g.getFontMetrics().getHeight();
-            g.drawString(text, (int) xSign - textWidth / 2, (int) ySign + textHeight / 2);
+            disk = new Ellipse2D.Double(sign.x - diskRadius, sign.y - diskRadius,
+                    2 * diskRadius, 2 * diskRadius);
+            layer.getPath(TrackLayer.SIGNS, Color.white, true).append(disk, false);
         }
     }
 
@@ -969,10 +705,10 @@ public class Cell {
         }
 
         CardinalPoint forbiddenDirection = CardinalPoint.getOpposite(comingFrom);
-        if (links.get(0).equals(forbiddenDirection)) {
-            return links.get(1);
+        if (getNewestLink().equals(forbiddenDirection)) {
+            return getOldestLink();
         } else {
-            return links.get(0);
+            return getNewestLink();
         }
     }
 
@@ -988,6 +724,12 @@ public class Cell {
     protected void addWalkwayDirection(StationCell cell, CardinalPoint cardinalPoint) {
     }
 
+    /**
+     * Only StationCells do that.
+     */
+    protected void removeWalkwayDirection(StationCell cell) {
+    }
+
     protected void saveTrains(FileWriter writer) {
         for (TrainElement te : trainElements) {
             te.save(writer);
@@ -1035,14 +777,6 @@ public class Cell {
         this.color = newColor;
     }
 
-    protected void setAltitude(double newAltitude) {
-        this.altitude = newAltitude;
-    }
-
-    double getAltitude() {
-        return this.altitude;
-    }
-
     protected void setRow(int newRow) {
         row = newRow;
     }
@@ -0,0 +1,150 @@
+package minimetro;
+
+import java.util.ArrayList;
+
+/**
+ * This class computes the effect of the TrainLinks implicitly, one train at a
+ * time.
+ *
+ * The elements of a train that forms a chain are numbered from one end to the
+ * other. The speed of each element along its heading is the unknown, and the
+ * force of each link is evaluated with the speeds at the end of the step:
+ * F = k * (length - defaultLength) + (k + damping) * dt * dLength/dt.
+ * As in TrainLink.computeForce, the damping applies to the change of length
+ * during one step (damping * dt * dLength/dt), so that a link is damped the
+ * same way in both modes.
+ * This gives a tridiagonal system (M + dt * J^T * K * J) v = M v0 - dt * J^T F0
+ * that is solved in O(n). Unlike the explicit springs, it stays stable with a
+ * large time step.
+ *
+ * Trains whose links form a loop are not chains, and are not given to this
+ * solver.
+ *
+ * @author arthu
+ */
+public class ChainSolver {
+
+    // Each chain: elements in order, and the link between element i and i+1.
+    private ArrayList<TrainElement[]> chainElements;
+    private ArrayList<TrainLink[]> chainLinks;
+
+    // Work arrays, reused from one chain to the next.
+    private double lower[], diagonal[], upper[], rhs[];
+    private double jFirst[], jSecond[]; // Jacobian of each link with respect to both its elements.
+    private double stiffness[], elasticForce[];
+
+    public ChainSolver() {
+        chainElements = new ArrayList<>();
+        chainLinks = new ArrayList<>();
+        allocate(16);
+    }
+
+    private void allocate(int size) {
+        lower = new double[size];
+        diagonal = new double[size];
+        upper = new double[size];
+        rhs = new double[size];
+        jFirst = new double[size];
+        jSecond = new double[size];
+        stiffness = new double[size];
+        elasticForce = new double[size];
+    }
+
+    protected void clear() {
+        chainElements.clear();
+        chainLinks.clear();
+    }
+
+    /**
+     * Add a train that this solver shall handle.
+     *
+     * @param elements the elements in order, from one end to the other
+     * @param links the link between element i and element i+1, at index i
+     */
+    protected void addChain(TrainElement elements[], TrainLink links[]) {
+        chainElements.add(elements);
+        chainLinks.add(links);
+        if (elements.length > diagonal.length) {
+            allocate(2 * elements.length);
+        }
+    }
+
+    /**
+     * Correct the speeds of the elements of every chain. The speeds must
+     * already include the effect of all the other forces.
+     *
+     * @param store
+     * @param dt
+     */
+    protected void solve(TrainPhysicsStore store, double dt) {
+        for (int rank = 0; rank < chainElements.size(); rank++) {
+            solveChain(store, chainElements.get(rank), chainLinks.get(rank), dt);
+        }
+    }
+
+    private void solveChain(TrainPhysicsStore store, TrainElement elements[], TrainLink links[], double dt) {
+        int n = elements.length;
+
+        // Link data
+        for (int i = 0; i < n - 1; i++) {
+            TrainLink link = links[i];
+            TrainElement e0 = link.getElement(0);
+            TrainElement e1 = link.getElement(1);
+            double dx = e1.getX() - e0.getX();
+            double dy = e1.getY() - e0.getY();
+            double length = Math.sqrt(dx * dx + dy * dy);
+            double jE0 = 0, jE1 = 0;
+            if (length > 0) {
+                dx /= length;
+                dy /= length;
+                // Rate of elongation = jE1 * v(e1) + jE0 * v(e0)
+                jE0 = -(dx * e0.getUx() + dy * e0.getUy());
+                jE1 = dx * e1.getUx() + dy * e1.getUy();
+            }
+            // Orientation along the chain: element i, then element i+1.
+            if (e0 == elements[i]) {
+                jFirst[i] = jE0;
+                jSecond[i] = jE1;
+            } else {
+                jFirst[i] = jE1;
+                jSecond[i] = jE0;
+            }
+            elasticForce[i] = link.computeElasticForce(length);
+            stiffness[i] = (link.getStrength() + link.getDamping()) * dt;
+        }
+
+        // Tridiagonal system
+        for (int i = 0; i < n; i++) {
+            int slot = elements[i].slot;
+            diagonal[i] = store.mass[slot];
+            rhs[i] = store.mass[slot] * store.linearSpeed[slot];
+            lower[i] = 0;
+            upper[i] = 0;
+        }
+        for (int i = 0; i < n - 1; i++) {
+            double c = dt * stiffness[i];
+            diagonal[i] += c * jFirst[i] * jFirst[i];
+            diagonal[i + 1] += c * jSecond[i] * jSecond[i];
+            upper[i] = c * jFirst[i] * jSecond[i];
+            lower[i + 1] = upper[i];
+            rhs[i] -= dt * jFirst[i] * elasticForce[i];
+            rhs[i + 1] -= dt * jSecond[i] * elasticForce[i];
+        }
+
+        // Thomas algorithm: forward elimination, then back substitution.
+        for (int i = 1; i < n; i++) {
+            double factor = lower[i] / diagonal[i - 1];
+            diagonal[i] -= factor * upper[i - 1];
+            rhs[i] -= factor * rhs[i - 1];
+        }
+        rhs[n - 1] /= diagonal[n - 1];
+        for (int i = n - 2; i >= 0; i--) {
+            rhs[i] = (rhs[i] - upper[i] * rhs[i + 1]) / diagonal[i];
+        }
+
+        for (int i = 0; i < n; i++) {
+            int slot = elements[i].slot;
+            store.linearSpeed[slot] = Math.min(rhs[i], store.maxSpeed[slot]);
+        }
+    }
+}
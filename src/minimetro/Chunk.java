@@ -6,6 +6,11 @@ import static minimetro.ChunkMatrix.CHUNK_SIZE;
 
 /**
  * A chunk is a simple 2d array of fixed size.
+ * It also holds the terrain of its squares, which exists even where no
+ * element is set. The terrain is computed in the background, it is null
+ * until it is ready.
+ * The shapes of the tracks of the chunk are cached in a TrackLayer, that is
+ * dropped each time an element is set or modified.
  *
  */
 public class Chunk<T> {
@@ -13,72 +18,77 @@ public class Chunk<T> {
     protected int rowIndexInMap;
     protected int colIndexInMap;
 
-    private T elements[][];
+    private T elements[];
+    private int nbElements;
+
+    protected TerrainLayer terrain;
+    // Version of the world noise that the terrain was computed with.
+    protected int terrainVersion;
+    // Cached shapes of the elements, null when they must be built again.
+    protected TrackLayer trackLayer;
+    // Last step when the chunk was needed, to find the chunks that can be evicted.
+    protected int lastUseStep;
 
     public Chunk(int newRowInMap, int newColInMap) {
 
         rowIndexInMap = newRowInMap;
         colIndexInMap = newColInMap;
-        elements = (T[][]) new Object[CHUNK_SIZE][];
-        for (int row = 0; row < CHUNK_SIZE; row++) {
-            elements[row] = (T[]) new Object[CHUNK_SIZE];
-        }
+        elements = (T[]) new Object[CHUNK_SIZE * CHUNK_SIZE];
+        nbElements = 0;
+        terrain = null;
+        terrainVersion = -1;
+        trackLayer = null;
+    }
+
+    /**
+     * Row of the first line of this chunk in the whole matrix.
+     */
+    protected int getFirstRow() {
+        return rowIndexInMap * CHUNK_SIZE;
+    }
+
+    /**
+     * Column of the first column of this chunk in the whole matrix.
+     */
+    protected int getFirstCol() {
+        return colIndexInMap * CHUNK_SIZE;
     }
 
     public T get(int row, int col) {
-        System.out.println("Chunk.get(" + row + ", " + col + ")");
-        return elements[row][col];
+        return elements[row * CHUNK_SIZE + col];
     }
 
     public void set(T newElem, int newRowNumber, int newColNumber) {
-        elements[newRowNumber][newColNumber] = newElem;
+        int index = newRowNumber * CHUNK_SIZE + newColNumber;
+        if (elements[index] == null && newElem != null) {
+            nbElements++;
+        } else if (elements[index] != null && newElem == null) {
+            nbElements--;
+        }
+        elements[index] = newElem;
+        trackLayer = null;
+    }
+
+    /**
+     * Number of non-null elements in this chunk.
+     */
+    public int size() {
+        return nbElements;
     }
 
     /**
-     * Return a list with all the non-null elements of this chunk.
+     * Return a list with all the non-null elements of this chunk, row by row.
      *
      * @return
      */
     public Collection<T> toList() {
         ArrayList<T> result = new ArrayList<>();
-        for (int row = 0; row < CHUNK_SIZE; row++) {
-            for (int col = 0; col < CHUNK_SIZE; col++) {
-                T element = elements[row][col];
-                if (element != null) {
-                    result.add((T) element);
-                }
-            }
+        if (nbElements == 0) {
+            return result;
         }
-        return result;
-    }
-
-    protected int getRow(T element) {
-        int result = Integer.MAX_VALUE;
-        for (int row = 0; row < CHUNK_SIZE; row++) {
-            for (int col = 0; col < CHUNK_SIZE; col++) {
-                try {
-                    if (get(row, col).equals(element)) {
-                        result = row;
-                    }
-                } catch (NullPointerException e) {
-
-                }
-            }
-        }
-        return result;
-    }
-
-    protected int getCol(T element) {
-        int result = Integer.MAX_VALUE;
-        for (int row = 0; row < CHUNK_SIZE; row++) {
-            for (int col = 0; col < CHUNK_SIZE; col++) {
-                try {
-                    if (get(row, col).equals(element)) {
-                        result = col;
-                    }
-                } catch (NullPointerException e) {
-
-                }
+        for (T element : elements) {
+            if (element != null) {
+                result.add(element);
             }
         }
         return result;
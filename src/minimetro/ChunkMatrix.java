@@ -7,34 +7,29 @@ import java.util.Collection;
  * @author arthu
  * This class represents the same data as a 2d m*n matrix, and groups elements
  * in square chunks that can be loaded independantly.
+ * The matrix has no bounds: the chunks are indexed by their position in a
+ * hash map, and row and column numbers may be negative.
  */
 public class ChunkMatrix<T> {
 
-    public static final int CHUNK_SIZE = 10;
+    public static final int CHUNK_SIZE = 32;
 
-    private ArrayList<Chunk> chunks;
+    private LongHashMap<Chunk<T>> chunks;
 
     public ChunkMatrix() {
-        chunks = new ArrayList<>();
+        chunks = new LongHashMap<>();
     }
 
-    private int getChunkRow(int rowNumber) {
-        int chunkRow = rowNumber / CHUNK_SIZE;
-        if (chunkRow < 0) {
-            chunkRow--;
-//            rowNumber += CHUNK_SIZE;
-        }
-        return chunkRow;
+    protected static int getChunkRow(int rowNumber) {
+        return Math.floorDiv(rowNumber, CHUNK_SIZE);
     }
 
-    private int getChunkCol(int colNumber) {
-        int chunkCol = colNumber / CHUNK_SIZE;
-        if (colNumber < 0) {
-            chunkCol--;
-//            colNumber += CHUNK_SIZE;
-        }
-//        System.out.println("ChunkMatrix.getChunk(" + colNumber + "): " + chunkCol);
-        return chunkCol;
+    protected static int getChunkCol(int colNumber) {
+        return Math.floorDiv(colNumber, CHUNK_SIZE);
+    }
+
+    protected static long getKey(int chunkRow, int chunkCol) {
+        return ((long) chunkRow << 32) | (chunkCol & 0xffffffffL);
     }
 
     /**
@@ -49,26 +44,15 @@ public class ChunkMatrix<T> {
      */
     public boolean generateChunkIfNeeded(int row, int col) {
 
-        boolean wasGeneratedNow = false;
-
         int chunkRow = getChunkRow(row);
         int chunkCol = getChunkCol(col);
+        long key = getKey(chunkRow, chunkCol);
 
-        if (getChunk(chunkRow, chunkCol) == null) {
-
-            Chunk newChunk = getChunk(chunkRow, chunkCol);
-            chunks.add(newChunk);
-            wasGeneratedNow = true;
+        if (chunks.containsKey(key)) {
+            return false;
         }
-        return wasGeneratedNow;
-    }
-
-    private int getCellRow(int chunkRow) {
-        return chunkRow * CHUNK_SIZE;
-    }
-
-    private int getCellCol(int chunkCol) {
-        return chunkCol * CHUNK_SIZE;
+        chunks.put(key, new Chunk<>(chunkRow, chunkCol));
+        return true;
     }
 
     /**
@@ -79,92 +63,76 @@ public class ChunkMatrix<T> {
      * @param chunkCol
      * @return the chunk if it exists, null otherwise.
      */
-    public Chunk getChunk(int chunkRow, int chunkCol) {
-        Chunk result = null;
-        for (Chunk c : chunks) {
-            if (c.rowIndexInMap == chunkRow && c.colIndexInMap == chunkCol) {
-                result = c;
-            }
-        }
-        return result;
+    public Chunk<T> getChunk(int chunkRow, int chunkCol) {
+        return chunks.get(getKey(chunkRow, chunkCol));
+    }
+
+    /**
+     * Get the chunk that contains the specified cell, without creating it.
+     *
+     * @param row
+     * @param col
+     * @return the chunk if it exists, null otherwise.
+     */
+    public Chunk<T> getChunkOf(int row, int col) {
+        return getChunk(getChunkRow(row), getChunkCol(col));
     }
 
     public T get(int row, int col) {
-        T result = null;
-        int chunkRow = getChunkRow(row);
-        int chunkCol = getChunkCol(col);
-        Chunk c = getChunk(chunkRow, chunkCol);
-        if (c != null) {
-            result = (T) c.get(row - CHUNK_SIZE * chunkRow, col - CHUNK_SIZE * chunkCol);
+        Chunk<T> c = getChunkOf(row, col);
+        if (c == null) {
+            return null;
         }
-        return result;
+        return c.get(Math.floorMod(row, CHUNK_SIZE), Math.floorMod(col, CHUNK_SIZE));
     }
 
+    /**
+     * Set an element, and create its chunk if needed.
+     *
+     * @param newElem the new element, or null to remove the current one.
+     * @param newRowNumber
+     * @param newColNumber
+     */
     public void set(T newElem, int newRowNumber, int newColNumber) {
-//        System.out.println("ChunkMatrix.set(" + newElem + ", " + newRowNumber + ", " + newColNumber + ");");
-        int chunkRow = getChunkRow(newRowNumber);
-        int chunkCol = getChunkCol(newColNumber);
-        Chunk newChunk = getChunk(chunkRow, chunkCol);
-
-        int rowInChunk = newRowNumber - CHUNK_SIZE * chunkRow;
-        int colInChunk = newColNumber - CHUNK_SIZE * chunkCol;
-        newChunk.set(newElem, rowInChunk, colInChunk);
-//        touchNeighboringChunks(chunkRow, chunkCol);
+        generateChunkIfNeeded(newRowNumber, newColNumber);
+        Chunk<T> chunk = getChunkOf(newRowNumber, newColNumber);
+        chunk.set(newElem, Math.floorMod(newRowNumber, CHUNK_SIZE), Math.floorMod(newColNumber, CHUNK_SIZE));
     }
 
-//    private void touchNeighboringChunks(int chunkRow, int chunkCol) {
-//
-//    }
-    protected Collection<T> toList() {
-        ArrayList<T> result = new ArrayList<>();
-        for (Chunk c : chunks) {
-            if (c == null) {
-                System.out.println("Error ChunkMatrix.toList()");
-            } else {
-                result.addAll(c.toList());
-            }
+    /**
+     * Remove the element at the specified position; the chunk and its terrain
+     * are kept.
+     */
+    public void remove(int row, int col) {
+        Chunk<T> chunk = getChunkOf(row, col);
+        if (chunk != null) {
+            chunk.set(null, Math.floorMod(row, CHUNK_SIZE), Math.floorMod(col, CHUNK_SIZE));
         }
-        return result;
     }
 
-    public int getRow(T element) {
-        for (Chunk c : chunks) {
-            int row = c.getRow(element);
-            if (row != Integer.MAX_VALUE) {
-                return row + CHUNK_SIZE * c.rowIndexInMap;
-            }
-        }
-        return Integer.MAX_VALUE;
+    /**
+     * Drop a whole chunk, with its elements and its terrain.
+     *
+     * @param chunkRow
+     * @param chunkCol
+     */
+    public void removeChunk(int chunkRow, int chunkCol) {
+        chunks.remove(getKey(chunkRow, chunkCol));
     }
 
-    public int getCol(T element) {
-        for (Chunk c : chunks) {
-            int col = c.getCol(element);
-            if (col != Integer.MAX_VALUE) {
-                return col + CHUNK_SIZE * c.colIndexInMap;
-            }
+    protected Collection<T> toList() {
+        ArrayList<T> result = new ArrayList<>();
+        for (Chunk<T> c : chunks) {
+            result.addAll(c.toList());
         }
-        return Integer.MAX_VALUE;
-    }
-
-    void remove(Cell oldCell) {
-        System.out.println("ChunkMatrix.remove: TODO");
+        return result;
     }
 
-    public ArrayList<Chunk> getAllChunks() {
-        return chunks;
+    public ArrayList<Chunk<T>> getAllChunks() {
+        return chunks.values();
     }
 
-    protected Chunk loadChunk(int chunkRow, int chunkCol) {
-        System.out.println("loading chunk " + chunkRow + ", " + chunkCol);
-        Chunk ch = getChunk(chunkRow, chunkCol);
-        // Create all cells within this chunk.
-        for (int cellRow = 0; cellRow < CHUNK_SIZE; cellRow++) {
-            for (int cellCol = 0; cellCol < CHUNK_SIZE; cellCol++) {
-                Cell cell = new Cell();
-                ch.set(cell, cellRow, cellCol);
-            }
-        }
-        return ch;
+    public int getNbChunks() {
+        return chunks.size();
     }
 }
@@ -0,0 +1,139 @@
+package minimetro;
+
+import java.util.ArrayList;
+import java.util.Set;
+
+/**
+ * A whole train: the elements that are linked together, directly or through
+ * other elements.
+ *
+ * @author arthu
+ */
+public class Consist {
+
+    private final int number;
+    private ArrayList<TrainElement> elements;
+    // Mode chosen for this train only; null to use the mode of the world.
+    private TrainMode mode;
+
+    public Consist(int newNumber) {
+        number = newNumber;
+        elements = new ArrayList<>();
+        mode = null;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    protected void add(TrainElement te) {
+        elements.add(te);
+        te.trainNumber = number;
+    }
+
+    protected void remove(TrainElement te) {
+        elements.remove(te);
+    }
+
+    /**
+     * Remove several elements in one pass.
+     *
+     * @param removed
+     */
+    protected void removeAll(Set<TrainElement> removed) {
+        elements.removeIf(removed::contains);
+    }
+
+    protected ArrayList<TrainElement> getElements() {
+        return elements;
+    }
+
+    protected int size() {
+        return elements.size();
+    }
+
+    protected TrainMode getMode() {
+        return mode;
+    }
+
+    protected void setMode(TrainMode newMode) {
+        mode = newMode;
+    }
+
+    /**
+     * Order the elements from one end of the train to the other.
+     *
+     * @return the elements in order, or null if the links form a loop.
+     */
+    protected TrainElement[] getChain() {
+        TrainElement first = null;
+        for (TrainElement te : elements) {
+            if (te.getNbLinks() < 2) {
+                first = te;
+                break;
+            }
+        }
+        if (first == null) {
+            return null;
+        }
+        TrainElement chain[] = new TrainElement[elements.size()];
+        chain[0] = first;
+        TrainLink previousLink = null;
+        for (int rank = 1; rank < chain.length; rank++) {
+            TrainElement current = chain[rank - 1];
+            TrainLink nextLink = null;
+            for (int linkRank = 0; linkRank < current.getNbLinks(); linkRank++) {
+                if (current.getLink(linkRank) != previousLink) {
+                    nextLink = current.getLink(linkRank);
+                }
+            }
+            if (nextLink == null) {
+                return null;
+            }
+            chain[rank] = nextLink.getOtherElement(current);
+            previousLink = nextLink;
+        }
+        return chain;
+    }
+
+    /**
+     * Get the links between the elements of a chain.
+     *
+     * @param chain the elements in order, as given by getChain()
+     * @return the link between element i and element i+1, at index i.
+     */
+    protected static TrainLink[] getChainLinks(TrainElement chain[]) {
+        TrainLink links[] = new TrainLink[chain.length - 1];
+        for (int rank = 0; rank < links.length; rank++) {
+            TrainElement current = chain[rank];
+            for (int linkRank = 0; linkRank < current.getNbLinks(); linkRank++) {
+                TrainLink link = current.getLink(linkRank);
+                if (link.getOtherElement(current) == chain[rank + 1]) {
+                    links[rank] = link;
+                }
+            }
+        }
+        return links;
+    }
+
+    protected void start() {
+        for (TrainElement te : elements) {
+            te.start();
+        }
+    }
+
+    protected void stop() {
+        for (TrainElement te : elements) {
+            te.stop();
+        }
+    }
+
+    @Override
+    public String toString() {
+        String text = "Consist " + number + ":";
+        for (TrainElement te : elements) {
+            text += " " + te.id;
+        }
+        return text;
+    }
+}
@@ -0,0 +1,105 @@
+package minimetro;
+
+import java.util.ArrayList;
+
+/**
+ * This class moves the trains in KINEMATIC mode: only the locomotive at the
+ * head of the train is simulated, and each wagon is placed along the path of
+ * the locomotive, at a fixed distance behind it.
+ *
+ * @author arthu
+ */
+public class ConsistFollower {
+
+    private ArrayList<Locomotive> heads;
+    private ArrayList<TrainElement[]> followers;
+    private ArrayList<double[]> offsets;
+    private ArrayList<TrackHistory> histories;
+
+    public ConsistFollower() {
+        heads = new ArrayList<>();
+        followers = new ArrayList<>();
+        offsets = new ArrayList<>();
+        histories = new ArrayList<>();
+    }
+
+    /**
+     * Stop handling all the trains; their wagons move by themselves again.
+     */
+    protected void clear() {
+        for (TrainElement elements[] : followers) {
+            for (TrainElement te : elements) {
+                te.isFollower = false;
+            }
+        }
+        heads.clear();
+        followers.clear();
+        offsets.clear();
+        histories.clear();
+    }
+
+    /**
+     * Handle a train, if it has a locomotive at one end.
+     *
+     * @param chain the elements in order, from one end to the other
+     * @param links the link between element i and element i+1, at index i
+     * @return true if the train is handled, false if it has no locomotive at
+     * its ends.
+     */
+    protected boolean addTrain(TrainElement chain[], TrainLink links[]) {
+        int n = chain.length;
+        boolean isReversed;
+        if (chain[0] instanceof Locomotive) {
+            isReversed = false;
+        } else if (chain[n - 1] instanceof Locomotive) {
+            isReversed = true;
+        } else {
+            return false;
+        }
+
+        // Order the train from the head to the tail.
+        TrainElement ordered[] = new TrainElement[n];
+        double trainOffsets[] = new double[n - 1];
+        double offset = 0;
+        for (int rank = 0; rank < n; rank++) {
+            ordered[rank] = isReversed ? chain[n - 1 - rank] : chain[rank];
+            if (rank > 0) {
+                TrainLink link = isReversed ? links[n - 1 - rank] : links[rank - 1];
+                offset += link.getDefaultLength();
+                trainOffsets[rank - 1] = offset;
+            }
+        }
+        TrainElement trainFollowers[] = new TrainElement[n - 1];
+        System.arraycopy(ordered, 1, trainFollowers, 0, n - 1);
+
+        // The current positions of the elements are the beginning of the path.
+        TrackHistory history = new TrackHistory(offset);
+        for (int rank = n - 1; rank >= 0; rank--) {
+            history.record(ordered[rank].getX(), ordered[rank].getY(), ordered[rank].getHeadingDeg());
+        }
+        for (TrainElement te : trainFollowers) {
+            te.isFollower = true;
+        }
+
+        heads.add((Locomotive) ordered[0]);
+        followers.add(trainFollowers);
+        offsets.add(trainOffsets);
+        histories.add(history);
+        return true;
+    }
+
+    /**
+     * Record the new position of each locomotive and place its wagons.
+     *
+     * @param store
+     */
+    protected void place(TrainPhysicsStore store) {
+        for (int rank = 0; rank < heads.size(); rank++) {
+            Locomotive loco = heads.get(rank);
+            TrackHistory history = histories.get(rank);
+            history.record(loco.getX(), loco.getY(), loco.getHeadingDeg());
+            history.place(loco.getX(), loco.getY(), followers.get(rank), offsets.get(rank),
+                    store, loco.getLinearSpeed());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package minimetro;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * This class keeps track of the trains of the world. It is updated each time
+ * an element is added or removed, and each time a link is created or removed.
+ *
+ * @author arthu
+ */
+public class ConsistRegistry {
+
+    private LinkedHashMap<Integer, Consist> consists;
+    private int nbConsistsCreated;
+    // Incremented each time an element or a link is added or removed.
+    private long version;
+
+    public ConsistRegistry() {
+        consists = new LinkedHashMap<>();
+        nbConsistsCreated = 0;
+        version = 0;
+    }
+
+    /**
+     * Register a new element, alone in its own train.
+     *
+     * @param te
+     */
+    protected void addElement(TrainElement te) {
+        version++;
+        Consist consist = createConsist();
+        consist.add(te);
+    }
+
+    /**
+     * Forget an element. Its links must have been removed first.
+     *
+     * @param te
+     */
+    protected void removeElement(TrainElement te) {
+        version++;
+        Consist consist = consists.get(te.trainNumber);
+        if (consist != null) {
+            consist.remove(te);
+            if (consist.size() == 0) {
+                consists.remove(consist.getNumber());
+            }
+        }
+        te.trainNumber = -1;
+    }
+
+    /**
+     * Attach a new link to its two elements, and merge their trains.
+     *
+     * @param link
+     */
+    protected void addLink(TrainLink link) {
+        version++;
+        TrainElement e0 = link.getElement(0);
+        TrainElement e1 = link.getElement(1);
+        e0.addLink(link);
+        e1.addLink(link);
+
+        Consist c0 = consists.get(e0.trainNumber);
+        Consist c1 = consists.get(e1.trainNumber);
+        if (c0 != null && c1 != null && c0 != c1) {
+            // The smaller train joins the larger one.
+            if (c0.size() < c1.size()) {
+                Consist swap = c0;
+                c0 = c1;
+                c1 = swap;
+            }
+            for (TrainElement te : c1.getElements()) {
+                c0.add(te);
+            }
+            consists.remove(c1.getNumber());
+        }
+    }
+
+    /**
+     * Detach a link from its two elements, and split their train if they are
+     * not linked any more.
+     *
+     * @param link
+     */
+    protected void removeLink(TrainLink link) {
+        version++;
+        TrainElement e0 = link.getElement(0);
+        TrainElement e1 = link.getElement(1);
+        e0.removeLink(link);
+        e1.removeLink(link);
+
+        Consist consist = consists.get(e0.trainNumber);
+        if (consist == null) {
+            return;
+        }
+        HashSet<TrainElement> firstPart = new HashSet<>();
+        collectLinkedElements(e0, firstPart);
+        if (!firstPart.contains(e1)) {
+            // The second part becomes a new train.
+            Consist newConsist = createConsist();
+            HashSet<TrainElement> secondPart = new HashSet<>();
+            ArrayList<TrainElement> secondElements = collectLinkedElements(e1, secondPart);
+            consist.removeAll(secondPart);
+            for (TrainElement te : secondElements) {
+                newConsist.add(te);
+            }
+        }
+    }
+
+    /**
+     * Get all the elements that can be reached from the given one by following
+     * the links.
+     *
+     * @param start
+     * @param visited filled with the same elements, for fast membership tests
+     * @return the elements, in the order they were reached.
+     */
+    private ArrayList<TrainElement> collectLinkedElements(TrainElement start, HashSet<TrainElement> visited) {
+        ArrayList<TrainElement> result = new ArrayList<>();
+        result.add(start);
+        visited.add(start);
+        for (int rank = 0; rank < result.size(); rank++) {
+            TrainElement current = result.get(rank);
+            for (int linkRank = 0; linkRank < current.getNbLinks(); linkRank++) {
+                TrainElement other = current.getLink(linkRank).getOtherElement(current);
+                if (visited.add(other)) {
+                    result.add(other);
+                }
+            }
+        }
+        return result;
+    }
+
+    private Consist createConsist() {
+        Consist consist = new Consist(nbConsistsCreated);
+        nbConsistsCreated++;
+        consists.put(consist.getNumber(), consist);
+        return consist;
+    }
+
+    protected long getVersion() {
+        return version;
+    }
+
+    protected Consist getConsist(int trainNumber) {
+        return consists.get(trainNumber);
+    }
+
+    protected Collection<Consist> getAllConsists() {
+        return consists.values();
+    }
+}
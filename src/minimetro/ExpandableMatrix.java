@@ -1,164 +1,237 @@
 package minimetro;
 
-import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * This class behaves like a 2d matrix where a row or column may be added before
  * or after existing elements.
  *
+ * The elements are stored in one array, with an offset between the indices of
+ * the matrix (which may be negative) and those of the array. When an element is
+ * set outside of the array, its capacity is doubled in that dimension and the
+ * existing elements are placed in the middle, so that the next rows or columns
+ * can be added on either side without copying.
+ *
  * @author arthu
  */
-public class ExpandableMatrix<T> implements Iterable {
+public class ExpandableMatrix<T> implements Iterable<T> {
+
+    private static final int DEFAULT_CAPACITY = 8;
+
+    private Object elements[];
+    private int rowCapacity, colCapacity;
+    // Index in the array = index in the matrix + offset.
+    private int rowOffset, colOffset;
 
+    // Bounds of the part of the matrix where elements were set; empty when first > last.
     private int firstRowIndex;
     private int firstColIndex;
     private int lastRowIndex;
     private int lastColIndex;
 
-    private ArrayList<ArrayList<T>> elements;
+    private int nbElements;
 
     public ExpandableMatrix() {
+        rowCapacity = DEFAULT_CAPACITY;
+        colCapacity = DEFAULT_CAPACITY;
+        elements = new Object[rowCapacity * colCapacity];
+        rowOffset = DEFAULT_CAPACITY / 2;
+        colOffset = DEFAULT_CAPACITY / 2;
         firstRowIndex = 0;
         firstColIndex = 0;
-        elements = new ArrayList<>();
-        elements.add(new ArrayList<>());
+        lastRowIndex = -1;
+        lastColIndex = -1;
+        nbElements = 0;
     }
 
+    /**
+     * Set an element, and extend the matrix if needed.
+     *
+     * @param newElem the new element, null to remove the current one.
+     * @param row
+     * @param col
+     */
     public void set(T newElem, int row, int col) {
-
-    }
-
-    private void ensureCapacity(int neededRow, int neededCol) {
-        while (neededRow > lastRowIndex) {
-            addRow(false);
-        }
-        while (neededRow < firstRowIndex) {
-            addRow(true);
+        if (newElem == null) {
+            remove(row, col);
+            return;
         }
-        while (neededCol > lastColIndex) {
-            addCol(false);
+        ensureCapacity(row, col);
+        int index = (row + rowOffset) * colCapacity + col + colOffset;
+        if (elements[index] == null) {
+            nbElements++;
         }
-        while (neededCol < firstColIndex) {
-            addCol(true);
+        elements[index] = newElem;
+
+        if (firstRowIndex > lastRowIndex) {
+            firstRowIndex = row;
+            lastRowIndex = row;
+            firstColIndex = col;
+            lastColIndex = col;
+        } else {
+            firstRowIndex = Math.min(firstRowIndex, row);
+            lastRowIndex = Math.max(lastRowIndex, row);
+            firstColIndex = Math.min(firstColIndex, col);
+            lastColIndex = Math.max(lastColIndex, col);
         }
     }
 
+    /**
+     * Get an element.
+     *
+     * @param row
+     * @param col
+     * @return the element, or null if none was set at that place.
+     */
     public T get(int row, int col) {
-        ensureCapacity(row, col);
-        return elements.get(row).get(col);
-    }
-
-    public int getRow(T elem) {
-        return getRowOrCol(elem, true);
+        int r = row + rowOffset;
+        int c = col + colOffset;
+        // A single test for the four borders: any index outside gives a negative value.
+        if ((r | c | (rowCapacity - 1 - r) | (colCapacity - 1 - c)) < 0) {
+            return null;
+        }
+        return (T) elements[r * colCapacity + c];
     }
 
-    public int getCol(T elem) {
-        return getRowOrCol(elem, false);
+    public void remove(int row, int col) {
+        int r = row + rowOffset;
+        int c = col + colOffset;
+        if ((r | c | (rowCapacity - 1 - r) | (colCapacity - 1 - c)) < 0) {
+            return;
+        }
+        int index = r * colCapacity + c;
+        if (elements[index] != null) {
+            elements[index] = null;
+            nbElements--;
+        }
     }
 
-    private int getRowOrCol(T elem, boolean rowRequested) {
-        for (int row = firstRowIndex; row < lastRowIndex; row++) {
-            int rowInTab = row - firstRowIndex;
+    /**
+     * Make the array large enough to contain the specified place.
+     */
+    private void ensureCapacity(int neededRow, int neededCol) {
+        int r = neededRow + rowOffset;
+        int c = neededCol + colOffset;
+        if (r >= 0 && r < rowCapacity && c >= 0 && c < colCapacity) {
+            return;
+        }
 
-            for (int col = firstColIndex; col < lastColIndex; col++) {
-                int colInTab = col - firstColIndex;
+        int newRowCapacity = rowCapacity;
+        int newRowOffset = rowOffset;
+        if (r < 0 || r >= rowCapacity) {
+            int minRow = Math.min(neededRow, -rowOffset);
+            int maxRow = Math.max(neededRow, rowCapacity - 1 - rowOffset);
+            int height = maxRow - minRow + 1;
+            newRowCapacity = Math.max(2 * rowCapacity, 2 * height);
+            // Center the used rows in the new array.
+            newRowOffset = (newRowCapacity - height) / 2 - minRow;
+        }
+        int newColCapacity = colCapacity;
+        int newColOffset = colOffset;
+        if (c < 0 || c >= colCapacity) {
+            int minCol = Math.min(neededCol, -colOffset);
+            int maxCol = Math.max(neededCol, colCapacity - 1 - colOffset);
+            int width = maxCol - minCol + 1;
+            newColCapacity = Math.max(2 * colCapacity, 2 * width);
+            newColOffset = (newColCapacity - width) / 2 - minCol;
+        }
 
-                if (elements.get(rowInTab).get(colInTab).equals(elem)) {
-                    if (rowRequested) {
-                        return row;
-                    } else {
-                        return col;
-                    }
-                }
-            }
+        Object newElements[] = new Object[newRowCapacity * newColCapacity];
+        for (int oldR = 0; oldR < rowCapacity; oldR++) {
+            int newR = oldR - rowOffset + newRowOffset;
+            System.arraycopy(elements, oldR * colCapacity,
+                    newElements, newR * newColCapacity - colOffset + newColOffset, colCapacity);
         }
-        return Integer.MAX_VALUE;
+        elements = newElements;
+        rowCapacity = newRowCapacity;
+        colCapacity = newColCapacity;
+        rowOffset = newRowOffset;
+        colOffset = newColOffset;
     }
 
-    private void addRow(boolean addAtBeginning) {
-        ArrayList<T> newRow = new ArrayList<>(getWidth());
-        if (addAtBeginning) {
-            elements.add(0, newRow);
-            firstRowIndex--;
-        } else {
-            elements.add(newRow);
-        }
+    public int getFirstRow() {
+        return firstRowIndex;
     }
 
-    private void addCol(boolean addAtBeginning) {
-        int index;
-        // 0 for beginning, width for end.
-        if (addAtBeginning) {
-            index = 0;
-            firstColIndex--;
-        } else {
-            index = getWidth();
-        }
+    public int getLastRow() {
+        return lastRowIndex;
+    }
 
-        for (ArrayList row : elements) {
-            row.add(index, null);
-        }
+    public int getFirstCol() {
+        return firstColIndex;
     }
 
-    private int getWidth() {
+    public int getLastCol() {
+        return lastColIndex;
+    }
+
+    public int getWidth() {
         return lastColIndex - firstColIndex + 1;
     }
 
-    private int getHeight() {
+    public int getHeight() {
         return lastRowIndex - firstRowIndex + 1;
     }
 
-    @Override
-    public Iterator iterator() {
-        return new ExpandableMatrixIterator<>();
-
+    /**
+     * Number of non-null elements.
+     */
+    public int size() {
+        return nbElements;
     }
 
-    public void remove(T elem) {
-        ArrayList<T> selectedRow = null;
-        int selectedCol = -1;
-        for (int row = 0; row < getHeight(); row++) {
-            for (int col = 0; col < getWidth(); col++) {
-                if (elements.get(row).get(col).equals(elem)) {
-                    selectedRow = elements.get(row);
-                    selectedCol = col;
-                }
-            }
-        }
-        if (selectedRow != null) {
-            selectedRow.remove(selectedCol);
-        }
+    /**
+     * Iterate over the non-null elements, row by row, directly in the array.
+     * The matrix must not be extended during the iteration.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new ExpandableMatrixIterator();
     }
 
-    private class ExpandableMatrixIterator<T> implements Iterator<T> {
+    private class ExpandableMatrixIterator implements Iterator<T> {
 
+        // Position of the next element in the matrix.
         private int row, col;
 
         public ExpandableMatrixIterator() {
-            row = 0;
-            col = 0;
+            row = firstRowIndex;
+            col = firstColIndex;
+            findNext();
+        }
+
+        /**
+         * Move to the first non-null element at or after the current position.
+         */
+        private void findNext() {
+            while (row <= lastRowIndex) {
+                int rowStart = (row + rowOffset) * colCapacity + colOffset;
+                while (col <= lastColIndex) {
+                    if (elements[rowStart + col] != null) {
+                        return;
+                    }
+                    col++;
+                }
+                row++;
+                col = firstColIndex;
+            }
         }
 
         @Override
         public boolean hasNext() {
-            return row < elements.size() && col < elements.get(0).size();
+            return row <= lastRowIndex;
         }
 
         @Override
         public T next() {
-            if (row == elements.size() - 1) {
-                if (col == elements.get(0).size() - 1) {
-                    // Already at last position
-                    return null;
-                }
-                // Last element of a row, need to go to the next row
-                row++;
-                col = 0;
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
-            // Go to the next element of the same line.
+            T result = (T) elements[(row + rowOffset) * colCapacity + col + colOffset];
             col++;
-            return (T) elements.get(row).get(col);
+            findNext();
+            return result;
         }
     }
 }
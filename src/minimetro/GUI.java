@@ -79,6 +79,8 @@ public class GUI extends JFrame implements PropertyChangeListener {
         noiseWindow = new NoiseSettingsWindow(world);
 
         world.addPropertyChangeListener("currentStep", panel);
+        // Repaint when the terrain of a chunk is ready.
+        world.addPropertyChangeListener("terrain", panel);
         this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         this.setSize(new Dimension(windowWidth, windowHeight));
         this.setVisible(true);
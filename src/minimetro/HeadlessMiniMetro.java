@@ -0,0 +1,127 @@
+package minimetro;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+/**
+ * Run a saved world without any display, and report the engine throughput.
+ *
+ * Usage: HeadlessMiniMetro savedFile [-steps N | -seconds S] [-realtime] [-parallel]
+ * [-implicit | -kinematic] [-track] [-dt DT]
+ *
+ * -steps N: run N steps (default 1000);
+ * -seconds S: run S simulated seconds;
+ * -realtime: keep pace with the wall clock instead of running as fast as possible;
+ * -parallel: run the cell-local phases of each step on several threads;
+ * -implicit: solve the links of each train implicitly;
+ * -kinematic: only simulate the locomotives, the wagons follow their path;
+ * -track: move the elements along the rails by distance;
+ * -dt DT: simulated duration of one step, in seconds.
+ *
+ * @author arthu
+ */
+public class HeadlessMiniMetro {
+
+    private static final long DEFAULT_NB_STEPS = 1000;
+
+    public static void main(String[] args) {
+
+        if (args.length < 1) {
+            System.out.println("Usage: HeadlessMiniMetro savedFile [-steps N | -seconds S] [-realtime] [-parallel]"
+                    + " [-implicit | -kinematic] [-track] [-dt DT]");
+            return;
+        }
+
+        String fileName = args[0];
+        long nbSteps = DEFAULT_NB_STEPS;
+        double simulatedSeconds = -1;
+        boolean isFastMode = true;
+        boolean isParallel = false;
+        boolean isTrackRelative = false;
+        TrainMode trainMode = TrainMode.EXPLICIT;
+        double dt = -1;
+
+        // Kept out of the loop, to name the option whose value is wrong.
+        int rank = 1;
+        try {
+            for (; rank < args.length; rank++) {
+                switch (args[rank]) {
+                case "-steps":
+                    rank++;
+                    nbSteps = Long.valueOf(args[rank]);
+                    break;
+                case "-seconds":
+                    rank++;
+                    simulatedSeconds = Double.valueOf(args[rank]);
+                    break;
+                case "-realtime":
+                    isFastMode = false;
+                    break;
+                case "-parallel":
+                    isParallel = true;
+                    break;
+                case "-implicit":
+                    trainMode = TrainMode.IMPLICIT;
+                    break;
+                case "-kinematic":
+                    trainMode = TrainMode.KINEMATIC;
+                    break;
+                case "-track":
+                    isTrackRelative = true;
+                    break;
+                case "-dt":
+                    rank++;
+                    dt = Double.valueOf(args[rank]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[rank]);
+                    return;
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // rank is on the value that could not be read, or past the end when it is missing.
+            System.out.println("Wrong value for option " + args[rank - 1]);
+            return;
+        }
+
+        World world = new World(10, 10, true);
+        try {
+            Scanner scanner = new Scanner(new File(fileName));
+            // The file starts with the settings of the panel, which are not needed here.
+            while (scanner.hasNextLine() && !scanner.hasNext("seed")) {
+                scanner.nextLine();
+            }
+            world.load(scanner);
+        } catch (FileNotFoundException ex) {
+            System.out.println("No file named <" + fileName + ">");
+            return;
+        } catch (NoSuchElementException ex) {
+            System.out.println("File <" + fileName + "> is not a valid saved world.");
+            return;
+        }
+        world.setParallelStepping(isParallel);
+        world.setTrainMode(trainMode);
+        world.setTrackRelativePositioning(isTrackRelative);
+        if (dt > 0) {
+            world.setSimulationDt(dt);
+        }
+
+        SimulationEngine engine = new SimulationEngine(world);
+        engine.setFastMode(isFastMode);
+        if (simulatedSeconds >= 0) {
+            engine.setMaxSimulatedTime(simulatedSeconds);
+        } else {
+            engine.setMaxNbSteps(nbSteps);
+        }
+
+        engine.start();
+        engine.join();
+
+        System.out.println("Steps: " + engine.getNbStepsDone()
+                + ", simulated time: " + engine.getNbStepsDone() * world.getSimulationDt() + " s"
+                + ", real time: " + engine.getElapsedSeconds() + " s"
+                + ", steps per second: " + engine.getStepsPerSecond());
+    }
+}
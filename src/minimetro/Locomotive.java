@@ -14,12 +14,12 @@ public class Locomotive extends TrainElement {
 
     protected double motorPower;
 
-    public Locomotive(int newId) {
-        super(newId);
-        maxSpeed = 300.0;
+    public Locomotive(TrainPhysicsStore store, int newId) {
+        super(store, newId);
+        setMaxSpeed(300.0);
         motorPower = 30.0;
         color = Color.red;
-        mass = 10;
+        setMass(10);
         imagePath = "src\\img\\Locomotive.png";
         loadImage();
     }
@@ -29,8 +29,8 @@ public class Locomotive extends TrainElement {
      *
      * @param newAbsolutePosition
      */
-    public Locomotive(Point2D.Double newAbsolutePosition) {
-        this(-1, newAbsolutePosition);
+    public Locomotive(TrainPhysicsStore store, Point2D.Double newAbsolutePosition) {
+        this(store, -1, newAbsolutePosition);
     }
 
     /**
@@ -39,9 +39,9 @@ public class Locomotive extends TrainElement {
      * @param newId
      * @param newAbsolutePosition
      */
-    public Locomotive(int newId, Point2D.Double newAbsolutePosition) {
-        this(newId);
-        this.absolutePosition = newAbsolutePosition;
+    public Locomotive(TrainPhysicsStore store, int newId, Point2D.Double newAbsolutePosition) {
+        this(store, newId);
+        setPosition(newAbsolutePosition.x, newAbsolutePosition.y);
     }
 
     @Override
@@ -49,6 +49,7 @@ public class Locomotive extends TrainElement {
         super.paint(g, x0, y0, zoom);
         g.setColor(Color.black);
 
+        double linearSpeed = getLinearSpeed();
         String linearSpeedText = linearSpeed + "";
         if (abs(linearSpeed) > 0.001) {
             int rankOfDot = linearSpeedText.indexOf(".");
@@ -62,8 +63,8 @@ public class Locomotive extends TrainElement {
         if (stopTimerDuration > 0) {
             text += (" STOP " + (int) stopTimerDuration);
         }
-        int xCenter = (int) (x0 + zoom * this.absolutePosition.x);
-        int yCenter = (int) (g.getClipBounds().height - (y0 + zoom * this.absolutePosition.y));
+        int xCenter = (int) (x0 + zoom * getX());
+        int yCenter = (int) (g.getClipBounds().height - (y0 + zoom * getY()));
         g.setColor(Color.black);
         g.setFont(new Font("helvetica", Font.PLAIN, 15));
         g.drawString(text, xCenter + 3 * (int) zoom, yCenter + 3 * (int) zoom);
@@ -82,8 +83,8 @@ public class Locomotive extends TrainElement {
     @Override
     public void computeMotorForce(double dt) {
 
-        double dx = Math.cos(getHeadingRad());
-        double dy = Math.sin(getHeadingRad());
+        double dx = getUx();
+        double dy = getUy();
         double fx = 0, fy = 0;
 
         if (isBraking || stopTimerDuration > 0) {
@@ -93,19 +94,8 @@ public class Locomotive extends TrainElement {
             fx += motorPower * dx;
             fy += motorPower * dy;
         }
-        currentForce = new Point2D.Double(fx, fy);
-    }
-
-    @Override
-    protected void computeNewSpeed(double dt) {
-
-        super.computeNewSpeed(dt);
-
-        // Limit the speed.
-        if (linearSpeed > maxSpeed) {
-            double ratio = linearSpeed / maxSpeed;
-            linearSpeed = linearSpeed / ratio;
-        }
+        physics.fx[slot] = fx;
+        physics.fy[slot] = fy;
     }
 
     @Override
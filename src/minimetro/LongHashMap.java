@@ -0,0 +1,183 @@
+package minimetro;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A hash map with primitive long keys, without boxing.
+ *
+ * Open addressing with linear probing; a null value marks a free slot, so null
+ * values cannot be stored.
+ *
+ * @author arthu
+ */
+public class LongHashMap<V> implements Iterable<V> {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long keys[];
+    private Object values[];
+    private int size;
+    private int mask;
+
+    public LongHashMap() {
+        keys = new long[DEFAULT_CAPACITY];
+        values = new Object[DEFAULT_CAPACITY];
+        mask = DEFAULT_CAPACITY - 1;
+        size = 0;
+    }
+
+    /**
+     * Spread the bits of the key, so that neighboring keys do not use
+     * neighboring slots.
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private int findSlot(long key) {
+        int slot = hash(key) & mask;
+        while (values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public V get(long key) {
+        return (V) values[findSlot(key)];
+    }
+
+    public boolean containsKey(long key) {
+        return values[findSlot(key)] != null;
+    }
+
+    /**
+     * Associate a value with a key.
+     *
+     * @param key
+     * @param value must not be null
+     * @return the previous value for this key, or null if there was none.
+     */
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("LongHashMap cannot store null values.");
+        }
+        int slot = findSlot(key);
+        V previous = (V) values[slot];
+        keys[slot] = key;
+        values[slot] = value;
+        if (previous == null) {
+            size++;
+            // Keep the table at most half full.
+            if (2 * size > values.length) {
+                resize(2 * values.length);
+            }
+        }
+        return previous;
+    }
+
+    public V remove(long key) {
+        int slot = findSlot(key);
+        V previous = (V) values[slot];
+        if (previous == null) {
+            return null;
+        }
+        values[slot] = null;
+        size--;
+        // Move back the following entries of the probe sequence, so that none
+        // of them is separated from its ideal slot by the new hole.
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while (values[next] != null) {
+            int ideal = hash(keys[next]) & mask;
+            if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                values[next] = null;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return previous;
+    }
+
+    private void resize(int newCapacity) {
+        long oldKeys[] = keys;
+        Object oldValues[] = values;
+        keys = new long[newCapacity];
+        values = new Object[newCapacity];
+        mask = newCapacity - 1;
+        for (int slot = 0; slot < oldValues.length; slot++) {
+            if (oldValues[slot] != null) {
+                int newSlot = findSlot(oldKeys[slot]);
+                keys[newSlot] = oldKeys[slot];
+                values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        for (int slot = 0; slot < values.length; slot++) {
+            values[slot] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Get all the values, in no particular order.
+     *
+     * @return a new list
+     */
+    public ArrayList<V> values() {
+        ArrayList<V> result = new ArrayList<>(size);
+        for (V value : this) {
+            result.add(value);
+        }
+        return result;
+    }
+
+    /**
+     * Iterate over the values, in no particular order. The map must not be
+     * modified during the iteration.
+     */
+    @Override
+    public Iterator<V> iterator() {
+        return new Iterator<V>() {
+            private int slot = advance(0);
+
+            private int advance(int from) {
+                while (from < values.length && values[from] == null) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return slot < values.length;
+            }
+
+            @Override
+            public V next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                V value = (V) values[slot];
+                slot = advance(slot + 1);
+                return value;
+            }
+        };
+    }
+}
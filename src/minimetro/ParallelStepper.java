@@ -0,0 +1,170 @@
+package minimetro;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class runs the phases of a simulation step on several threads.
+ *
+ * Each phase is split into fork-join tasks over partitions of the active
+ * cells, of the physics store slots or of the links. A task only writes to
+ * the cells, slots or buffer entries of its own partition. Effects that cross
+ * cell boundaries are kept in buffers (the trains and passengers leaving each
+ * cell, the force of each link) and committed serially by the caller, in a
+ * fixed order, so that a parallel step gives the same result as a serial one.
+ *
+ * @author arthu
+ */
+public class ParallelStepper {
+
+    // Below these sizes, a partition is processed by the current thread.
+    private static final int CELLS_PER_TASK = 16;
+    private static final int SLOTS_PER_TASK = 1024;
+    private static final int LINKS_PER_TASK = 256;
+
+    private final ForkJoinPool pool;
+
+    // Force applied by each link on its first element: x at 2*rank, y at 2*rank+1.
+    private double linkForces[];
+
+    public ParallelStepper() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelStepper(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+        linkForces = new double[64];
+    }
+
+    /**
+     * Apply one phase to all the specified cells.
+     *
+     * @param phase
+     * @param cells
+     * @param nbCells only the first nbCells entries of the array are used
+     * @param dt
+     */
+    protected void runPhase(StepPhase phase, Cell cells[], int nbCells, double dt) {
+        pool.invoke(new CellPhaseTask(phase, cells, 0, nbCells, dt));
+    }
+
+    protected void resetForces(TrainPhysicsStore store) {
+        pool.invoke(new SlotTask(store, false, 0, 0, store.getSlotLimit()));
+    }
+
+    protected void integrateSpeeds(TrainPhysicsStore store, double dt) {
+        pool.invoke(new SlotTask(store, true, dt, 0, store.getSlotLimit()));
+    }
+
+    /**
+     * Compute the force of every link in parallel, then apply them to the
+     * elements in the order of the list.
+     *
+     * @param links
+     */
+    protected void applyLinkForces(ArrayList<TrainLink> links) {
+        int nbLinks = links.size();
+        if (linkForces.length < 2 * nbLinks) {
+            linkForces = Arrays.copyOf(linkForces, 4 * nbLinks);
+        }
+        pool.invoke(new LinkTask(links, 0, nbLinks));
+
+        // Serial merge
+        for (int rank = 0; rank < nbLinks; rank++) {
+            links.get(rank).applyComputedForce(linkForces[2 * rank], linkForces[2 * rank + 1]);
+        }
+    }
+
+    private class CellPhaseTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final StepPhase phase;
+        private final Cell cells[];
+        private final int first, lastExcluded;
+        private final double dt;
+
+        CellPhaseTask(StepPhase phase, Cell cells[], int first, int lastExcluded, double dt) {
+            this.phase = phase;
+            this.cells = cells;
+            this.first = first;
+            this.lastExcluded = lastExcluded;
+            this.dt = dt;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastExcluded - first <= CELLS_PER_TASK) {
+                for (int rank = first; rank < lastExcluded; rank++) {
+                    phase.apply(cells[rank], dt);
+                }
+            } else {
+                int middle = (first + lastExcluded) >>> 1;
+                invokeAll(new CellPhaseTask(phase, cells, first, middle, dt),
+                        new CellPhaseTask(phase, cells, middle, lastExcluded, dt));
+            }
+        }
+    }
+
+    private class SlotTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TrainPhysicsStore store;
+        private final boolean mustIntegrate; // false: reset the forces.
+        private final double dt;
+        private final int first, lastExcluded;
+
+        SlotTask(TrainPhysicsStore store, boolean mustIntegrate, double dt, int first, int lastExcluded) {
+            this.store = store;
+            this.mustIntegrate = mustIntegrate;
+            this.dt = dt;
+            this.first = first;
+            this.lastExcluded = lastExcluded;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastExcluded - first <= SLOTS_PER_TASK) {
+                if (mustIntegrate) {
+                    store.integrateSpeeds(dt, first, lastExcluded);
+                } else {
+                    store.resetForces(first, lastExcluded);
+                }
+            } else {
+                int middle = (first + lastExcluded) >>> 1;
+                invokeAll(new SlotTask(store, mustIntegrate, dt, first, middle),
+                        new SlotTask(store, mustIntegrate, dt, middle, lastExcluded));
+            }
+        }
+    }
+
+    private class LinkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<TrainLink> links;
+        private final int first, lastExcluded;
+
+        LinkTask(ArrayList<TrainLink> links, int first, int lastExcluded) {
+            this.links = links;
+            this.first = first;
+            this.lastExcluded = lastExcluded;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastExcluded - first <= LINKS_PER_TASK) {
+                for (int rank = first; rank < lastExcluded; rank++) {
+                    links.get(rank).computeForce(linkForces, 2 * rank);
+                }
+            } else {
+                int middle = (first + lastExcluded) >>> 1;
+                invokeAll(new LinkTask(links, first, middle),
+                        new LinkTask(links, middle, lastExcluded));
+            }
+        }
+    }
+}
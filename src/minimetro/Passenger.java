@@ -23,6 +23,9 @@ public class Passenger {
     private static int NB_PASSENGERS_CREATED = 0;
     protected int id;
     private ArrayList<Integer> path; // First entry is the destination, last entry is the next stop.
+    // Station and network version for which the path was last computed; -1 when it must be computed again.
+    private int pathOriginId;
+    private long pathVersion;
 
     public Passenger() {
         this(-1, Double.MAX_VALUE, Double.MAX_VALUE);
@@ -45,6 +48,8 @@ public class Passenger {
             NB_PASSENGERS_CREATED++;
         }
         path = new ArrayList<>();
+        pathOriginId = -1;
+        pathVersion = -1;
         x = newX;
         y = newY;
         if (newTargetStationId >= 0) {
@@ -121,11 +126,44 @@ public class Passenger {
 
     void clearPath() {
         path.clear();
+        pathVersion = -1;
     }
 
     protected void addPathStep(int newStep) {
         path.add(newStep);
         computeColor(path.get(0));
+        pathVersion = -1;
+    }
+
+    /**
+     * Replace the path with the next stop given by the WorldMap, followed by
+     * the destination.
+     *
+     * @param nextStop the id of the next station, which may be the destination
+     */
+    protected void setNextStop(int nextStop) {
+        path.clear();
+        path.add(targetStationId);
+        if (nextStop != targetStationId) {
+            path.add(nextStop);
+        }
+        computeColor(targetStationId);
+    }
+
+    /**
+     * Remember that the path is valid from the given station as long as the
+     * network does not change.
+     *
+     * @param originId
+     * @param networkVersion
+     */
+    protected void setPathStamp(int originId, long networkVersion) {
+        pathOriginId = originId;
+        pathVersion = networkVersion;
+    }
+
+    protected boolean isPathUpToDate(int originId, long networkVersion) {
+        return pathVersion == networkVersion && pathOriginId == originId;
     }
 
     protected int getFirstPathStep() {
@@ -146,6 +184,7 @@ public class Passenger {
         if (!path.isEmpty()) {
             path.remove(0);
         }
+        pathVersion = -1;
     }
 
     protected String getItineraryToString() {
@@ -163,6 +202,7 @@ public class Passenger {
      */
     protected void removeStationFromPath(int stationId) {
         path.remove((Integer) stationId);
+        pathVersion = -1;
     }
 
     protected void setSpeed(double newVx, double newVy) {
@@ -1,21 +1,28 @@
 package minimetro;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
+ * Multi-level gradient noise.
+ *
+ * The gradient of each node of the noise grid is computed from a hash of the
+ * seed and of the node position, so getNoise has no shared state and may be
+ * called from several threads at once.
  *
  * @author arthu
  */
 public class PerlinNoise {
 
-    private static long seed = 264305296l;
-    protected static Random r;
+    private final long seed;
+    // Only used to initialize the subclasses; the gradients do not depend on it.
+    protected final Random r;
 
     // The largest spatial period of the noise, i.e. the smallest frequency
     private double largestSpatialPeriod;
 
-    private ArrayList<Integer> amplitudesPercentagesList;
+    // Amplitude of each level, 1 for 100%.
+    private double amplitudes[];
     private int nbLevels = 7;
 
     public PerlinNoise(double initLargestSpatialPeriod, long newSeed) {
@@ -24,9 +31,9 @@ public class PerlinNoise {
         r = new Random(seed);
 
         // Set all harmonics to 100%.
-        amplitudesPercentagesList = new ArrayList<>(nbLevels);
+        amplitudes = new double[nbLevels];
         for (int level = 0; level < nbLevels; level++) {
-            amplitudesPercentagesList.add(level, 100);
+            amplitudes[level] = 1;
         }
     }
 
@@ -35,8 +42,7 @@ public class PerlinNoise {
         double spatialPeriod = largestSpatialPeriod;
         double divisor = 1;
         for (int level = 0; level < nbLevels; level++) {
-            double amplitude = ((double) amplitudesPercentagesList.get(level)) / 100;
-            result += amplitude * getNoise(x, y, spatialPeriod) / divisor;
+            result += amplitudes[level] * getNoise(x, y, spatialPeriod) / divisor;
             spatialPeriod = spatialPeriod / 2;
             divisor = divisor * 2;
         }
@@ -45,17 +51,9 @@ public class PerlinNoise {
 
     public double getNoise(double x, double y, double currentScale) {
 
-        // Position of the cell in the noise grid
-        int perlinCol = (int) (x / currentScale);
-        int perlinRow = (int) (y / currentScale);
-
-        // Fix the negative x or y parts of the map.
-        if (x < 0) {
-            perlinCol--;
-        }
-        if (y < 0) {
-            perlinRow--;
-        }
+        // Position of the cell in the noise grid, also for the negative x or y parts of the map.
+        int perlinCol = (int) Math.floor(x / currentScale);
+        int perlinRow = (int) Math.floor(y / currentScale);
 
         double dotSW = dotprod(perlinRow, perlinCol, x, y, currentScale);
         double dotSE = dotprod(perlinRow, perlinCol + 1, x, y, currentScale);
@@ -79,6 +77,132 @@ public class PerlinNoise {
         return result;
     }
 
+    /**
+     * Compute the noise of a whole rectangular tile of regularly spaced
+     * points; the point (row, col) of the tile is at (x0 + col * dx, y0 + row
+     * * dy), and its value is getNoise(x, y) within float precision.
+     *
+     * @param result receives the value of the point (row, col) at index row *
+     * nbCols + col
+     * @param nbRows
+     * @param nbCols
+     * @param x0
+     * @param y0
+     * @param dx
+     * @param dy
+     */
+    public void fillTile(float result[], int nbRows, int nbCols, double x0, double y0, double dx, double dy) {
+        float levels[][] = new float[nbLevels][nbRows * nbCols];
+        for (int level = 0; level < nbLevels; level++) {
+            fillLevel(levels[level], level, nbRows, nbCols, x0, y0, dx, dy);
+        }
+        combineLevels(levels, result);
+    }
+
+    public int getNbLevels() {
+        return nbLevels;
+    }
+
+    /**
+     * Compute one level of the noise for a whole tile, without its amplitude,
+     * so that the tile may be combined again when the amplitudes change.
+     *
+     * The position of the samples in the noise grid along x is computed once
+     * for the tile, and the gradients of the grid nodes once per row, so that
+     * the inner loop only reads arrays.
+     *
+     * @param result receives the raw noise of the point (row, col) at index
+     * row * nbCols + col
+     * @param level 0 for the largest spatial period
+     * @param nbRows
+     * @param nbCols
+     * @param x0
+     * @param y0
+     * @param dx
+     * @param dy
+     */
+    public void fillLevel(float result[], int level, int nbRows, int nbCols, double x0, double y0, double dx, double dy) {
+        double scale = largestSpatialPeriod / (1 << level);
+
+        // Along x, the samples are at the same place in the noise grid on every row.
+        int perlinCols[] = new int[nbCols];
+        double xPs[] = new double[nbCols];
+        double offsetsWest[] = new double[nbCols];
+        double offsetsEast[] = new double[nbCols];
+        int perlinColMin = Integer.MAX_VALUE;
+        int perlinColMax = Integer.MIN_VALUE;
+        for (int col = 0; col < nbCols; col++) {
+            double x = x0 + col * dx;
+            int perlinCol = (int) Math.floor(x / scale);
+            perlinCols[col] = perlinCol;
+            xPs[col] = x / scale - perlinCol;
+            offsetsWest[col] = ((perlinCol) * scale - x) / scale;
+            offsetsEast[col] = ((perlinCol + 1) * scale - x) / scale;
+            perlinColMin = Math.min(perlinColMin, perlinCol);
+            perlinColMax = Math.max(perlinColMax, perlinCol);
+        }
+
+        // Gradients of the nodes south and north of the current row.
+        int nbNodes = perlinColMax - perlinColMin + 2;
+        double gradXSouth[] = new double[nbNodes];
+        double gradYSouth[] = new double[nbNodes];
+        double gradXNorth[] = new double[nbNodes];
+        double gradYNorth[] = new double[nbNodes];
+        int currentPerlinRow = Integer.MIN_VALUE;
+
+        for (int row = 0; row < nbRows; row++) {
+            double y = y0 + row * dy;
+            int perlinRow = (int) Math.floor(y / scale);
+            if (perlinRow != currentPerlinRow) {
+                for (int node = 0; node < nbNodes; node++) {
+                    long hashSouth = hash(perlinRow, perlinColMin + node);
+                    long hashNorth = hash(perlinRow + 1, perlinColMin + node);
+                    gradXSouth[node] = getGradX(hashSouth);
+                    gradYSouth[node] = getGradY(hashSouth);
+                    gradXNorth[node] = getGradX(hashNorth);
+                    gradYNorth[node] = getGradY(hashNorth);
+                }
+                currentPerlinRow = perlinRow;
+            }
+            double yP = y / scale - perlinRow;
+            double offsetSouth = ((perlinRow) * scale - y) / scale;
+            double offsetNorth = ((perlinRow + 1) * scale - y) / scale;
+
+            int rowStart = row * nbCols;
+            for (int col = 0; col < nbCols; col++) {
+                int w = perlinCols[col] - perlinColMin;
+                double dotSW = offsetsWest[col] * gradXSouth[w] + offsetSouth * gradYSouth[w];
+                double dotSE = offsetsEast[col] * gradXSouth[w + 1] + offsetSouth * gradYSouth[w + 1];
+                double dotNW = offsetsWest[col] * gradXNorth[w] + offsetNorth * gradYNorth[w];
+                double dotNE = offsetsEast[col] * gradXNorth[w + 1] + offsetNorth * gradYNorth[w + 1];
+                double xP = xPs[col];
+                double south = xP * dotSE + (1 - xP) * dotSW;
+                double north = xP * dotNE + (1 - xP) * dotNW;
+                result[rowStart + col] = (float) (yP * north + (1 - yP) * south);
+            }
+        }
+    }
+
+    /**
+     * Weighted sum of the levels of a tile, with the current amplitudes.
+     *
+     * @param levels the raw noise of each level, as computed by fillLevel
+     * @param result receives the noise of each point
+     */
+    public void combineLevels(float levels[][], float result[]) {
+        int size = result.length;
+        Arrays.fill(result, 0);
+        double divisor = 1;
+        for (int level = 0; level < nbLevels; level++) {
+            float weight = (float) (amplitudes[level] / divisor);
+            float levelValues[] = levels[level];
+            for (int i = 0; i < size; i++) {
+                result[i] = Math.fma(weight, levelValues[i], result[i]);
+            }
+            divisor = divisor * 2;
+        }
+    }
+
     /**
      * Compute the dot product between the gradient on the Perlin grid at (row,
      * col) and the offset vector to the (x, y) point.
@@ -88,8 +212,10 @@ public class PerlinNoise {
         double offsetX = ((col) * scale - x) / scale;
         double offsetY = ((row) * scale - y) / scale;
 
-        double gradX = getGradX(row, col);
-        double gradY = getGradY(row, col);
+        // Both coordinates of the gradient come from the same hash.
+        long hash = hash(row, col);
+        double gradX = getGradX(hash);
+        double gradY = getGradY(hash);
 
         // dotProd in in [-1, 1]
         double dotProd = offsetX * gradX + offsetY * gradY;
@@ -97,13 +223,38 @@ public class PerlinNoise {
     }
 
     public double getGradX(int row, int col) {
-        r.setSeed(seed * 73 * (row + 23) * (col + 37));
-        return r.nextDouble() - 0.5;
+        return getGradX(hash(row, col));
     }
 
     public double getGradY(int row, int col) {
-        r.setSeed(seed * 19 * (row + 13) * (col + 19));
-        return r.nextDouble() - 0.5;
+        return getGradY(hash(row, col));
+    }
+
+    /**
+     * X-coordinate of a gradient, in [-0.5, 0.5), from the 24 high bits of the
+     * hash of its node.
+     */
+    private static double getGradX(long hash) {
+        return (hash >>> 40) * 0x1.0p-24 - 0.5;
+    }
+
+    /**
+     * Y-coordinate of a gradient, in [-0.5, 0.5), from the next 24 bits of the
+     * hash of its node.
+     */
+    private static double getGradY(long hash) {
+        return ((hash >>> 16) & 0xffffff) * 0x1.0p-24 - 0.5;
+    }
+
+    /**
+     * Mix the seed and the position of a node of the noise grid into 64
+     * well-distributed bits (SplitMix64 finalizer).
+     */
+    private long hash(int row, int col) {
+        long h = seed + 0x9e3779b97f4a7c15L * (((long) row << 32) ^ (col & 0xffffffffL));
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
     }
 
     /**
@@ -120,8 +271,13 @@ public class PerlinNoise {
         return x * val1 + (1 - x) * val0;
     }
 
+    /**
+     * Set the amplitude of one level of the noise.
+     *
+     * @param newAmplitude in percents
+     * @param level
+     */
     public void setAmplitudes(int newAmplitude, int level) {
-
-        amplitudesPercentagesList.set(level, newAmplitude);
+        amplitudes[level] = ((double) newAmplitude) / 100;
     }
 }
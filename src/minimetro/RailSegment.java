@@ -1,23 +1,27 @@
 package minimetro;
 
 import java.awt.Color;
-import java.awt.Graphics;
+import java.awt.geom.Path2D;
 import static java.lang.Math.PI;
 
 /**
- * This is one part of the rails in one given cell.
+ * This is one part of the rails of a cell.
+ *
+ * The coordinates are relative to the center of the cell, so that the same
+ * segment may be shared by all the cells that have the same tracks. The
+ * segment is never modified once created.
  *
  * @author arthu
  */
 public class RailSegment {
 
-    // Absolute coordinates of the start and end of this segment.
+    // Coordinates of the start and end of this segment, relative to the center of the cell.
     private final double xStart, yStart, xEnd, yEnd;
 
     // Distance between the two rails.
-    private double railSpacing = 5.0;
+    private static final double RAIL_SPACING = 5.0;
     // Length of the wooden tie between the rails
-    private double tieLength = 7;
+    private static final double TIE_LENGTH = 7;
 
     // Colors of the main components of the rail segment
     private static Color ballastColor = Color.GRAY;
@@ -25,13 +29,11 @@ public class RailSegment {
     private static Color tieColor = new Color(0.384f, 0.047f, 0.0f);
 
     // Coordinates of the ends of the rails and the tie.
-    private double length, ux, uy, vx, vy,
+    private final double length, ux, uy, vx, vy,
             xStartLeft, yStartLeft, xStartRight, yStartRight,
             xEndLeft, yEndLeft, xEndRight, yEndRight,
             xTieLeft, yTieLeft, xTieRight, yTieRight;
-
-    private static int NB_RAILS = 0;
-    private int id;
+    private final double headingDegrees;
 
     public RailSegment(double x0, double y0, double x1, double y1) {
         xStart = x0;
@@ -47,61 +49,41 @@ public class RailSegment {
         vy = ux;
 
         // Rails coordinates
-        xStartLeft = xStart + vx * railSpacing / 2;
-        xStartRight = xStart - vx * railSpacing / 2;
-        yStartLeft = yStart + vy * railSpacing / 2;
-        yStartRight = yStart - vy * railSpacing / 2;
-        xEndLeft = xEnd + vx * railSpacing / 2;
-        xEndRight = xEnd - vx * railSpacing / 2;
-        yEndLeft = yEnd + vy * railSpacing / 2;
-        yEndRight = yEnd - vy * railSpacing / 2;
+        xStartLeft = xStart + vx * RAIL_SPACING / 2;
+        xStartRight = xStart - vx * RAIL_SPACING / 2;
+        yStartLeft = yStart + vy * RAIL_SPACING / 2;
+        yStartRight = yStart - vy * RAIL_SPACING / 2;
+        xEndLeft = xEnd + vx * RAIL_SPACING / 2;
+        xEndRight = xEnd - vx * RAIL_SPACING / 2;
+        yEndLeft = yEnd + vy * RAIL_SPACING / 2;
+        yEndRight = yEnd - vy * RAIL_SPACING / 2;
 
         // Tie coordinates
-        xTieLeft = xStart + ux * length / 2 + vx * tieLength / 2;
-        xTieRight = xStart + ux * length / 2 - vx * tieLength / 2;
-        yTieLeft = yStart + uy * length / 2 + vy * tieLength / 2;
-        yTieRight = yStart + uy * length / 2 - vy * tieLength / 2;
-
-        id = NB_RAILS;
-        NB_RAILS++;
+        xTieLeft = xStart + ux * length / 2 + vx * TIE_LENGTH / 2;
+        xTieRight = xStart + ux * length / 2 - vx * TIE_LENGTH / 2;
+        yTieLeft = yStart + uy * length / 2 + vy * TIE_LENGTH / 2;
+        yTieRight = yStart + uy * length / 2 - vy * TIE_LENGTH / 2;
 
+        headingDegrees = computeHeadingInDegrees();
     }
 
-    public RailSegment(RailSegment copied) {
-        this(copied.xStart, copied.yStart, copied.xEnd, copied.yEnd);
-    }
-
-    void paint(Graphics g, double x0, double y0, double zoom) {
-
-        int panelHeight = g.getClipBounds().height;
-
-        int xStartApp;
-        int yStartApp;
-        int xEndApp;
-        int yEndApp;
-
-        // Rails
-        g.setColor(railColor);
-
-        xStartApp = (int) (x0 + xStartLeft * zoom);
-        yStartApp = panelHeight - (int) (y0 + yStartLeft * zoom);
-        xEndApp = (int) (x0 + xEndLeft * zoom);
-        yEndApp = panelHeight - (int) (y0 + yEndLeft * zoom);
-        g.drawLine(xStartApp, yStartApp, xEndApp, yEndApp);
-        xStartApp = (int) (x0 + xStartRight * zoom);
-        yStartApp = panelHeight - (int) (y0 + yStartRight * zoom);
-        xEndApp = (int) (x0 + xEndRight * zoom);
-        yEndApp = panelHeight - (int) (y0 + yEndRight * zoom);
-        g.drawLine(xStartApp, yStartApp, xEndApp, yEndApp);
-
-        // Tie
-        int xTieLeftApp = (int) (x0 + xTieLeft * zoom);
-        int yTieLeftApp = panelHeight - (int) (y0 + yTieLeft * zoom);
-        int xTieRightApp = (int) (x0 + xTieRight * zoom);
-        int yTieRightApp = panelHeight - (int) (y0 + yTieRight * zoom);
-
-        g.setColor(tieColor);
-        g.drawLine(xTieLeftApp, yTieLeftApp, xTieRightApp, yTieRightApp);
+    /**
+     * Add the rails and the tie of this segment to a track layer.
+     *
+     * @param layer
+     * @param xCell absolute coordinates of the center of the cell
+     * @param yCell
+     */
+    void addTo(TrackLayer layer, double xCell, double yCell) {
+        Path2D.Double rails = layer.getPath(TrackLayer.RAILS, railColor, false);
+        rails.moveTo(xCell + xStartLeft, yCell + yStartLeft);
+        rails.lineTo(xCell + xEndLeft, yCell + yEndLeft);
+        rails.moveTo(xCell + xStartRight, yCell + yStartRight);
+        rails.lineTo(xCell + xEndRight, yCell + yEndRight);
+
+        Path2D.Double tie = layer.getPath(TrackLayer.RAILS, tieColor, false);
+        tie.moveTo(xCell + xTieLeft, yCell + yTieLeft);
+        tie.lineTo(xCell + xTieRight, yCell + yTieRight);
     }
 
     public double getXStart() {
@@ -121,11 +103,15 @@ public class RailSegment {
     }
 
     /**
-     * Compute the rail segment heading in degrees East from North
+     * Get the rail segment heading in degrees East from North
      * 0 <-> North
      * 90<-> East
      */
     double getHeadingInDegrees() {
+        return headingDegrees;
+    }
+
+    private double computeHeadingInDegrees() {
         // N:0, E:90, S:180, W:270
         double headingRad = Math.atan2(yEnd - yStart, xEnd - xStart);
         double headingInDegrees = (PI / 2 - headingRad) * 180 / PI;
@@ -139,15 +125,19 @@ public class RailSegment {
      * Get the distance from this rail segment to a givent TrainElement
      *
      * @param te
+     * @param xCell absolute coordinates of the center of the cell
+     * @param yCell
      * @return the distance from the start of this rail to the TrainElement, or
      * the distance from the end of this rail to the TrainElement, whichever is
      * smaller.
      */
-    double getDistance(TrainElement te) {
-        double dxStart = te.getX() - this.xStart;
-        double dyStart = te.getY() - this.yStart;
-        double dxEnd = te.getX() - this.xEnd;
-        double dyEnd = te.getY() - this.yEnd;
+    double getDistance(TrainElement te, double xCell, double yCell) {
+        double xLocal = te.getX() - xCell;
+        double yLocal = te.getY() - yCell;
+        double dxStart = xLocal - this.xStart;
+        double dyStart = yLocal - this.yStart;
+        double dxEnd = xLocal - this.xEnd;
+        double dyEnd = yLocal - this.yEnd;
         double dStart = Math.sqrt(dxStart * dxStart + dyStart * dyStart);
         double dEnd = Math.sqrt(dxEnd * dxEnd + dyEnd * dyEnd);
         return Math.min(dStart, dEnd);
@@ -157,24 +147,24 @@ public class RailSegment {
      * Project the TE ont this rail.
      *
      * @param te
+     * @param xCell absolute coordinates of the center of the cell
+     * @param yCell
      */
-    void snapTrain(TrainElement te) {
-
-        length = Math.sqrt((xEnd - xStart) * (xEnd - xStart) + (yEnd - yStart) * (yEnd - yStart));
-        ux = (xEnd - xStart) / length;
-        uy = (yEnd - yStart) / length;
+    void snapTrain(TrainElement te, double xCell, double yCell) {
 
         // A is the start of this segment, B is the end.
         // M denotes the position of the TrainElement.
         // P is the projection of M on AB.
         // Scalar product between vectors AM> and u>
-        double am_u = (te.getX() - xStart) * ux + (te.getY() - yStart) * uy;
-        double xP = xStart + am_u * ux;
-        double yP = yStart + am_u * uy;
+        double xA = xCell + xStart;
+        double yA = yCell + yStart;
+        double am_u = (te.getX() - xA) * ux + (te.getY() - yA) * uy;
+        double xP = xA + am_u * ux;
+        double yP = yA + am_u * uy;
         te.setPosition(xP, yP);
 
         // Align train speed along one of the two possible rail directions.
-        double potentialNewHeadingDeg = this.getHeadingInDegrees();
+        double potentialNewHeadingDeg = headingDegrees;
 
         // Try the forward direction of the rail.
         double deltaHeading = Math.abs(te.getHeadingDeg() - potentialNewHeadingDeg);
@@ -0,0 +1,556 @@
+package minimetro;
+
+import java.util.ArrayList;
+import static java.lang.Math.PI;
+import static java.lang.Math.cos;
+import static java.lang.Math.sin;
+
+/**
+ * The rails of a cell for one pair of links, e.g. from NORTH to EAST.
+ *
+ * There are only 64 ordered pairs of links, so all the templates are computed
+ * once, relative to the center of a cell, and shared by all the cells that
+ * have the same tracks. A template is never modified; each cell gives its own
+ * position when the rails are used.
+ *
+ * @author arthu
+ */
+public class RailTemplate {
+
+    private static final int NB_RAILS = 10;
+    private static final double CELL_SIZE = Cell.cellSize;
+
+    // One template for each (first link, second link), null when these links make no track.
+    private static final RailTemplate TEMPLATES[][] = new RailTemplate[8][8];
+
+    static {
+        for (CardinalPoint first : CardinalPoint.values()) {
+            for (CardinalPoint second : CardinalPoint.values()) {
+                if (first != CardinalPoint.CENTER && second != CardinalPoint.CENTER) {
+                    RailTemplate template = new RailTemplate(first, second);
+                    if (template.size() > 0) {
+                        TEMPLATES[first.getIntValue()][second.getIntValue()] = template;
+                    }
+                }
+            }
+        }
+    }
+
+    private final CardinalPoint first, second;
+    private final RailSegment segments[];
+
+    // The same rails as one polyline from the border of the first link to the border of the second one.
+    // Piece i goes from point i to point i+1.
+    private double pointX[], pointY[];
+    private double pieceLength[];
+    private double pieceUx[], pieceUy[], pieceHeading[];
+
+    private RailTemplate(CardinalPoint newFirst, CardinalPoint newSecond) {
+        first = newFirst;
+        second = newSecond;
+        ArrayList<RailSegment> list = new ArrayList<>();
+        if (isTrackTurningAxisAligned() || isTrackTurning45()) {
+            createTurningTracks(list);
+        } else if (isTrackStraight()) {
+            createStraightTracks(list);
+        }
+        segments = list.toArray(new RailSegment[list.size()]);
+        createPieces();
+    }
+
+    /**
+     * Chain the segments from the first link to the second one. The segments
+     * of a turn are not created in that order, and some are reversed.
+     */
+    private void createPieces() {
+        int nbPieces = segments.length;
+        pointX = new double[nbPieces + 1];
+        pointY = new double[nbPieces + 1];
+        pieceLength = new double[nbPieces];
+        pieceUx = new double[nbPieces];
+        pieceUy = new double[nbPieces];
+        pieceHeading = new double[nbPieces];
+        if (nbPieces == 0) {
+            return;
+        }
+
+        double start[] = getBorderPoint(first);
+        pointX[0] = start[0];
+        pointY[0] = start[1];
+        boolean isUsed[] = new boolean[nbPieces];
+        for (int piece = 0; piece < nbPieces; piece++) {
+            // The segment that has an end closest to the current point comes next.
+            int bestRank = -1;
+            boolean isBestReversed = false;
+            double bestDistance = Double.MAX_VALUE;
+            for (int rank = 0; rank < nbPieces; rank++) {
+                if (!isUsed[rank]) {
+                    RailSegment r = segments[rank];
+                    double dStart = Math.hypot(r.getXStart() - pointX[piece], r.getYStart() - pointY[piece]);
+                    double dEnd = Math.hypot(r.getXEnd() - pointX[piece], r.getYEnd() - pointY[piece]);
+                    if (dStart < bestDistance) {
+                        bestDistance = dStart;
+                        bestRank = rank;
+                        isBestReversed = false;
+                    }
+                    if (dEnd < bestDistance) {
+                        bestDistance = dEnd;
+                        bestRank = rank;
+                        isBestReversed = true;
+                    }
+                }
+            }
+            isUsed[bestRank] = true;
+            RailSegment r = segments[bestRank];
+            pointX[piece + 1] = isBestReversed ? r.getXStart() : r.getXEnd();
+            pointY[piece + 1] = isBestReversed ? r.getYStart() : r.getYEnd();
+
+            double dx = pointX[piece + 1] - pointX[piece];
+            double dy = pointY[piece + 1] - pointY[piece];
+            pieceLength[piece] = Math.sqrt(dx * dx + dy * dy);
+            pieceUx[piece] = dx / pieceLength[piece];
+            pieceUy[piece] = dy / pieceLength[piece];
+            // N:0, E:90, S:180, W:270
+            double heading = (PI / 2 - Math.atan2(dy, dx)) * 180 / PI;
+            if (heading < 0) {
+                heading += 360;
+            }
+            pieceHeading[piece] = heading;
+        }
+    }
+
+    /**
+     * Get the rails for a pair of links.
+     *
+     * @param first the most recent link of the cell
+     * @param second the other link
+     * @return the shared template, or null if these links make no track.
+     */
+    protected static RailTemplate get(CardinalPoint first, CardinalPoint second) {
+        if (first == null || second == null || first == CardinalPoint.CENTER || second == CardinalPoint.CENTER) {
+            return null;
+        }
+        return TEMPLATES[first.getIntValue()][second.getIntValue()];
+    }
+
+    protected int size() {
+        return segments.length;
+    }
+
+    protected RailSegment getSegment(int rank) {
+        return segments[rank];
+    }
+
+    /**
+     * Get the heading of the center of the track.
+     */
+    protected double getCenterHeading() {
+        return segments[NB_RAILS / 2].getHeadingInDegrees();
+    }
+
+    /**
+     * Add the rails of a cell to a track layer.
+     *
+     * @param xCell absolute coordinates of the center of the cell
+     * @param yCell
+     */
+    protected void addTo(TrackLayer layer, double xCell, double yCell) {
+        for (RailSegment segment : segments) {
+            segment.addTo(layer, xCell, yCell);
+        }
+    }
+
+    /**
+     * Find the rail that is closest to the TrainElement
+     *
+     * @param te
+     * @param xCell absolute coordinates of the center of the cell
+     * @param yCell
+     * @return the closest segment.
+     */
+    protected RailSegment findClosestSegment(TrainElement te, double xCell, double yCell) {
+        double minDistance = Double.MAX_VALUE;
+        RailSegment closestSegment = null;
+        for (RailSegment r : segments) {
+            double distance = r.getDistance(te, xCell, yCell);
+            if (distance < minDistance) {
+                minDistance = distance;
+                closestSegment = r;
+            }
+        }
+        return closestSegment;
+    }
+
+    /**
+     * Tell if the rails end on the border of the cell in a given direction.
+     *
+     * @param direction
+     * @return true for both links of the template.
+     */
+    protected boolean hasEnd(CardinalPoint direction) {
+        return direction == first || direction == second;
+    }
+
+    /**
+     * Put a TrainElement on these rails, at the point closest to its
+     * position, and keep the direction closest to its heading.
+     *
+     * @param te
+     * @param xCell absolute coordinates of the center of the cell
+     * @param yCell
+     */
+    protected void attach(TrainElement te, double xCell, double yCell) {
+        double xLocal = te.getX() - xCell;
+        double yLocal = te.getY() - yCell;
+        int bestPiece = 0;
+        double bestOffset = 0;
+        double bestDistance = Double.MAX_VALUE;
+        for (int piece = 0; piece < pieceLength.length; piece++) {
+            double dx = xLocal - pointX[piece];
+            double dy = yLocal - pointY[piece];
+            double offset = dx * pieceUx[piece] + dy * pieceUy[piece];
+            offset = Math.max(0, Math.min(pieceLength[piece], offset));
+            double ex = dx - offset * pieceUx[piece];
+            double ey = dy - offset * pieceUy[piece];
+            double distance = ex * ex + ey * ey;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                bestPiece = piece;
+                bestOffset = offset;
+            }
+        }
+
+        // Same rule as RailSegment.snapTrain: keep the forward direction when it is close to the heading.
+        double deltaHeading = Math.abs(te.getHeadingDeg() - pieceHeading[bestPiece]);
+        int direction = (deltaHeading > 20 && deltaHeading < 340) ? -1 : 1;
+
+        te.setTrackPosition(this, xCell, yCell, bestPiece, bestOffset, direction);
+        place(te);
+    }
+
+    /**
+     * Put a TrainElement that comes from a neighboring cell at the end of the
+     * rails on that side.
+     *
+     * @param te its trackOffset is the distance already travelled past the
+     * border.
+     * @param entry the side the element comes from
+     * @param xCell absolute coordinates of the center of the cell
+     * @param yCell
+     * @return false if the rails do not end on that side.
+     */
+    protected boolean enter(TrainElement te, CardinalPoint entry, double xCell, double yCell) {
+        if (!hasEnd(entry) || pieceLength.length == 0) {
+            return false;
+        }
+        double distance = te.trackOffset;
+        // The element keeps its physical heading, and it moves away from the entry.
+        int travelSign = te.getLinearSpeed() < 0 ? -1 : 1;
+        int nbPieces = pieceLength.length;
+        if (entry == first) {
+            te.setTrackPosition(this, xCell, yCell, 0, 0, travelSign);
+        } else {
+            te.setTrackPosition(this, xCell, yCell, nbPieces - 1, pieceLength[nbPieces - 1], -travelSign);
+        }
+        moveAlong(te, distance * (entry == first ? 1 : -1), false);
+        return true;
+    }
+
+    /**
+     * Move a TrainElement along these rails.
+     *
+     * @param te
+     * @param distance signed distance, positive towards the second link.
+     * @return the side the element leaves through, or CENTER if it stays in
+     * the cell.
+     */
+    protected CardinalPoint advance(TrainElement te, double distance) {
+        return moveAlong(te, distance, true);
+    }
+
+    private CardinalPoint moveAlong(TrainElement te, double distance, boolean canLeave) {
+        int nbPieces = pieceLength.length;
+        int piece = te.trackPiece;
+        double offset = te.trackOffset + distance;
+        while (piece < nbPieces && offset > pieceLength[piece]) {
+            offset -= pieceLength[piece];
+            piece++;
+        }
+        while (piece >= 0 && offset < 0) {
+            piece--;
+            if (piece >= 0) {
+                offset += pieceLength[piece];
+            }
+        }
+
+        CardinalPoint exit = CardinalPoint.CENTER;
+        if (piece >= nbPieces) {
+            if (canLeave) {
+                exit = second;
+            }
+            piece = nbPieces - 1;
+            offset = canLeave ? offset : pieceLength[piece];
+        } else if (piece < 0) {
+            if (canLeave) {
+                exit = first;
+            }
+            piece = 0;
+            offset = canLeave ? -offset : 0;
+        }
+
+        if (exit != CardinalPoint.CENTER) {
+            // Keep the distance travelled past the border for the next cell, and stay at the border.
+            te.trackPiece = piece;
+            te.trackOffset = offset;
+            te.trackExit = exit;
+            placeAtBorder(te, exit == second);
+        } else {
+            te.trackPiece = piece;
+            te.trackOffset = offset;
+            te.trackExit = CardinalPoint.CENTER;
+            place(te);
+        }
+        return exit;
+    }
+
+    /**
+     * Compute the absolute position and heading of an element from its
+     * distance along the rails.
+     */
+    private void place(TrainElement te) {
+        int piece = te.trackPiece;
+        double offset = te.trackOffset;
+        double x = te.trackCellX + pointX[piece] + offset * pieceUx[piece];
+        double y = te.trackCellY + pointY[piece] + offset * pieceUy[piece];
+        setPose(te, x, y, piece);
+    }
+
+    private void placeAtBorder(TrainElement te, boolean isSecondEnd) {
+        int point = isSecondEnd ? pointX.length - 1 : 0;
+        double x = te.trackCellX + pointX[point];
+        double y = te.trackCellY + pointY[point];
+        setPose(te, x, y, te.trackPiece);
+    }
+
+    private void setPose(TrainElement te, double x, double y, int piece) {
+        te.setPosition(x, y);
+        if (te.trackDirection > 0) {
+            te.setHeading(pieceHeading[piece], pieceUx[piece], pieceUy[piece]);
+        } else {
+            double heading = pieceHeading[piece] + 180;
+            if (heading >= 360) {
+                heading -= 360;
+            }
+            te.setHeading(heading, -pieceUx[piece], -pieceUy[piece]);
+        }
+    }
+
+    /**
+     * Test for 90° turns between horizontal and vertical.
+     */
+    private boolean isTrackTurningAxisAligned() {
+        int difference = first.difference(second);
+        return difference == 2 || difference == 6;
+    }
+
+    /**
+     * Test for 45° turns. Example: a track going from North to SouthWest
+     */
+    private boolean isTrackTurning45() {
+        int difference = first.difference(second);
+        return difference == 3 || difference == 5;
+    }
+
+    /**
+     * Test for a track that does not turn within the cell.
+     */
+    private boolean isTrackStraight() {
+        return first.difference(second) == 4;
+    }
+
+    /**
+     * Test for a straight diagonal track.
+     */
+    private boolean isTrackDiagonal() {
+        // Each link must be NE, SE, SW or NW.
+        return first.getIntValue() % 2 == 1 && second.getIntValue() % 2 == 1;
+    }
+
+    private boolean isLinked(CardinalPoint cardinalPoint) {
+        return first == cardinalPoint || second == cardinalPoint;
+    }
+
+    /**
+     * Get the middle of the border of the cell in a given direction.
+     *
+     * @return the coordinates relative to the center of the cell.
+     */
+    private static double[] getBorderPoint(CardinalPoint direction) {
+        switch (direction) {
+        case WEST:
+            return new double[]{-CELL_SIZE / 2, 0};
+        case NORTHWEST:
+            return new double[]{-CELL_SIZE / 2, CELL_SIZE / 2};
+        case NORTH:
+            return new double[]{0, CELL_SIZE / 2};
+        case NORTHEAST:
+            return new double[]{CELL_SIZE / 2, CELL_SIZE / 2};
+        case EAST:
+            return new double[]{CELL_SIZE / 2, 0};
+        case SOUTHEAST:
+            return new double[]{CELL_SIZE / 2, -CELL_SIZE / 2};
+        case SOUTH:
+            return new double[]{0, -CELL_SIZE / 2};
+        case SOUTHWEST:
+            return new double[]{-CELL_SIZE / 2, -CELL_SIZE / 2};
+        default:
+            return new double[]{0, 0};
+        }
+    }
+
+    /**
+     * Create the rails when the tracks go N-S, E-W, NW-SE or SW-NE, without
+     * turns.
+     */
+    private void createStraightTracks(ArrayList<RailSegment> list) {
+        double start[] = getBorderPoint(first);
+        double end[] = getBorderPoint(second);
+        double xStart = start[0], yStart = start[1];
+        double xEnd = end[0], yEnd = end[1];
+
+        int actualNbRails = NB_RAILS;
+        if (isTrackDiagonal()) {
+            actualNbRails = (int) (NB_RAILS * 1.41);
+        }
+        for (int i = 0; i < actualNbRails; i++) {
+            double x0 = xStart + i * (xEnd - xStart) / actualNbRails;
+            double y0 = yStart + i * (yEnd - yStart) / actualNbRails;
+            double x1 = xStart + (i + 1) * (xEnd - xStart) / actualNbRails;
+            double y1 = yStart + (i + 1) * (yEnd - yStart) / actualNbRails;
+            list.add(new RailSegment(x0, y0, x1, y1));
+        }
+    }
+
+    /**
+     * Create the rails when the tracks go from N-S to E-W, with a turn,
+     * or when they go from axis-aligned to diagonal.
+     */
+    private void createTurningTracks(ArrayList<RailSegment> list) {
+
+        double xCenter = 0, yCenter = 0;
+        double radius;
+        double angleStart = 0, angleEnd = 0;
+
+        // Add the curved part for both 45 and 90 degrees turns.
+        if (isTrackTurning45()) {
+            radius = CELL_SIZE * (1 + 1.414) / 2;
+
+            // Horizontal EAST
+            if (isLinked(CardinalPoint.NORTHWEST) && isLinked(CardinalPoint.EAST)) {
+                xCenter = CELL_SIZE / 2;
+                yCenter = CELL_SIZE * (2.414 / 2);
+                angleStart = 5 * PI / 4;
+                angleEnd = 3 * PI / 2;
+            } else if (isLinked(CardinalPoint.SOUTHWEST) && isLinked(CardinalPoint.EAST)) {
+                xCenter = CELL_SIZE / 2;
+                yCenter = -CELL_SIZE * (2.414 / 2);
+                angleStart = 3 * PI / 4;
+                angleEnd = PI / 2;
+            } // Horizontal WEST
+            else if (isLinked(CardinalPoint.NORTHEAST) && isLinked(CardinalPoint.WEST)) {
+                xCenter = -CELL_SIZE / 2;
+                yCenter = CELL_SIZE * (2.414 / 2);
+                angleStart = 3 * PI / 2;
+                angleEnd = 7 * PI / 4;
+            } else if (isLinked(CardinalPoint.SOUTHEAST) && isLinked(CardinalPoint.WEST)) {
+                xCenter = -CELL_SIZE / 2;
+                yCenter = -CELL_SIZE * (2.414 / 2);
+                angleStart = PI / 2;
+                angleEnd = PI / 4;
+            } // Vertical NORTH
+            else if (isLinked(CardinalPoint.NORTH) && isLinked(CardinalPoint.SOUTHWEST)) {
+                xCenter = -CELL_SIZE * (2.414 / 2);
+                yCenter = CELL_SIZE / 2;
+                angleStart = 0;
+                angleEnd = -PI / 4;
+            } else if (isLinked(CardinalPoint.NORTH) && isLinked(CardinalPoint.SOUTHEAST)) {
+                xCenter = CELL_SIZE * (2.414 / 2);
+                yCenter = CELL_SIZE / 2;
+                angleStart = PI;
+                angleEnd = 5 * PI / 4;
+            } // Vertical SOUTH
+            else if (isLinked(CardinalPoint.SOUTH) && isLinked(CardinalPoint.NORTHWEST)) {
+                xCenter = -CELL_SIZE * (2.414 / 2);
+                yCenter = -CELL_SIZE / 2;
+                angleStart = 0;
+                angleEnd = PI / 4;
+            } else if (isLinked(CardinalPoint.SOUTH) && isLinked(CardinalPoint.NORTHEAST)) {
+                xCenter = CELL_SIZE * (2.414 / 2);
+                yCenter = -CELL_SIZE / 2;
+                angleStart = PI;
+                angleEnd = 3 * PI / 4;
+            }
+
+        } else {
+            // Axis-aligned right-angled turns
+            radius = CELL_SIZE / 2;
+            if (isLinked(CardinalPoint.SOUTH) && isLinked(CardinalPoint.EAST)) {
+                xCenter = CELL_SIZE / 2;
+                yCenter = -CELL_SIZE / 2;
+                angleStart = PI;
+                angleEnd = PI / 2;
+            } else if (isLinked(CardinalPoint.EAST) && isLinked(CardinalPoint.NORTH)) {
+                xCenter = CELL_SIZE / 2;
+                yCenter = CELL_SIZE / 2;
+                angleStart = 3 * PI / 2;
+                angleEnd = PI;
+            } else if (isLinked(CardinalPoint.NORTH) && isLinked(CardinalPoint.WEST)) {
+                xCenter = -CELL_SIZE / 2;
+                yCenter = CELL_SIZE / 2;
+                angleStart = 4 * PI / 2;
+                angleEnd = 3 * PI / 2;
+            } else if (isLinked(CardinalPoint.WEST) && isLinked(CardinalPoint.SOUTH)) {
+                xCenter = -CELL_SIZE / 2;
+                yCenter = -CELL_SIZE / 2;
+                angleStart = PI / 2;
+                angleEnd = 0;
+            }
+        }
+
+        for (int i = 0; i < NB_RAILS; i++) {
+            double x0 = xCenter + radius * cos(angleStart + i * (angleEnd - angleStart) / NB_RAILS);
+            double y0 = yCenter + radius * sin(angleStart + i * (angleEnd - angleStart) / NB_RAILS);
+            double x1 = xCenter + radius * cos(angleStart + (i + 1) * (angleEnd - angleStart) / NB_RAILS);
+            double y1 = yCenter + radius * sin(angleStart + (i + 1) * (angleEnd - angleStart) / NB_RAILS);
+            list.add(new RailSegment(x0, y0, x1, y1));
+        }
+
+        // 45 degrees turns require an additional straight part
+        if (isTrackTurning45()) {
+            double unitLength = (2 - 1.414) / 4; // The length of the straight part
+            int nbAdditionalSegments = 4;
+            double dx = unitLength / nbAdditionalSegments;
+
+            for (int i = 0; i < nbAdditionalSegments; i++) {
+                if (isLinked(CardinalPoint.NORTHEAST)) {
+                    list.add(new RailSegment(CELL_SIZE * (0.5 - i * dx), CELL_SIZE * (0.5 - i * dx),
+                            CELL_SIZE * (0.5 - (i + 1) * dx), CELL_SIZE * (0.5 - (i + 1) * dx)));
+                } else if (isLinked(CardinalPoint.SOUTHEAST)) {
+                    list.add(new RailSegment(CELL_SIZE * (0.5 - i * dx), -CELL_SIZE * (0.5 - i * dx),
+                            CELL_SIZE * (0.5 - (i + 1) * dx), -CELL_SIZE * (0.5 - (i + 1) * dx)));
+                } else if (isLinked(CardinalPoint.SOUTHWEST)) {
+                    list.add(new RailSegment(-CELL_SIZE * (0.5 - i * dx), -CELL_SIZE * (0.5 - i * dx),
+                            -CELL_SIZE * (0.5 - (i + 1) * dx), -CELL_SIZE * (0.5 - (i + 1) * dx)));
+                } else if (isLinked(CardinalPoint.NORTHWEST)) {
+                    list.add(new RailSegment(-CELL_SIZE * (0.5 - i * dx), CELL_SIZE * (0.5 - i * dx),
+                            -CELL_SIZE * (0.5 - (i + 1) * dx), CELL_SIZE * (0.5 - (i + 1) * dx)));
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RailTemplate " + first + " " + second + ", " + segments.length + " segments";
+    }
+}
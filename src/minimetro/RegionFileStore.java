@@ -0,0 +1,226 @@
+package minimetro;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Storage of the evicted chunks in memory-mapped region files.
+ *
+ * A region groups REGION_SIZE x REGION_SIZE chunks in a single file. The file
+ * starts with the end of its data, then one entry per chunk (offset, capacity,
+ * length), then the data of the chunks. A chunk written again reuses its place
+ * when it fits, otherwise it is appended at the end of the file.
+ * The files only live as long as the session; they are deleted when the store
+ * is closed or when the program exits.
+ *
+ * @author arthu
+ */
+public class RegionFileStore {
+
+    protected static final int REGION_SIZE = 32;
+    private static final int NB_SLOTS = REGION_SIZE * REGION_SIZE;
+    private static final int ENTRY_SIZE = 12;
+    private static final int HEADER_SIZE = 4 + NB_SLOTS * ENTRY_SIZE;
+
+    private File directory;
+    private LongHashMap<Region> regions;
+
+    public RegionFileStore() {
+        directory = null;
+        regions = new LongHashMap<>();
+    }
+
+    /**
+     * One region file, mapped in memory.
+     */
+    private class Region {
+
+        private final int regionRow, regionCol;
+        private final File file;
+        private RandomAccessFile randomAccessFile;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+
+        Region(int newRegionRow, int newRegionCol) throws IOException {
+            regionRow = newRegionRow;
+            regionCol = newRegionCol;
+            file = new File(getDirectory(), "r." + regionRow + "." + regionCol + ".bin");
+            file.deleteOnExit();
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            channel = randomAccessFile.getChannel();
+            map(2 * HEADER_SIZE);
+            buffer.putInt(0, HEADER_SIZE);
+        }
+
+        private void map(int newSize) throws IOException {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+        }
+
+        private int getDataEnd() {
+            return buffer.getInt(0);
+        }
+
+        private int getEntry(int slot) {
+            return 4 + slot * ENTRY_SIZE;
+        }
+
+        private int getLength(int slot) {
+            return buffer.getInt(getEntry(slot) + 8);
+        }
+
+        void write(int slot, byte data[]) throws IOException {
+            int entry = getEntry(slot);
+            int offset = buffer.getInt(entry);
+            int capacity = buffer.getInt(entry + 4);
+            if (capacity < data.length) {
+                // Append the chunk at the end of the file.
+                offset = getDataEnd();
+                capacity = data.length;
+                if (offset + capacity > buffer.capacity()) {
+                    map(Math.max(2 * buffer.capacity(), offset + capacity));
+                }
+                buffer.putInt(0, offset + capacity);
+            }
+            buffer.put(offset, data);
+            buffer.putInt(entry, offset);
+            buffer.putInt(entry + 4, capacity);
+            buffer.putInt(entry + 8, data.length);
+        }
+
+        byte[] read(int slot) {
+            int entry = getEntry(slot);
+            byte data[] = new byte[getLength(slot)];
+            buffer.get(buffer.getInt(entry), data);
+            return data;
+        }
+
+        void remove(int slot) {
+            buffer.putInt(getEntry(slot) + 8, 0);
+        }
+
+        void close() {
+            try {
+                channel.close();
+                randomAccessFile.close();
+            } catch (IOException e) {
+                System.out.println("RegionFileStore: cannot close " + file);
+            }
+            buffer = null;
+            file.delete();
+        }
+    }
+
+    private File getDirectory() throws IOException {
+        if (directory == null) {
+            directory = Files.createTempDirectory("minimetro-regions").toFile();
+            directory.deleteOnExit();
+        }
+        return directory;
+    }
+
+    private static long getKey(int regionRow, int regionCol) {
+        return ((long) regionRow << 32) | (regionCol & 0xffffffffL);
+    }
+
+    private Region getRegion(int chunkRow, int chunkCol) {
+        return regions.get(getKey(Math.floorDiv(chunkRow, REGION_SIZE), Math.floorDiv(chunkCol, REGION_SIZE)));
+    }
+
+    private static int getSlot(int chunkRow, int chunkCol) {
+        return Math.floorMod(chunkRow, REGION_SIZE) * REGION_SIZE + Math.floorMod(chunkCol, REGION_SIZE);
+    }
+
+    /**
+     * Tell if a chunk is stored.
+     *
+     * @param chunkRow
+     * @param chunkCol
+     * @return
+     */
+    protected boolean contains(int chunkRow, int chunkCol) {
+        Region region = getRegion(chunkRow, chunkCol);
+        return region != null && region.getLength(getSlot(chunkRow, chunkCol)) > 0;
+    }
+
+    /**
+     * Store the data of a chunk, in place of any previous data of that chunk.
+     *
+     * @param chunkRow
+     * @param chunkCol
+     * @param data must not be empty
+     * @return true when the data was written, false if an error occured.
+     */
+    protected boolean write(int chunkRow, int chunkCol, byte data[]) {
+        try {
+            Region region = getRegion(chunkRow, chunkCol);
+            if (region == null) {
+                int regionRow = Math.floorDiv(chunkRow, REGION_SIZE);
+                int regionCol = Math.floorDiv(chunkCol, REGION_SIZE);
+                region = new Region(regionRow, regionCol);
+                regions.put(getKey(regionRow, regionCol), region);
+            }
+            region.write(getSlot(chunkRow, chunkCol), data);
+            return true;
+        } catch (IOException e) {
+            System.out.println("RegionFileStore: cannot write chunk " + chunkRow + ", " + chunkCol);
+            return false;
+        }
+    }
+
+    /**
+     * Read the data of a chunk; the chunk stays in the store.
+     *
+     * @param chunkRow
+     * @param chunkCol
+     * @return the data, or null if the chunk is not stored.
+     */
+    protected byte[] read(int chunkRow, int chunkCol) {
+        if (!contains(chunkRow, chunkCol)) {
+            return null;
+        }
+        return getRegion(chunkRow, chunkCol).read(getSlot(chunkRow, chunkCol));
+    }
+
+    protected void remove(int chunkRow, int chunkCol) {
+        Region region = getRegion(chunkRow, chunkCol);
+        if (region != null) {
+            region.remove(getSlot(chunkRow, chunkCol));
+        }
+    }
+
+    /**
+     * Get the data of all the stored chunks, region by region.
+     *
+     * @return
+     */
+    protected ArrayList<byte[]> readAll() {
+        ArrayList<byte[]> result = new ArrayList<>();
+        for (Region region : regions) {
+            for (int slot = 0; slot < NB_SLOTS; slot++) {
+                if (region.getLength(slot) > 0) {
+                    result.add(region.read(slot));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forget all the chunks and delete the files.
+     */
+    protected void close() {
+        for (Region region : regions) {
+            region.close();
+        }
+        regions.clear();
+        if (directory != null) {
+            directory.delete();
+            directory = null;
+        }
+    }
+}
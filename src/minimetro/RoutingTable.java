@@ -0,0 +1,144 @@
+package minimetro;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.stream.IntStream;
+
+/**
+ * The next stop between any two stations of the network, computed at once.
+ *
+ * The stations are numbered from 0 to n-1, and the neighbors of each station
+ * are stored in one int array (compressed rows). One breadth-first search is
+ * run from every station, in parallel, and the first stop of each path is
+ * kept, so that the next stop of a passenger is read from one array entry.
+ * The searches are run again only when the version of the network changes and
+ * the compiled graph is actually different.
+ *
+ * @author arthu
+ */
+public class RoutingTable {
+
+    private static final int UNREACHABLE = -1;
+
+    private int nbStations;
+    private int stationIds[]; // Station id for each index.
+    private HashMap<Integer, Integer> stationIndices; // Index for each station id.
+
+    // The neighbors of station i are adjacency[adjacencyStart[i]] to adjacency[adjacencyStart[i+1] - 1].
+    private int adjacencyStart[];
+    private int adjacency[];
+
+    // For the pair (origin i, destination j), entry i * nbStations + j: first stop after the origin, UNREACHABLE if none.
+    private int nextHop[];
+
+    private long version;
+
+    public RoutingTable() {
+        nbStations = 0;
+        stationIds = new int[0];
+        stationIndices = new HashMap<>();
+        adjacencyStart = new int[1];
+        adjacency = new int[0];
+        nextHop = new int[0];
+        version = -1;
+    }
+
+    protected boolean isUpToDate(long networkVersion) {
+        return version == networkVersion;
+    }
+
+    /**
+     * Compile the network of the map into the table.
+     *
+     * @param map
+     * @param networkVersion
+     */
+    protected void rebuild(WorldMap map, long networkVersion) {
+
+        ArrayList<Integer> ids = map.getAllStationIds();
+        int newNbStations = ids.size();
+        int newStationIds[] = new int[newNbStations];
+        HashMap<Integer, Integer> newStationIndices = new HashMap<>();
+        for (int index = 0; index < newNbStations; index++) {
+            newStationIds[index] = ids.get(index);
+            newStationIndices.put(newStationIds[index], index);
+        }
+
+        // Neighbors, in the order given by the map so that equivalent paths are chosen the same way.
+        int newAdjacencyStart[] = new int[newNbStations + 1];
+        int neighborIndices[][] = new int[newNbStations][];
+        for (int index = 0; index < newNbStations; index++) {
+            ArrayList<Integer> neighbors = map.getNeighbors(newStationIds[index]);
+            neighborIndices[index] = new int[neighbors.size()];
+            for (int rank = 0; rank < neighbors.size(); rank++) {
+                neighborIndices[index][rank] = newStationIndices.get(neighbors.get(rank));
+            }
+            newAdjacencyStart[index + 1] = newAdjacencyStart[index] + neighbors.size();
+        }
+        int newAdjacency[] = new int[newAdjacencyStart[newNbStations]];
+        for (int index = 0; index < newNbStations; index++) {
+            System.arraycopy(neighborIndices[index], 0, newAdjacency, newAdjacencyStart[index], neighborIndices[index].length);
+        }
+
+        version = networkVersion;
+        if (Arrays.equals(newStationIds, stationIds) && Arrays.equals(newAdjacencyStart, adjacencyStart)
+                && Arrays.equals(newAdjacency, adjacency)) {
+            // Same graph, the next stops are still valid.
+            return;
+        }
+        nbStations = newNbStations;
+        stationIds = newStationIds;
+        stationIndices = newStationIndices;
+        adjacencyStart = newAdjacencyStart;
+        adjacency = newAdjacency;
+        nextHop = new int[nbStations * nbStations];
+        IntStream.range(0, nbStations).parallel().forEach(this::searchFrom);
+    }
+
+    /**
+     * Breadth-first search from one station; only writes the row of that
+     * station.
+     *
+     * @param origin index of the station
+     */
+    private void searchFrom(int origin) {
+        int row = origin * nbStations;
+        Arrays.fill(nextHop, row, row + nbStations, UNREACHABLE);
+
+        boolean isVisited[] = new boolean[nbStations];
+        int queue[] = new int[nbStations];
+        int head = 0, tail = 0;
+        queue[tail++] = origin;
+        isVisited[origin] = true;
+
+        while (head < tail) {
+            int current = queue[head++];
+            for (int rank = adjacencyStart[current]; rank < adjacencyStart[current + 1]; rank++) {
+                int neighbor = adjacency[rank];
+                if (!isVisited[neighbor]) {
+                    isVisited[neighbor] = true;
+                    nextHop[row + neighbor] = (current == origin ? neighbor : nextHop[row + current]);
+                    queue[tail++] = neighbor;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the next stop between two stations.
+     *
+     * @param originId
+     * @param targetId
+     * @return the id of the next station, or -1 if the target is not reachable.
+     */
+    protected int getNextStop(int originId, int targetId) {
+        Integer origin = stationIndices.get(originId);
+        Integer target = stationIndices.get(targetId);
+        if (origin == null || target == null) {
+            return UNREACHABLE;
+        }
+        int hop = nextHop[origin * nbStations + target];
+        return hop == UNREACHABLE ? UNREACHABLE : stationIds[hop];
+    }
+}
@@ -0,0 +1,172 @@
+package minimetro;
+
+/**
+ * This class advances a World on its own thread, without any display.
+ *
+ * Each call to World.step() always covers the same simulated duration. In
+ * real-time mode, a time accumulator decides how many steps are due so that
+ * the simulation keeps pace with the wall clock; in fast mode the steps are
+ * chained as fast as possible.
+ *
+ * @author arthu
+ */
+public class SimulationEngine implements Runnable {
+
+    // When the engine falls behind the wall clock, never catch up with more
+    // than this number of steps at once.
+    private static final int MAX_STEPS_PER_FRAME = 5;
+
+    private final World world;
+    private final long stepPeriodNanos;
+
+    private boolean isFastMode;
+    private long maxNbSteps; // -1 for no limit.
+
+    private Thread thread;
+    private volatile boolean mustStop;
+    private volatile long nbStepsDone;
+    private long startTimeNanos, endTimeNanos;
+
+    public SimulationEngine(World newWorld) {
+        world = newWorld;
+        stepPeriodNanos = world.getPeriodMillisec() * 1000000L;
+        isFastMode = false;
+        maxNbSteps = -1;
+        nbStepsDone = 0;
+    }
+
+    /**
+     * Choose between real time and running the steps as fast as possible.
+     *
+     * @param newIsFastMode
+     */
+    public void setFastMode(boolean newIsFastMode) {
+        isFastMode = newIsFastMode;
+    }
+
+    /**
+     * Stop automatically after a given number of steps.
+     *
+     * @param newMaxNbSteps -1 for no limit
+     */
+    public void setMaxNbSteps(long newMaxNbSteps) {
+        maxNbSteps = newMaxNbSteps;
+    }
+
+    /**
+     * Stop automatically after a given simulated duration.
+     *
+     * @param simulatedSeconds
+     */
+    public void setMaxSimulatedTime(double simulatedSeconds) {
+        maxNbSteps = (long) Math.ceil(simulatedSeconds / world.getSimulationDt());
+    }
+
+    /**
+     * Run the simulation on a new thread.
+     */
+    public void start() {
+        if (thread != null && thread.isAlive()) {
+            System.out.println("SimulationEngine already running.");
+            return;
+        }
+        mustStop = false;
+        thread = new Thread(this, "SimulationEngine");
+        thread.start();
+    }
+
+    /**
+     * Ask the simulation thread to stop after the current step.
+     */
+    public void stop() {
+        mustStop = true;
+    }
+
+    /**
+     * Wait until the simulation thread has finished.
+     */
+    public void join() {
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                System.out.println("SimulationEngine: interrupted while waiting.");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        startTimeNanos = System.nanoTime();
+        endTimeNanos = startTimeNanos;
+        long previousTimeNanos = startTimeNanos;
+        long accumulatorNanos = 0;
+
+        while (!mustStop && !isFinished()) {
+            if (isFastMode) {
+                doStep();
+            } else {
+                long currentTimeNanos = System.nanoTime();
+                accumulatorNanos += currentTimeNanos - previousTimeNanos;
+                previousTimeNanos = currentTimeNanos;
+                if (accumulatorNanos > MAX_STEPS_PER_FRAME * stepPeriodNanos) {
+                    // Too late, drop the extra simulated time.
+                    accumulatorNanos = MAX_STEPS_PER_FRAME * stepPeriodNanos;
+                }
+                while (accumulatorNanos >= stepPeriodNanos && !mustStop && !isFinished()) {
+                    doStep();
+                    accumulatorNanos -= stepPeriodNanos;
+                }
+                sleepNanos(stepPeriodNanos - accumulatorNanos);
+            }
+        }
+        endTimeNanos = System.nanoTime();
+    }
+
+    private void doStep() {
+        world.step();
+        nbStepsDone++;
+    }
+
+    private boolean isFinished() {
+        return maxNbSteps >= 0 && nbStepsDone >= maxNbSteps;
+    }
+
+    private void sleepNanos(long duration) {
+        if (duration > 0) {
+            try {
+                Thread.sleep(duration / 1000000, (int) (duration % 1000000));
+            } catch (InterruptedException e) {
+                mustStop = true;
+            }
+        }
+    }
+
+    public long getNbStepsDone() {
+        return nbStepsDone;
+    }
+
+    /**
+     * Get the duration of the last run.
+     *
+     * @return the elapsed real time in seconds
+     */
+    public double getElapsedSeconds() {
+        long end = (thread != null && thread.isAlive()) ? System.nanoTime() : endTimeNanos;
+        return (end - startTimeNanos) / 1e9;
+    }
+
+    /**
+     * Get the throughput of the last run.
+     *
+     * @return the number of steps per second of real time
+     */
+    public double getStepsPerSecond() {
+        double elapsed = getElapsedSeconds();
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return nbStepsDone / elapsed;
+    }
+}
@@ -0,0 +1,221 @@
+package minimetro;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A uniform grid of the positions of the TrainElements of the world.
+ *
+ * The buckets are aligned with the cells, so that an element only changes
+ * bucket when it is transferred from one cell to the next. Only the buckets
+ * that contain elements exist. The radius and point queries give the elements
+ * in the order of the rows, then of the columns, like a scan of the grid would.
+ *
+ * @author arthu
+ */
+public class SpatialIndex {
+
+    private final double bucketSize;
+    private HashMap<Long, ArrayList<TrainElement>> buckets;
+    private int size;
+
+    public SpatialIndex(double newBucketSize) {
+        bucketSize = newBucketSize;
+        buckets = new HashMap<>();
+        size = 0;
+    }
+
+    /**
+     * Bucket coordinate of a position; bucket 0 is centered on 0, like cell 0.
+     */
+    private int getBucket(double coordinate) {
+        return (int) Math.floor(coordinate / bucketSize + 0.5);
+    }
+
+    private static long getKey(int bucketX, int bucketY) {
+        return ((long) bucketX << 32) | (bucketY & 0xffffffffL);
+    }
+
+    protected void add(TrainElement te) {
+        if (te.isIndexed) {
+            update(te);
+            return;
+        }
+        long key = getKey(getBucket(te.getX()), getBucket(te.getY()));
+        ArrayList<TrainElement> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            buckets.put(key, bucket);
+        }
+        bucket.add(te);
+        te.spatialKey = key;
+        te.isIndexed = true;
+        size++;
+    }
+
+    protected void remove(TrainElement te) {
+        if (!te.isIndexed) {
+            return;
+        }
+        ArrayList<TrainElement> bucket = buckets.get(te.spatialKey);
+        if (bucket != null) {
+            bucket.remove(te);
+            if (bucket.isEmpty()) {
+                buckets.remove(te.spatialKey);
+            }
+        }
+        te.isIndexed = false;
+        size--;
+    }
+
+    /**
+     * Move an element to the bucket of its current position.
+     *
+     * @param te
+     */
+    protected void update(TrainElement te) {
+        if (!te.isIndexed) {
+            add(te);
+            return;
+        }
+        long key = getKey(getBucket(te.getX()), getBucket(te.getY()));
+        if (key != te.spatialKey) {
+            remove(te);
+            add(te);
+        }
+    }
+
+    protected void clear() {
+        for (ArrayList<TrainElement> bucket : buckets.values()) {
+            for (TrainElement te : bucket) {
+                te.isIndexed = false;
+            }
+        }
+        buckets.clear();
+        size = 0;
+    }
+
+    protected int size() {
+        return size;
+    }
+
+    /**
+     * Find the elements closer than a given distance to a point.
+     *
+     * @param x
+     * @param y
+     * @param radius
+     * @param result this list is emptied, then receives the elements found.
+     */
+    protected void getElementsInRadius(double x, double y, double radius, ArrayList<TrainElement> result) {
+        result.clear();
+        collectBuckets(getBucket(x - radius), getBucket(y - radius), getBucket(x + radius), getBucket(y + radius),
+                result);
+        double squaredRadius = radius * radius;
+        int nbKept = 0;
+        for (int rank = 0; rank < result.size(); rank++) {
+            TrainElement te = result.get(rank);
+            double dx = te.getX() - x;
+            double dy = te.getY() - y;
+            if (dx * dx + dy * dy < squaredRadius) {
+                result.set(nbKept, te);
+                nbKept++;
+            }
+        }
+        while (result.size() > nbKept) {
+            result.remove(result.size() - 1);
+        }
+    }
+
+    /**
+     * Find the elements whose bucket intersects a rectangle.
+     *
+     * The elements near the border of the rectangle may be outside of it.
+     *
+     * @param xMin
+     * @param yMin
+     * @param xMax
+     * @param yMax
+     * @param result this list is emptied, then receives the elements found.
+     */
+    protected void getElementsInRect(double xMin, double yMin, double xMax, double yMax,
+            ArrayList<TrainElement> result) {
+        result.clear();
+        if (size == 0) {
+            return;
+        }
+        int bxMin = getBucket(xMin);
+        int bxMax = getBucket(xMax);
+        int byMin = getBucket(yMin);
+        int byMax = getBucket(yMax);
+        if ((long) (bxMax - bxMin + 1) * (byMax - byMin + 1) > buckets.size()) {
+            // More buckets in the rectangle than in the index: visit the existing buckets
+            // instead, in no particular order.
+            getAllElementsInRect(bxMin, byMin, bxMax, byMax, result);
+            return;
+        }
+        collectBuckets(bxMin, byMin, bxMax, byMax, result);
+    }
+
+    /**
+     * Add the content of the buckets of a rectangle, from the top row to the
+     * bottom one, like the rows of the world.
+     */
+    private void collectBuckets(int bxMin, int byMin, int bxMax, int byMax, ArrayList<TrainElement> result) {
+        for (int by = byMax; by >= byMin; by--) {
+            for (int bx = bxMin; bx <= bxMax; bx++) {
+                ArrayList<TrainElement> bucket = buckets.get(getKey(bx, by));
+                if (bucket != null) {
+                    result.addAll(bucket);
+                }
+            }
+        }
+    }
+
+    private void getAllElementsInRect(int bxMin, int byMin, int bxMax, int byMax, ArrayList<TrainElement> result) {
+        for (ArrayList<TrainElement> bucket : buckets.values()) {
+            if (!bucket.isEmpty()) {
+                long key = bucket.get(0).spatialKey;
+                int bx = (int) (key >> 32);
+                int by = (int) key;
+                if (bx >= bxMin && bx <= bxMax && by >= byMin && by <= byMax) {
+                    result.addAll(bucket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the element closest to a point.
+     *
+     * @param x
+     * @param y
+     * @param maxDistance
+     * @return the closest element, or null if none is closer than maxDistance.
+     */
+    protected TrainElement getElementAt(double x, double y, double maxDistance) {
+        TrainElement closest = null;
+        double smallestSquaredDistance = maxDistance * maxDistance;
+        int bxMin = getBucket(x - maxDistance);
+        int bxMax = getBucket(x + maxDistance);
+        int byMin = getBucket(y - maxDistance);
+        int byMax = getBucket(y + maxDistance);
+        for (int by = byMax; by >= byMin; by--) {
+            for (int bx = bxMin; bx <= bxMax; bx++) {
+                ArrayList<TrainElement> bucket = buckets.get(getKey(bx, by));
+                if (bucket != null) {
+                    for (TrainElement te : bucket) {
+                        double dx = te.getX() - x;
+                        double dy = te.getY() - y;
+                        double squaredDistance = dx * dx + dy * dy;
+                        if (squaredDistance < smallestSquaredDistance) {
+                            smallestSquaredDistance = squaredDistance;
+                            closest = te;
+                        }
+                    }
+                }
+            }
+        }
+        return closest;
+    }
+}
@@ -3,6 +3,7 @@ package minimetro;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics;
+import java.awt.geom.Rectangle2D;
 import java.io.FileWriter;
 import static java.lang.Math.max;
 import java.util.ArrayList;
@@ -88,20 +89,25 @@ public class StationCell extends Cell {
     }
 
     @Override
-    protected void paintForeground(Graphics g, double x0, double y0, double zoom) {
+    protected void addToTrackLayer(TrackLayer layer) {
+        // A white square filled with the color of the station, except for a border of 3 pixels.
+        layer.getPath(TrackLayer.STATIONS, Color.white, true).append(
+                new Rectangle2D.Double(absolutePosition.x - cellSize * 0.5, absolutePosition.y - cellSize * 0.5,
+                        cellSize, cellSize), false);
+        layer.addInsetSquare(this.color, absolutePosition.x, absolutePosition.y, cellSize, 3);
+        // The id and the passengers are painted at each frame.
+        layer.addOverlayCell(this);
+        super.addToTrackLayer(layer);
+    }
+
+    @Override
+    protected void paintOverlay(Graphics g, double x0, double y0, double zoom) {
 
         // On-screen coordinates of the center of the cell:
         final double xApp = absolutePosition.x * zoom + x0;
         final double yApp = g.getClipBounds().height - (absolutePosition.y * zoom + y0);
         final double appSize = zoom * cellSize;
 
-        g.setColor(Color.white);
-        g.fillRect((int) (xApp - appSize * 0.5), (int) (yApp - appSize * 0.5),
-                (int) appSize, (int) appSize);
-        g.setColor(this.color);
-        g.fillRect((int) (xApp - appSize * 0.5 + 3), (int) (yApp - appSize * 0.5 + 3),
-                (int) appSize - 6, (int) appSize - 6);
-
         int rr = this.color.getRed();
         int gg = this.color.getGreen();
         int bb = this.color.getBlue();
@@ -121,7 +127,7 @@ public class StationCell extends Cell {
             p.paint(g, x0, y0, zoom);
         }
 
-        super.paintForeground(g, x0, y0, zoom);
+        super.paintOverlay(g, x0, y0, zoom);
     }
 
     protected void addPassenger(Passenger passenger) {
@@ -297,6 +303,11 @@ public class StationCell extends Cell {
         this.walkways.put(cardinalPoint, connectedStation);
     }
 
+    @Override
+    protected void removeWalkwayDirection(StationCell removedStation) {
+        this.walkways.values().removeIf(station -> station == removedStation);
+    }
+
     private Wagon findStoppedWagonWithRoom() {
         for (TrainElement te : trainElements) {
             if (te instanceof Wagon) {
@@ -0,0 +1,38 @@
+package minimetro;
+
+/**
+ * The parts of a simulation step that only modify the state of a single cell
+ * (and of the elements and passengers it contains).
+ * Such a phase may be applied to several cells at the same time.
+ *
+ * @author arthu
+ */
+public enum StepPhase {
+    MOTOR_FORCES,
+    SNAP_TO_RAIL,
+    MOVE_TRAINS,
+    MOVE_PASSENGERS;
+
+    /**
+     * Apply this phase to one cell.
+     *
+     * @param c
+     * @param dt
+     */
+    protected void apply(Cell c, double dt) {
+        switch (this) {
+        case MOTOR_FORCES:
+            c.computeMotorForces(dt); // Set the force applied on each loco
+            break;
+        case SNAP_TO_RAIL:
+            c.snapToRail();
+            break;
+        case MOVE_TRAINS:
+            c.moveTrains(dt);
+            break;
+        case MOVE_PASSENGERS:
+            c.movePassengers(dt);
+            break;
+        }
+    }
+}
@@ -64,6 +64,15 @@ public class SwitchCell extends Cell {
         super.id = prevId;
     }
 
+    /**
+     * The rails that are painted on top depend on the state of the switch,
+     * so the whole cell is painted at each frame.
+     */
+    @Override
+    protected void addToTrackLayer(TrackLayer layer) {
+        layer.addDynamicCell(this);
+    }
+
     @Override
     protected void paintForeground(Graphics g, double x0, double y0, double zoom) {
         if (isToggled) {
@@ -226,21 +235,20 @@ public class SwitchCell extends Cell {
     }
 
     private Cell chooseSubCell(TrainElement newTrain) {
-        RailSegment railA = cellA.findClosestRailSegment(newTrain);
-        RailSegment railB = cellB.findClosestRailSegment(newTrain);
-
-        double distanceA;
-        if (railA == null) {
-            distanceA = Double.MAX_VALUE;
-        } else {
-            distanceA = railA.getDistance(newTrain);
-        }
-        double distanceB;
-        if (railB == null) {
-            distanceB = Double.MAX_VALUE;
-        } else {
-            distanceB = railB.getDistance(newTrain);
+        if (newTrain.isTrackRelative && newTrain.isOnTrack() && newTrain.trackExit != CardinalPoint.CENTER
+                && !isSwitchIncomplete()) {
+            // The element comes from a neighbor along the rails: the side it enters through decides.
+            CardinalPoint entry = CardinalPoint.getOpposite(newTrain.trackExit);
+            if (entry == connections[0]) {
+                return isToggled ? cellB : cellA;
+            } else if (entry == connections[1]) {
+                return cellA;
+            } else if (entry == connections[2]) {
+                return cellB;
+            }
         }
+        double distanceA = cellA.getDistanceToRails(newTrain);
+        double distanceB = cellB.getDistanceToRails(newTrain);
 
         Cell chosenCell;
         if (distanceA > MAX_DISTANCE) {
@@ -269,24 +277,12 @@ public class SwitchCell extends Cell {
         cellB.snapToRail();
     }
 
-    @Override
-    public void resetForces() {
-        cellA.resetForces();
-        cellB.resetForces();
-    }
-
     @Override
     protected void computeMotorForces(double dt) {
         cellA.computeMotorForces(dt);
         cellB.computeMotorForces(dt);
     }
 
-    @Override
-    void computeNewSpeeds(double dt) {
-        cellA.computeNewSpeeds(dt);
-        cellB.computeNewSpeeds(dt);
-    }
-
     @Override
     protected void moveTrains(double dt) {
         cellA.moveTrains(dt);
@@ -350,6 +346,15 @@ public class SwitchCell extends Cell {
         return cellA.isEmpty() && cellB.isEmpty();
     }
 
+    /**
+     * A switch is kept as long as one of its connections is set.
+     */
+    @Override
+    protected boolean isUnused() {
+        return super.isUnused()
+                && connections[0] == null && connections[1] == null && connections[2] == null;
+    }
+
     @Override
     protected void setActive(boolean b) {
         super.setActive(b);
@@ -357,12 +362,6 @@ public class SwitchCell extends Cell {
         cellB.setActive(false);
     }
 
-    @Override
-    protected void startLocos() {
-        cellA.startLocos();
-        cellB.startLocos();
-    }
-
     @Override
     protected void removeTrains() {
         cellA.removeTrains();
@@ -0,0 +1,173 @@
+package minimetro;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * Computes the terrain of the chunks on a pool of background threads.
+ *
+ * The requests are served by priority: first the chunks of the area that is
+ * displayed (the most recent view first, the center of the view first), then
+ * the chunks around it, then all the others. The workers only compute new
+ * TerrainLayer objects; the finished layers are collected by the world on its
+ * own thread, with takeResult, so that the chunks are never modified by a
+ * worker.
+ *
+ * @author arthu
+ */
+public class TerrainGenerator {
+
+    // Priority levels, from the most urgent.
+    protected static final int VISIBLE = 0;
+    protected static final int NEAR_VISIBLE = 1;
+    protected static final int BACKGROUND = 2;
+
+    private final World world;
+    private final PriorityBlockingQueue<Request> requests;
+    private final ConcurrentLinkedQueue<Request> results;
+    // Called by a worker each time a layer is ready.
+    private final Runnable onResult;
+    private long nbRequestsCreated;
+
+    public TerrainGenerator(World newWorld, Runnable newOnResult) {
+        this(newWorld, newOnResult, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    public TerrainGenerator(World newWorld, Runnable newOnResult, int nbWorkers) {
+        world = newWorld;
+        onResult = newOnResult;
+        requests = new PriorityBlockingQueue<>();
+        results = new ConcurrentLinkedQueue<>();
+        nbRequestsCreated = 0;
+        for (int i = 0; i < nbWorkers; i++) {
+            Thread worker = new Thread(this::work, "TerrainGenerator-" + i);
+            worker.setDaemon(true);
+            worker.setPriority(Thread.MIN_PRIORITY);
+            worker.start();
+        }
+    }
+
+    /**
+     * The terrain of one chunk, to be computed for a given version of the
+     * world noise.
+     */
+    protected static class Request implements Comparable<Request> {
+
+        protected final int chunkRow, chunkCol;
+        protected final int version;
+        protected final int level;
+        // Serial number of the view that made the request; the latest view is served first.
+        protected final int viewSerial;
+        // Squared distance to the center of that view, in chunks.
+        private final long distance;
+        private final long sequence;
+        private volatile boolean isCancelled;
+        protected TerrainLayer terrain;
+
+        private Request(int newChunkRow, int newChunkCol, int newVersion, int newLevel,
+                int newViewSerial, long newDistance, long newSequence) {
+            chunkRow = newChunkRow;
+            chunkCol = newChunkCol;
+            version = newVersion;
+            level = newLevel;
+            viewSerial = newViewSerial;
+            distance = newDistance;
+            sequence = newSequence;
+            isCancelled = false;
+            terrain = null;
+        }
+
+        /**
+         * Tell the workers not to compute this request, e.g. when it was
+         * replaced by a more urgent one or when the chunk was computed
+         * synchronously.
+         */
+        protected void cancel() {
+            isCancelled = true;
+        }
+
+        protected boolean isCancelled() {
+            return isCancelled;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (level != other.level) {
+                return Integer.compare(level, other.level);
+            }
+            if (viewSerial != other.viewSerial) {
+                return Integer.compare(other.viewSerial, viewSerial);
+            }
+            if (distance != other.distance) {
+                return Long.compare(distance, other.distance);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Ask for the terrain of a chunk.
+     *
+     * @param chunkRow
+     * @param chunkCol
+     * @param version version of the noise; the result is ignored if the
+     * version changed in the meantime.
+     * @param level VISIBLE, NEAR_VISIBLE or BACKGROUND
+     * @param viewSerial serial number of the current view
+     * @param distance squared distance to the center of the view, in chunks
+     * @return the request, that may be cancelled later.
+     */
+    protected Request request(int chunkRow, int chunkCol, int version, int level, int viewSerial, long distance) {
+        Request r = new Request(chunkRow, chunkCol, version, level, viewSerial, distance, nbRequestsCreated);
+        nbRequestsCreated++;
+        requests.add(r);
+        return r;
+    }
+
+    /**
+     * Get a request that was computed by a worker.
+     *
+     * @return the request with its terrain, or null if none is ready.
+     */
+    protected Request takeResult() {
+        return results.poll();
+    }
+
+    /**
+     * Number of requests that no worker started yet, including the cancelled
+     * ones.
+     */
+    protected int getNbWaitingRequests() {
+        return requests.size();
+    }
+
+    /**
+     * Forget all the requests, e.g. when a new world is loaded.
+     */
+    protected void clear() {
+        requests.clear();
+        results.clear();
+    }
+
+    private void work() {
+        while (true) {
+            Request r;
+            try {
+                r = requests.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (r.isCancelled()) {
+                continue;
+            }
+            try {
+                r.terrain = world.computeTerrain(r.chunkRow, r.chunkCol);
+            } catch (RuntimeException e) {
+                System.out.println("TerrainGenerator: cannot compute chunk " + r.chunkRow + ", " + r.chunkCol + ": " + e);
+                continue;
+            }
+            results.add(r);
+            onResult.run();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package minimetro;
+
+/**
+ * The natural terrain of the world: altitude, biome and display color of every
+ * square of the grid, stored in primitive arrays.
+ *
+ * The Cell objects only exist where something is built; the terrain exists
+ * everywhere.
+ *
+ * @author arthu
+ */
+public class TerrainLayer {
+
+    // Value of a color that has not been computed yet; actual colors are opaque, so never 0.
+    protected static final int NO_COLOR = 0;
+
+    private final int nbRows, nbCols;
+    private final float altitude[];
+    private final byte biome[];
+    // Packed ARGB value of the color of each square.
+    private final int color[];
+    // Raw value of each level of the noise, kept to compute the altitude again when the amplitudes change;
+    // null once released, the layer must then be computed again for new amplitudes.
+    private float levels[][];
+    // Incremented when the altitudes, the biomes or the colors change, so that the tile is rendered again.
+    private int version;
+    private TerrainTile tile;
+
+    public TerrainLayer(int newNbRows, int newNbCols) {
+        nbRows = newNbRows;
+        nbCols = newNbCols;
+        int size = nbRows * nbCols;
+        altitude = new float[size];
+        biome = new byte[size];
+        color = new int[size];
+        levels = null;
+        version = 0;
+        tile = null;
+    }
+
+    protected boolean contains(int row, int col) {
+        return row >= 0 && row < nbRows && col >= 0 && col < nbCols;
+    }
+
+    private int getIndex(int row, int col) {
+        return row * nbCols + col;
+    }
+
+    /**
+     * Get the altitude of a square.
+     *
+     * @param row
+     * @param col
+     * @return the altitude, or NaN outside of the grid.
+     */
+    protected double getAltitude(int row, int col) {
+        if (!contains(row, col)) {
+            return Double.NaN;
+        }
+        return altitude[getIndex(row, col)];
+    }
+
+    protected void setAltitude(int row, int col, double newAltitude) {
+        altitude[getIndex(row, col)] = (float) newAltitude;
+        version++;
+    }
+
+    /**
+     * Compute the levels of the noise of this layer, and the altitude that
+     * they give.
+     *
+     * @param noise
+     * @param x0 position of the square (0, 0)
+     * @param y0
+     * @param dx distance between two columns
+     * @param dy distance between two rows
+     */
+    protected void fillAltitudes(PerlinNoise noise, double x0, double y0, double dx, double dy) {
+        levels = new float[noise.getNbLevels()][nbRows * nbCols];
+        for (int level = 0; level < levels.length; level++) {
+            noise.fillLevel(levels[level], level, nbRows, nbCols, x0, y0, dx, dy);
+        }
+        noise.combineLevels(levels, altitude);
+        version++;
+    }
+
+    /**
+     * Compute the altitude again from the stored levels, with the current
+     * amplitudes of the noise.
+     *
+     * @param noise the noise that filled this layer
+     */
+    protected void combineLevels(PerlinNoise noise) {
+        if (levels != null) {
+            noise.combineLevels(levels, altitude);
+            version++;
+        }
+    }
+
+    /**
+     * Tell if the altitude can be computed again from the stored levels.
+     *
+     * @return false when the levels were released.
+     */
+    protected boolean hasLevels() {
+        return levels != null;
+    }
+
+    /**
+     * Forget the levels of the noise, which take several times the memory of
+     * the altitudes. The altitudes stay valid for the current amplitudes.
+     */
+    protected void releaseLevels() {
+        levels = null;
+    }
+
+    protected int getBiome(int row, int col) {
+        return biome[getIndex(row, col)];
+    }
+
+    protected void setBiome(int row, int col, int newBiome) {
+        biome[getIndex(row, col)] = (byte) newBiome;
+        version++;
+    }
+
+    /**
+     * Get the packed color of a square.
+     *
+     * @param row
+     * @param col
+     * @return the ARGB value, or NO_COLOR if it was not computed yet.
+     */
+    protected int getColor(int row, int col) {
+        return color[getIndex(row, col)];
+    }
+
+    protected void setColor(int row, int col, int newColor) {
+        color[getIndex(row, col)] = newColor;
+    }
+
+    /**
+     * Compute again the colors that were already computed; the others are
+     * still computed when needed.
+     *
+     * @param palette
+     */
+    protected void recolor(TerrainPalette palette) {
+        for (int index = 0; index < color.length; index++) {
+            if (color[index] != NO_COLOR) {
+                color[index] = palette.getColor(altitude[index], biome[index]);
+            }
+        }
+        version++;
+    }
+
+    /**
+     * Forget all the colors, they will be computed again when needed.
+     */
+    protected void clearColors() {
+        for (int index = 0; index < color.length; index++) {
+            color[index] = NO_COLOR;
+        }
+        version++;
+    }
+
+    protected int getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the rendered images of this layer, and render them again if the
+     * layer changed since.
+     *
+     * @param palette the colors used for the squares that have none yet
+     * @return
+     */
+    protected TerrainTile getTile(TerrainPalette palette) {
+        if (tile == null || tile.getVersion() != version) {
+            tile = new TerrainTile(this, palette, nbRows, nbCols);
+        }
+        return tile;
+    }
+}
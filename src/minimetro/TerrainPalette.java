@@ -0,0 +1,16 @@
+package minimetro;
+
+/**
+ * Gives the display color of a square of terrain.
+ *
+ * @author arthu
+ */
+public interface TerrainPalette {
+
+    /**
+     * @param altitude
+     * @param biome
+     * @return the packed ARGB value of the color; must be opaque.
+     */
+    int getColor(double altitude, int biome);
+}
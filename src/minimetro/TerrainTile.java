@@ -0,0 +1,106 @@
+package minimetro;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * The terrain of a layer rendered as images, one pixel per square, with
+ * smaller copies for the low zoom levels.
+ *
+ * Image k of the pyramid has one pixel for 2^k x 2^k squares, each pixel being
+ * the average color of those squares. The tile is built for one version of
+ * its layer, and must be built again when that version changes.
+ *
+ * @author arthu
+ */
+public class TerrainTile {
+
+    protected static final int NB_MIPMAP_LEVELS = 6;
+
+    private final BufferedImage images[];
+    private final int version;
+
+    /**
+     * Render a terrain layer; the colors that are not computed yet are
+     * computed with the palette and stored in the layer.
+     *
+     * @param terrain
+     * @param palette
+     * @param nbRows
+     * @param nbCols
+     */
+    public TerrainTile(TerrainLayer terrain, TerrainPalette palette, int nbRows, int nbCols) {
+        version = terrain.getVersion();
+
+        int pixels[] = new int[nbRows * nbCols];
+        for (int row = 0; row < nbRows; row++) {
+            for (int col = 0; col < nbCols; col++) {
+                int color = terrain.getColor(row, col);
+                if (color == TerrainLayer.NO_COLOR) {
+                    color = palette.getColor(terrain.getAltitude(row, col), terrain.getBiome(row, col));
+                    terrain.setColor(row, col, color);
+                }
+                pixels[row * nbCols + col] = color;
+            }
+        }
+
+        images = new BufferedImage[NB_MIPMAP_LEVELS];
+        int width = nbCols;
+        int height = nbRows;
+        for (int level = 0; level < NB_MIPMAP_LEVELS; level++) {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, width, height, pixels, 0, width);
+            images[level] = image;
+            if (width == 1 && height == 1) {
+                break;
+            }
+            int newWidth = Math.max(1, width / 2);
+            int newHeight = Math.max(1, height / 2);
+            pixels = reduce(pixels, width, height, newWidth, newHeight);
+            width = newWidth;
+            height = newHeight;
+        }
+    }
+
+    /**
+     * Average each block of 2x2 pixels.
+     */
+    private static int[] reduce(int pixels[], int width, int height, int newWidth, int newHeight) {
+        int result[] = new int[newWidth * newHeight];
+        for (int row = 0; row < newHeight; row++) {
+            for (int col = 0; col < newWidth; col++) {
+                int red = 0, green = 0, blue = 0, nbPixels = 0;
+                for (int r = 2 * row; r < Math.min(2 * row + 2, height); r++) {
+                    for (int c = 2 * col; c < Math.min(2 * col + 2, width); c++) {
+                        int color = pixels[r * width + c];
+                        red += (color >> 16) & 0xff;
+                        green += (color >> 8) & 0xff;
+                        blue += color & 0xff;
+                        nbPixels++;
+                    }
+                }
+                result[row * newWidth + col] = 0xff000000
+                        | (red / nbPixels) << 16 | (green / nbPixels) << 8 | (blue / nbPixels);
+            }
+        }
+        return result;
+    }
+
+    protected int getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the image that fits a given display size.
+     *
+     * @param squareSize the size of one square on the screen, in pixels
+     * @return the smallest image where one pixel is still at least one
+     * pixel on the screen.
+     */
+    protected BufferedImage getImage(double squareSize) {
+        int level = 0;
+        while (level < NB_MIPMAP_LEVELS - 1 && images[level + 1] != null && squareSize * (1 << level) < 1) {
+            level++;
+        }
+        return images[level];
+    }
+}
@@ -0,0 +1,134 @@
+package minimetro;
+
+import java.util.Arrays;
+
+/**
+ * The positions recently crossed by a locomotive, with the distance travelled
+ * along the track, so that its wagons can be placed behind it.
+ *
+ * The samples are kept in a ring buffer; the oldest ones are overwritten once
+ * they are farther behind the locomotive than the length of the train.
+ *
+ * @author arthu
+ */
+public class TrackHistory {
+
+    // Minimum distance between two samples.
+    private static final double SAMPLE_SPACING = 0.25;
+
+    private double x[], y[], heading[], arcLength[];
+    private int newest; // Index of the most recent sample.
+    private int nbSamples;
+    private double length; // Distance that must remain available behind the head.
+
+    public TrackHistory(double trainLength) {
+        length = trainLength;
+        int capacity = (int) (2 * trainLength / SAMPLE_SPACING) + 16;
+        x = new double[capacity];
+        y = new double[capacity];
+        heading = new double[capacity];
+        arcLength = new double[capacity];
+        newest = -1;
+        nbSamples = 0;
+    }
+
+    /**
+     * Add a position after the current ones, if it is far enough from the
+     * last one.
+     */
+    protected void record(double newX, double newY, double newHeading) {
+        double newArcLength = 0;
+        if (nbSamples > 0) {
+            double dx = newX - x[newest];
+            double dy = newY - y[newest];
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            if (distance < SAMPLE_SPACING) {
+                return;
+            }
+            newArcLength = arcLength[newest] + distance;
+            if (nbSamples == x.length && newArcLength - arcLength[oldest()] < length + SAMPLE_SPACING) {
+                grow();
+            }
+        }
+        newest = (newest + 1) % x.length;
+        x[newest] = newX;
+        y[newest] = newY;
+        heading[newest] = newHeading;
+        arcLength[newest] = newArcLength;
+        nbSamples = Math.min(nbSamples + 1, x.length);
+    }
+
+    private int oldest() {
+        return (newest - nbSamples + 1 + x.length) % x.length;
+    }
+
+    private void grow() {
+        int capacity = 2 * x.length;
+        double newX[] = new double[capacity];
+        double newY[] = new double[capacity];
+        double newHeading[] = new double[capacity];
+        double newArcLength[] = new double[capacity];
+        for (int rank = 0; rank < nbSamples; rank++) {
+            int index = (oldest() + rank) % x.length;
+            newX[rank] = x[index];
+            newY[rank] = y[index];
+            newHeading[rank] = heading[index];
+            newArcLength[rank] = arcLength[index];
+        }
+        x = newX;
+        y = newY;
+        heading = newHeading;
+        arcLength = newArcLength;
+        newest = nbSamples - 1;
+    }
+
+    protected void clear() {
+        newest = -1;
+        nbSamples = 0;
+        Arrays.fill(arcLength, 0);
+    }
+
+    /**
+     * Place the followers along the recorded path, behind the head.
+     *
+     * @param headX current position of the locomotive
+     * @param headY
+     * @param followers the wagons, from the closest to the farthest
+     * @param offsets distance between the locomotive and each follower
+     * @param store
+     * @param speed speed given to every follower
+     */
+    protected void place(double headX, double headY,
+            TrainElement followers[], double offsets[], TrainPhysicsStore store, double speed) {
+        if (nbSamples == 0) {
+            return;
+        }
+        double dx = headX - x[newest];
+        double dy = headY - y[newest];
+        double headArcLength = arcLength[newest] + Math.sqrt(dx * dx + dy * dy);
+
+        // Segment between sample 'index' and the next position (the head for the newest sample).
+        int index = newest;
+        int nbVisited = 1;
+        double nextX = headX, nextY = headY, nextArcLength = headArcLength;
+        for (int rank = 0; rank < followers.length; rank++) {
+            double target = headArcLength - offsets[rank];
+            // Walk back until the segment contains the target; the followers are sorted, so we never walk forward.
+            while (arcLength[index] > target && nbVisited < nbSamples) {
+                nextX = x[index];
+                nextY = y[index];
+                nextArcLength = arcLength[index];
+                index = (index - 1 + x.length) % x.length;
+                nbVisited++;
+            }
+            double segmentLength = nextArcLength - arcLength[index];
+            double ratio = segmentLength > 0 ? (target - arcLength[index]) / segmentLength : 0;
+            ratio = Math.max(0, Math.min(1, ratio));
+            int slot = followers[rank].slot;
+            store.x[slot] = x[index] + ratio * (nextX - x[index]);
+            store.y[slot] = y[index] + ratio * (nextY - y[index]);
+            store.setHeadingDegrees(slot, heading[index]);
+            store.linearSpeed[slot] = speed;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package minimetro;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * The tracks, stations and signs of a group of cells, stored as shapes in world
+ * coordinates so that they are not rebuilt at each frame.
+ *
+ * The shapes are grouped by depth and color. A layer built for a chunk is
+ * rendered once into an image for the current zoom level, so that panning
+ * only copies that image; when the image would be too large, the groups are
+ * painted directly, with one call each. The texts depend on the zoom level
+ * and the passengers and switches change while the world runs, so the cells
+ * that have them are only listed here and painted at each frame. The layer
+ * must be built again when one of its cells is modified.
+ *
+ * @author arthu
+ */
+public class TrackLayer {
+
+    // Depths of the shapes, from the bottom.
+    protected static final int STATIONS = 0;
+    protected static final int RAILS = 1;
+    protected static final int SIGNS = 2;
+
+    // Largest width or height of the cached image, in pixels.
+    private static final int MAX_IMAGE_SIZE = 1024;
+
+    private final ArrayList<ShapeGroup> groups;
+    // Squares painted over the stations with a margin in pixels, so their size depends on the zoom level.
+    private final ArrayList<InsetSquare> insetSquares;
+    // Cells whose texts or passengers are painted at each frame.
+    private final ArrayList<Cell> overlayCells;
+    // Cells that are completely painted at each frame.
+    private final ArrayList<Cell> dynamicCells;
+
+    // The shapes rendered for one zoom level, when the layer is cached.
+    private final boolean isCached;
+    private Rectangle2D bounds;
+    private BufferedImage image;
+    private double imageZoom;
+    // Set by the panel for the layers painted in the current frame.
+    protected boolean isVisible;
+
+    /**
+     * Create an empty layer that is painted directly, without image.
+     */
+    public TrackLayer() {
+        this(false);
+    }
+
+    private TrackLayer(boolean newIsCached) {
+        groups = new ArrayList<>();
+        insetSquares = new ArrayList<>();
+        overlayCells = new ArrayList<>();
+        dynamicCells = new ArrayList<>();
+        isCached = newIsCached;
+        bounds = null;
+        image = null;
+        isVisible = false;
+    }
+
+    /**
+     * Build the cached layer of a list of cells.
+     *
+     * @param cells
+     */
+    public TrackLayer(Collection<Cell> cells) {
+        this(true);
+        for (Cell c : cells) {
+            c.addToTrackLayer(this);
+        }
+        for (ShapeGroup group : groups) {
+            if (bounds == null) {
+                bounds = group.path.getBounds2D();
+            } else {
+                bounds.add(group.path.getBounds2D());
+            }
+        }
+    }
+
+    /**
+     * Shapes of the same depth and color, either filled or outlined.
+     */
+    private static class ShapeGroup {
+
+        private final int depth;
+        private final Color color;
+        private final boolean isFilled;
+        private final Path2D.Double path;
+
+        private ShapeGroup(int newDepth, Color newColor, boolean newIsFilled) {
+            depth = newDepth;
+            color = newColor;
+            isFilled = newIsFilled;
+            path = new Path2D.Double();
+        }
+    }
+
+    /**
+     * A square of the STATIONS depth, reduced by a margin given in pixels.
+     */
+    private static class InsetSquare {
+
+        private final Color color;
+        private final double xCenter, yCenter;
+        private final double size;
+        private final double margin;
+
+        private InsetSquare(Color newColor, double newXCenter, double newYCenter, double newSize, double newMargin) {
+            color = newColor;
+            xCenter = newXCenter;
+            yCenter = newYCenter;
+            size = newSize;
+            margin = newMargin;
+        }
+    }
+
+    /**
+     * Get the path where the shapes of a given depth and color are added.
+     *
+     * @param depth STATIONS, RAILS or SIGNS
+     * @param color
+     * @param isFilled true for the shapes that are filled, false for the lines
+     * @return the path, in world coordinates.
+     */
+    protected Path2D.Double getPath(int depth, Color color, boolean isFilled) {
+        for (ShapeGroup group : groups) {
+            if (group.depth == depth && group.isFilled == isFilled && group.color.equals(color)) {
+                return group.path;
+            }
+        }
+        // Keep the groups sorted by depth, in their order of creation within a depth.
+        int rank = groups.size();
+        while (rank > 0 && groups.get(rank - 1).depth > depth) {
+            rank--;
+        }
+        ShapeGroup group = new ShapeGroup(depth, color, isFilled);
+        groups.add(rank, group);
+        return group.path;
+    }
+
+    /**
+     * Add a filled square on top of the other shapes of the STATIONS depth,
+     * with a margin that stays the same number of pixels at every zoom level.
+     *
+     * @param color
+     * @param xCenter in world coordinates
+     * @param yCenter
+     * @param size the side of the square before the margin is removed
+     * @param margin in pixels, on each side
+     */
+    protected void addInsetSquare(Color color, double xCenter, double yCenter, double size, double margin) {
+        insetSquares.add(new InsetSquare(color, xCenter, yCenter, size, margin));
+    }
+
+    protected void addOverlayCell(Cell c) {
+        if (overlayCells.isEmpty() || overlayCells.get(overlayCells.size() - 1) != c) {
+            overlayCells.add(c);
+        }
+    }
+
+    protected void addDynamicCell(Cell c) {
+        dynamicCells.add(c);
+    }
+
+    /**
+     * Paint the layer: the shapes first, then the texts and the dynamic
+     * cells.
+     *
+     * @param g
+     * @param x0
+     * @param y0
+     * @param zoom
+     */
+    protected void paint(Graphics g, double x0, double y0, double zoom) {
+        if (!groups.isEmpty()) {
+            int panelHeight = g.getClipBounds().height;
+            if (isCached && bounds.getWidth() * zoom + 2 <= MAX_IMAGE_SIZE
+                    && bounds.getHeight() * zoom + 2 <= MAX_IMAGE_SIZE) {
+                if (image == null || imageZoom != zoom) {
+                    renderImage(zoom);
+                }
+                // On-screen coordinates of the top left corner of the bounds.
+                final double xApp = x0 + bounds.getMinX() * zoom;
+                final double yApp = panelHeight - (y0 + bounds.getMaxY() * zoom);
+                g.drawImage(image, (int) Math.round(xApp) - 1, (int) Math.round(yApp) - 1, null);
+            } else {
+                // Same conversion as the cells: xApp = x0 + x * zoom, yApp = panelHeight - (y0 + y * zoom).
+                paintShapes((Graphics2D) g, new AffineTransform(zoom, 0, 0, -zoom, x0, panelHeight - y0));
+            }
+        }
+        for (Cell c : overlayCells) {
+            c.paintOverlay(g, x0, y0, zoom);
+        }
+        for (Cell c : dynamicCells) {
+            c.paintForeground(g, x0, y0, zoom);
+        }
+    }
+
+    private void paintShapes(Graphics2D g2d, AffineTransform transform) {
+        boolean areInsetSquaresPainted = false;
+        for (ShapeGroup group : groups) {
+            if (!areInsetSquaresPainted && group.depth > STATIONS) {
+                paintInsetSquares(g2d, transform);
+                areInsetSquaresPainted = true;
+            }
+            Shape shape = transform.createTransformedShape(group.path);
+            g2d.setColor(group.color);
+            if (group.isFilled) {
+                g2d.fill(shape);
+            } else {
+                g2d.draw(shape);
+            }
+        }
+        if (!areInsetSquaresPainted) {
+            paintInsetSquares(g2d, transform);
+        }
+    }
+
+    private void paintInsetSquares(Graphics2D g2d, AffineTransform transform) {
+        double zoom = transform.getScaleX();
+        for (InsetSquare square : insetSquares) {
+            double side = square.size - 2 * square.margin / zoom;
+            if (side > 0) {
+                g2d.setColor(square.color);
+                g2d.fill(transform.createTransformedShape(new Rectangle2D.Double(
+                        square.xCenter - side / 2, square.yCenter - side / 2, side, side)));
+            }
+        }
+    }
+
+    /**
+     * Render the shapes into a transparent image, the top left corner of the
+     * bounds being at pixel (1, 1).
+     */
+    private void renderImage(double zoom) {
+        // Margin of one pixel for the lines on the border.
+        int width = (int) Math.ceil(bounds.getWidth() * zoom) + 2;
+        int height = (int) Math.ceil(bounds.getHeight() * zoom) + 2;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        imageZoom = zoom;
+        Graphics2D g2d = image.createGraphics();
+        paintShapes(g2d, new AffineTransform(zoom, 0, 0, -zoom,
+                1 - bounds.getMinX() * zoom, 1 + bounds.getMaxY() * zoom));
+        g2d.dispose();
+    }
+
+    /**
+     * Forget the image, e.g. when the layer is not visible any more; it is
+     * rendered again when needed.
+     */
+    protected void releaseImage() {
+        image = null;
+    }
+}
@@ -6,13 +6,10 @@ import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Point2D;
 import java.awt.image.ImageObserver;
 import java.io.FileWriter;
 import java.io.IOException;
 import static java.lang.Math.PI;
-import static java.lang.Math.cos;
-import static java.lang.Math.sin;
 import static java.lang.Math.sqrt;
 
 /**
@@ -22,10 +19,10 @@ import static java.lang.Math.sqrt;
  */
 public abstract class TrainElement extends SpriteElement implements ImageObserver {
 
-    protected Point2D.Double absolutePosition;
+    // Position, heading, speed, force and mass live in the physics store of the world.
+    protected final TrainPhysicsStore physics;
+    protected final int slot;
     protected int row, col; // Position on the grid.
-    protected double headingDegrees; // 0:N, 90:E, 180:S, 270:W, MAX_VALUE: not set yet.
-    protected double linearSpeed;
 
     // Highest speed physically achievable.
     protected double maxSpeed;
@@ -37,9 +34,6 @@ public abstract class TrainElement extends SpriteElement implements ImageObserve
     protected double stopTimerDuration;
     private static double MAX_SPEED_FOR_STOPPED = 0.1;
 
-    protected double mass;
-    protected Point2D.Double currentForce;
-
     protected boolean isEngineActive, isBraking;
     protected double brakingForce = 20.0;
 
@@ -49,15 +43,37 @@ public abstract class TrainElement extends SpriteElement implements ImageObserve
     protected double spriteWidth, spriteHeight;
 
     protected int id; // Single value for each element
-    protected int trainNumber; // This value is the same for elements linked together; -1 for non-linked elements.
+    protected int trainNumber; // This value is the same for elements linked together; -1 for elements not in the world.
+    // When true, the element is placed by its locomotive instead of moving by itself.
+    protected boolean isFollower;
+    // Set by the world: when true, the element moves along the rails by distance instead of moving freely and being snapped.
+    protected boolean isTrackRelative;
+    // Bucket of the element in the spatial index of the world, when isIndexed.
+    protected long spatialKey;
+    protected boolean isIndexed;
+    // Position along the rails, when the world moves the elements that way:
+    // the rails of the cell (null when moving freely), the center of the cell,
+    // the piece of rail and the distance along it, and the direction of the heading
+    // (1 towards the second link of the rails, -1 towards the first one).
+    protected RailTemplate trackTemplate;
+    protected double trackCellX, trackCellY;
+    protected int trackPiece;
+    protected double trackOffset;
+    protected int trackDirection;
+    // Side through which the element leaves its cell during this step, CENTER if it stays.
+    protected CardinalPoint trackExit;
+    // An element is linked to at most two other elements.
+    private TrainLink links[];
+    private int nbLinks;
     protected static int NB_TRAIN_ELEMENTS_CREATED = 0;
 
     /**
      * Create TE with a specific id.
      *
+     * @param store the physics store of the world that receives the element
      * @param newId
      */
-    public TrainElement(int newId) {
+    public TrainElement(TrainPhysicsStore store, int newId) {
         if (newId == -1) {
             // Default numbering
             id = NB_TRAIN_ELEMENTS_CREATED;
@@ -68,13 +84,17 @@ public abstract class TrainElement extends SpriteElement implements ImageObserve
             NB_TRAIN_ELEMENTS_CREATED = Math.max(NB_TRAIN_ELEMENTS_CREATED, newId + 1);
         }
         trainNumber = -1;
-        currentForce = new Point2D.Double();
-        absolutePosition = new Point2D.Double();
-        headingDegrees = Double.MAX_VALUE;
-        linearSpeed = 0;
+        links = new TrainLink[2];
+        nbLinks = 0;
+        isFollower = false;
+        isTrackRelative = false;
+        isIndexed = false;
+        trackTemplate = null;
+        trackExit = CardinalPoint.CENTER;
+        physics = store;
+        slot = physics.allocate();
         size = 3;
         spriteZoomLevel = 0.15;
-        mass = 1;
         isEngineActive = true;
         isBraking = false;
         currentSpeedLimit = -1;
@@ -86,8 +106,8 @@ public abstract class TrainElement extends SpriteElement implements ImageObserve
     /**
      * Create TE with automatic id.
      */
-    public TrainElement() {
-        this(-1);
+    public TrainElement(TrainPhysicsStore store) {
+        this(store, -1);
     }
 
     @Override
@@ -101,13 +121,13 @@ public abstract class TrainElement extends SpriteElement implements ImageObserve
             spriteHeight = (int) Math.max(5, (image.getHeight(this) * zoom) * spriteZoomLevel);
             Image scaledImage = image.getScaledInstance((int) spriteWidth, -1, Image.SCALE_DEFAULT);
 
-            int xCenter = (int) (x0 + zoom * this.absolutePosition.x);
-            int yCenter = (int) (g.getClipBounds().height - (y0 + zoom * this.absolutePosition.y));
+            int xCenter = (int) (x0 + zoom * getX());
+            int yCenter = (int) (g.getClipBounds().height - (y0 + zoom * getY()));
             int xImage = (int) (xCenter - spriteWidth / 2);
             int yImage = (int) (yCenter - spriteHeight / 2);
 
             Graphics2D g2d = (Graphics2D) g;
-            double headingRad = degToRad(headingDegrees);
+            double headingRad = getHeadingRad();
 
             AffineTransform initGraphicsTransform = g2d.getTransform();
             g2d.rotate(-headingRad, xCenter, yCenter);
@@ -116,8 +136,8 @@ public abstract class TrainElement extends SpriteElement implements ImageObserve
 
         } else {
             // Default drawing
-            double xCenter = (int) (x0 + zoom * this.absolutePosition.x);
-            double yCenter = g.getClipBounds().height - (int) (y0 + zoom * this.absolutePosition.y);
+            double xCenter = (int) (x0 + zoom * getX());
+            double yCenter = g.getClipBounds().height - (int) (y0 + zoom * getY());
             // Default painting
             int radiusApp = (int) (zoom * size);
             ((Graphics2D) g).setStroke(new BasicStroke());
@@ -134,11 +154,12 @@ public abstract class TrainElement extends SpriteElement implements ImageObserve
     /**
      * Add the specified force to the total force applied on to this element.
      *
-     * @param forceIncrement
+     * @param forceX
+     * @param forceY
      */
-    public void increaseForce(Point2D.Double forceIncrement) {
-        currentForce.x += forceIncrement.x;
-        currentForce.y += forceIncrement.y;
+    public void increaseForce(double forceX, double forceY) {
+        physics.fx[slot] += forceX;
+        physics.fy[slot] += forceY;
     }
 
     /**
@@ -146,107 +167,156 @@ public abstract class TrainElement extends SpriteElement implements ImageObserve
      * same direction as the movement. Only the part of the force that actually
      * changes the speed of the element shall be taken into account.
      *
-     * @param forceIncrement
+     * @param forceX
+     * @param forceY
      */
-    public void increaseEfficientForce(Point2D.Double forceIncrement) {
-        double efficientForce = computeEfficientForce(forceIncrement);
-
-        double ux = cos(getHeadingRad());
-        double uy = sin(getHeadingRad());
-
-        currentForce.x += efficientForce * ux;
-        currentForce.y += efficientForce * uy;
-    }
-
-    private double computeEfficientForce(Point2D.Double f) {
-        // unit is the unit vector aligned with the speed of the element.
-        double headingRad = degToRad(headingDegrees);
-
-        Point2D.Double unit = new Point2D.Double(Math.cos(headingRad), Math.sin(headingRad));
-        double fDotU = f.x * unit.x + f.y * unit.y;
-        return fDotU;
+    public void increaseEfficientForce(double forceX, double forceY) {
+        physics.addEfficientForce(slot, forceX, forceY);
     }
 
     double getHeadingDeg() {
-        return headingDegrees;
+        return physics.headingDegrees[slot];
     }
 
     double getHeadingRad() {
-        return degToRad(headingDegrees);
+        return degToRad(physics.headingDegrees[slot]);
     }
 
     void setHeadingDegrees(double newHeading) {
         if (newHeading > 360) {
             newHeading -= 360;
         }
-        headingDegrees = newHeading;
+        physics.setHeadingDegrees(slot, newHeading);
+    }
+
+    /**
+     * Unit vector of the heading, x-component.
+     */
+    protected double getUx() {
+        return physics.ux[slot];
+    }
+
+    /**
+     * Unit vector of the heading, y-component.
+     */
+    protected double getUy() {
+        return physics.uy[slot];
     }
 
     private void paintSpeed(Graphics g, int xCenter, int yCenter, int size) {
         g.setColor(Color.white);
-        double headingRad = getHeadingRad();
-        double vx = linearSpeed * cos(headingRad);
-        double vy = linearSpeed * sin(headingRad);
+        double vx = getVx();
+        double vy = getVy();
         int scale = 100;
         g.drawLine(xCenter, yCenter, (int) (xCenter + scale * vx), (int) (yCenter - scale * vy));
     }
 
     protected void paintForce(Graphics g, int xCenter, int yCenter, double zoom) {
         g.setColor(Color.red);
-        double fx = this.currentForce.x;
-        double fy = this.currentForce.y;
+        double fx = physics.fx[slot];
+        double fy = physics.fy[slot];
         double scale = zoom;
         g.drawLine(xCenter, yCenter, (int) (xCenter + scale * fx), (int) (yCenter - scale * fy));
     }
 
     void resetForces() {
-        currentForce = new Point2D.Double();
+        physics.fx[slot] = 0;
+        physics.fy[slot] = 0;
     }
 
     void computeMotorForce(double dt) {
-        currentForce = new Point2D.Double();
-    }
-
-    /**
-     * Compute the effect of the current force on the speed.
-     *
-     * @param dt
-     */
-    protected void computeNewSpeed(double dt) {
-
-        // Force along the axis of the TrainElement
-        double efficientForce = computeEfficientForce(currentForce);
-        linearSpeed += efficientForce * dt / mass;
+        resetForces();
     }
 
     protected void setSpeed(double newVx, double newVy) {
-        linearSpeed = sqrt(newVx * newVx + newVy * newVy);
+        physics.linearSpeed[slot] = sqrt(newVx * newVx + newVy * newVy);
         double newHeadingRad = Math.atan2(newVy, newVx);
-        headingDegrees = radToDeg(newHeadingRad);
+        physics.setHeadingDegrees(slot, radToDeg(newHeadingRad));
     }
 
     void move(double dt) {
-        Point2D.Double movement = new Point2D.Double(getVx() * dt, getVy() * dt);
-        absolutePosition = new Point2D.Double(absolutePosition.x + movement.x, absolutePosition.y + movement.y);
+        if (isOnTrack()) {
+            trackTemplate.advance(this, trackDirection * physics.linearSpeed[slot] * dt);
+        } else if (!isFollower) {
+            double speed = physics.linearSpeed[slot];
+            physics.x[slot] += speed * physics.ux[slot] * dt;
+            physics.y[slot] += speed * physics.uy[slot] * dt;
+        }
         if (stopTimerDuration > 0 && getLinearSpeed() < MAX_SPEED_FOR_STOPPED) {
             stopTimerDuration -= dt;
         }
     }
 
+    /**
+     * Tell if the element moves along the rails of its cell.
+     */
+    protected boolean isOnTrack() {
+        return trackTemplate != null && !isFollower;
+    }
+
+    protected void setTrackPosition(RailTemplate template, double xCell, double yCell,
+            int piece, double offset, int direction) {
+        trackTemplate = template;
+        trackCellX = xCell;
+        trackCellY = yCell;
+        trackPiece = piece;
+        trackOffset = offset;
+        trackDirection = direction;
+        trackExit = CardinalPoint.CENTER;
+    }
+
+    /**
+     * Move freely again, until the element is put back on some rails.
+     */
+    protected void detachFromTrack() {
+        trackTemplate = null;
+        trackExit = CardinalPoint.CENTER;
+    }
+
+    /**
+     * Set the heading when its unit vector is already known.
+     */
+    protected void setHeading(double newHeadingDegrees, double newUx, double newUy) {
+        physics.setHeading(slot, newHeadingDegrees, newUx, newUy);
+    }
+
     double getX() {
-        return absolutePosition.x;
+        return physics.x[slot];
     }
 
     double getY() {
-        return absolutePosition.y;
+        return physics.y[slot];
     }
 
     protected void setPosition(double newX, double newY) {
-        this.absolutePosition = new Point2D.Double(newX, newY);
+        physics.x[slot] = newX;
+        physics.y[slot] = newY;
+    }
+
+    protected void setMass(double newMass) {
+        physics.mass[slot] = newMass;
+    }
+
+    /**
+     * Set the highest speed physically achievable, and enforce it.
+     *
+     * @param newMaxSpeed
+     */
+    protected void setMaxSpeed(double newMaxSpeed) {
+        maxSpeed = newMaxSpeed;
+        physics.maxSpeed[slot] = newMaxSpeed;
+    }
+
+    /**
+     * Give the physics slot back to the store once the element is removed from
+     * the world.
+     */
+    protected void release() {
+        physics.release(slot);
     }
 
     protected double getLinearSpeed() {
-        return linearSpeed;
+        return physics.linearSpeed[slot];
     }
 
     protected boolean isStopped() {
@@ -298,11 +368,41 @@ public abstract class TrainElement extends SpriteElement implements ImageObserve
     }
 
     protected double getVx() {
-        return linearSpeed * cos(getHeadingRad());
+        return physics.linearSpeed[slot] * physics.ux[slot];
     }
 
     protected double getVy() {
-        return linearSpeed * sin(getHeadingRad());
+        return physics.linearSpeed[slot] * physics.uy[slot];
+    }
+
+    protected int getNbLinks() {
+        return nbLinks;
+    }
+
+    protected TrainLink getLink(int rank) {
+        return links[rank];
+    }
+
+    protected boolean canAddLink() {
+        return nbLinks < links.length;
+    }
+
+    protected void addLink(TrainLink newLink) {
+        if (canAddLink()) {
+            links[nbLinks] = newLink;
+            nbLinks++;
+        }
+    }
+
+    protected void removeLink(TrainLink oldLink) {
+        for (int rank = 0; rank < nbLinks; rank++) {
+            if (links[rank] == oldLink) {
+                nbLinks--;
+                links[rank] = links[nbLinks];
+                links[nbLinks] = null;
+                return;
+            }
+        }
     }
 
     protected void addStationToLine(StationCell newStation) {
@@ -327,10 +427,10 @@ public abstract class TrainElement extends SpriteElement implements ImageObserve
         elemClass = elemClass.substring(elemClass.indexOf(".") + 1);
         return elemClass
                 + " " + this.id
-                + keep2Decimals(" " + this.absolutePosition.x)
-                + keep2Decimals(" " + this.absolutePosition.y)
-                + keep2Decimals(" " + this.headingDegrees)
-                + keep2Decimals(" " + this.linearSpeed)
+                + keep2Decimals(" " + getX())
+                + keep2Decimals(" " + getY())
+                + keep2Decimals(" " + getHeadingDeg())
+                + keep2Decimals(" " + getLinearSpeed())
                 + keep2Decimals(" " + this.currentSpeedLimit);
     }
 
@@ -344,7 +444,7 @@ public abstract class TrainElement extends SpriteElement implements ImageObserve
     }
 
     void setLinearSpeed(double newLinearSpeed) {
-        linearSpeed = newLinearSpeed;
+        physics.linearSpeed[slot] = newLinearSpeed;
     }
 
     protected void setRow(int newRow) {
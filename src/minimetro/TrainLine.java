@@ -1,6 +1,7 @@
 package minimetro;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * This class logically represents the path of a single train.
@@ -12,12 +13,21 @@ public class TrainLine {
     // Coordinates of the ids of the stations served by this line.
     private ArrayList<StationCell> cells;
 
+    // Ids of the stations served by this line, sorted.
+    private int stationIds[];
+    private int nbStationIds;
+
     // The id of the loco which discovered this line.
     private int locoId;
+    // Position of this line in the WorldMap.
+    private int rank;
 
     public TrainLine(int newLocoId) {
         cells = new ArrayList<>();
+        stationIds = new int[8];
+        nbStationIds = 0;
         locoId = newLocoId;
+        rank = -1;
     }
 
     /**
@@ -25,15 +35,26 @@ public class TrainLine {
      *
      * @param c the cell added. If it already exists, we move it to the last
      * position.
+     * @return true if the station is new to this line; moving a station does
+     * not change the stations that the line links.
      */
-    protected void addCell(StationCell c) {
+    protected boolean addCell(StationCell c) {
         if (c != null) {
-            if (cells.contains(c)) {
+            if (!cells.isEmpty() && cells.get(cells.size() - 1) == c) {
+                // Already the last station of the line.
+                return false;
+            }
+            boolean isNewStation = !containsStation(c.getId());
+            if (isNewStation) {
+                addStationId(c.getId());
+            } else {
                 cells.remove(c);
             }
             int index = cells.size();
             cells.add(index, c);
+            return isNewStation;
         }
+        return false;
     }
 
     protected boolean containsCell(StationCell candidate) {
@@ -45,20 +66,46 @@ public class TrainLine {
         return false;
     }
 
-    protected boolean containsStation(int stationId) {
-        boolean res = false;
-        for (StationCell c : cells) {
-            if (c.getId() == stationId) {
-                res = true;
+    private void addStationId(int stationId) {
+        int position = Arrays.binarySearch(stationIds, 0, nbStationIds, stationId);
+        if (position < 0) {
+            position = -position - 1;
+            if (nbStationIds == stationIds.length) {
+                stationIds = Arrays.copyOf(stationIds, 2 * nbStationIds);
             }
+            System.arraycopy(stationIds, position, stationIds, position + 1, nbStationIds - position);
+            stationIds[position] = stationId;
+            nbStationIds++;
         }
-        return res;
+    }
+
+    protected boolean containsStation(int stationId) {
+        return Arrays.binarySearch(stationIds, 0, nbStationIds, stationId) >= 0;
+    }
+
+    /**
+     * Get the ids of the stations served by this line, sorted. Unlike the
+     * order of the stations, it does not change when the train comes back to a
+     * station.
+     *
+     * @return a copy of the ids
+     */
+    protected int[] getSortedStationIds() {
+        return Arrays.copyOf(stationIds, nbStationIds);
     }
 
     public int getLocoId() {
         return locoId;
     }
 
+    protected int getRank() {
+        return rank;
+    }
+
+    protected void setRank(int newRank) {
+        rank = newRank;
+    }
+
     protected String getAllStationsString() {
 
         String result = "";
@@ -5,8 +5,6 @@ import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Stroke;
-import java.awt.geom.Point2D;
-import static java.lang.Double.NaN;
 
 /**
  *
@@ -21,6 +19,8 @@ public class TrainLink {
 
     private static int NB_LINKS_CREATED = 0;
     private int id;
+    // Position of this link in the list of the world, -1 when not in the world.
+    protected int listIndex;
 
     private double strength = 400;
     private double damping = 200;
@@ -33,6 +33,7 @@ public class TrainLink {
         currentLength = defaultLength;
         id = NB_LINKS_CREATED;
         NB_LINKS_CREATED++;
+        listIndex = -1;
     }
 
     TrainElement getElement(int i) {
@@ -44,6 +45,16 @@ public class TrainLink {
         return null;
     }
 
+    /**
+     * Get the element at the other end of the link.
+     *
+     * @param te one of the two elements of this link
+     * @return the other element
+     */
+    TrainElement getOtherElement(TrainElement te) {
+        return te == e0 ? e1 : e0;
+    }
+
     public String toString() {
         return "Link{" + e0 + ", " + e1 + "}";
     }
@@ -59,27 +70,76 @@ public class TrainLink {
     /**
      * Compute the force developed by the link.
      *
-     * @param posElem0 absolute position of the first TrainElement
-     * @param posElem1 absolute position of the second TrainElement
-     * @return
+     * @param length current distance between the two TrainElements
+     * @return the intensity of the force, positive when the link pulls the
+     * elements toward each other.
      */
-    Point2D.Double computeForce(Point2D.Double posElem0, Point2D.Double posElem1) {
-
-        if (posElem0 != null && posElem1 != null) {
-            double dx = posElem1.x - posElem0.x;
-            double dy = posElem1.y - posElem0.y;
-            currentLength = Math.sqrt(dx * dx + dy * dy);
-            double elongation = currentLength - getDefaultLength();
-
-            // unit vector is aligned from cell0 to cell1.
-            Point2D.Double unitVector = new Point2D.Double(dx / currentLength, dy / currentLength);
-            double stretchForce = computeStretchForce(elongation);
-            double dampingForce = -damping * (previousLength - currentLength);
-            double force = stretchForce + dampingForce;
-            previousLength = currentLength;
-            return new Point2D.Double(force * unitVector.x, force * unitVector.y);
+    double computeForce(double length) {
+        currentLength = length;
+        double elongation = currentLength - getDefaultLength();
+
+        double stretchForce = computeStretchForce(elongation);
+        double dampingForce = -damping * (previousLength - currentLength);
+        double force = stretchForce + dampingForce;
+        previousLength = currentLength;
+        return force;
+    }
+
+    /**
+     * Compute the force that this link applies to its first element, and store
+     * it in buffer[offset] (x) and buffer[offset + 1] (y). The second element
+     * receives the opposite force. Only the positions of the elements are read,
+     * so several links may be computed at the same time.
+     *
+     * @param buffer
+     * @param offset
+     */
+    void computeForce(double buffer[], int offset) {
+        double forceX = 0, forceY = 0;
+        if (e0 != null && e1 != null) {
+            // The unit vector is aligned from e0 to e1.
+            double dx = e1.getX() - e0.getX();
+            double dy = e1.getY() - e0.getY();
+            double length = Math.sqrt(dx * dx + dy * dy);
+            if (length > 0) {
+                double force = computeForce(length);
+                forceX = force * dx / length;
+                forceY = force * dy / length;
+            }
         }
-        return null;
+        buffer[offset] = forceX;
+        buffer[offset + 1] = forceY;
+    }
+
+    /**
+     * Apply a force computed by computeForce(double[], int) to both elements.
+     *
+     * @param forceX force applied to the first element
+     * @param forceY force applied to the first element
+     */
+    void applyComputedForce(double forceX, double forceY) {
+        if (e0 != null && e1 != null) {
+            e0.increaseEfficientForce(forceX, forceY);
+            e1.increaseEfficientForce(-forceX, -forceY);
+        }
+    }
+
+    /**
+     * Compute only the elastic part of the force, for the implicit solver,
+     * which handles the damping itself.
+     *
+     * @param length current distance between the two TrainElements
+     * @return the intensity of the force, positive when the link pulls the
+     * elements toward each other.
+     */
+    double computeElasticForce(double length) {
+        previousLength = currentLength;
+        currentLength = length;
+        return computeStretchForce(currentLength - getDefaultLength());
+    }
+
+    double getDamping() {
+        return damping;
     }
 
     private double computeStretchForce(double elongation) {
@@ -87,34 +147,28 @@ public class TrainLink {
     }
 
     void applyForce(double dt) {
-        double dx = e1.absolutePosition.x - e0.absolutePosition.x;
-        double dy = e1.absolutePosition.y - e0.absolutePosition.y;
+        double dx = e1.getX() - e0.getX();
+        double dy = e1.getY() - e0.getY();
 
         currentLength = Math.sqrt(dx * dx + dy * dy);
         double elasticForce = (defaultLength - currentLength) * strength;
-        double dampingForce = (previousLength - currentLength) * damping;
 
         double forceIntensity = elasticForce;
 
-        Point2D.Double unitVector = new Point2D.Double(dx / currentLength, dy / currentLength);
-        Point2D.Double force = new Point2D.Double(forceIntensity * unitVector.x,
-                forceIntensity * unitVector.y);
-        Point2D.Double forceOpp = new Point2D.Double(-force.x, -force.y);
+        double forceX = forceIntensity * dx / currentLength;
+        double forceY = forceIntensity * dy / currentLength;
 
-        if (force.x != NaN && force.y != NaN) {
-            e0.increaseForce(forceOpp);
-            e1.increaseForce(force);
+        if (!Double.isNaN(forceX) && !Double.isNaN(forceY)) {
+            e0.increaseForce(-forceX, -forceY);
+            e1.increaseForce(forceX, forceY);
         }
     }
 
     void paint(Graphics g, double x0, double y0, double zoom) {
-        Point2D.Double posFirst = e0.absolutePosition;
-        Point2D.Double posSecond = e1.absolutePosition;
-
-        int xFirstApp = (int) (x0 + posFirst.x * zoom);
-        int yFirstApp = g.getClipBounds().height - (int) (y0 + posFirst.y * zoom);
-        int xSecondApp = (int) (x0 + posSecond.x * zoom);
-        int ySecondApp = g.getClipBounds().height - (int) (y0 + posSecond.y * zoom);
+        int xFirstApp = (int) (x0 + e0.getX() * zoom);
+        int yFirstApp = g.getClipBounds().height - (int) (y0 + e0.getY() * zoom);
+        int xSecondApp = (int) (x0 + e1.getX() * zoom);
+        int ySecondApp = g.getClipBounds().height - (int) (y0 + e1.getY() * zoom);
         g.setColor(Color.black);
         int width = (int) Math.max(1, zoom / 100);
         Stroke s = new BasicStroke(width);
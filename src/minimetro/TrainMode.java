@@ -0,0 +1,15 @@
+package minimetro;
+
+/**
+ * How the elements of a train move relative to each other.
+ *
+ * @author arthu
+ */
+public enum TrainMode {
+    // The links are springs; their forces are added to the other forces.
+    EXPLICIT,
+    // The links of each chain are solved together, which allows a larger time step.
+    IMPLICIT,
+    // Only the locomotive is simulated; the wagons follow its path at a fixed distance.
+    KINEMATIC;
+}
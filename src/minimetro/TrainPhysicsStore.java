@@ -0,0 +1,215 @@
+package minimetro;
+
+import java.util.Arrays;
+import static java.lang.Math.PI;
+import static java.lang.Math.cos;
+import static java.lang.Math.sin;
+
+/**
+ * This class holds the physical state of every TrainElement in packed
+ * primitive arrays. Each element owns one slot, and reads and writes its
+ * position, heading, speed, force and mass through that slot.
+ *
+ * The per-step phases that do not depend on the tracks (resetting forces,
+ * integrating speeds) run directly over the arrays and do not allocate.
+ *
+ * @author arthu
+ */
+public class TrainPhysicsStore {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    // Absolute position of each element.
+    protected double x[], y[];
+    // 0:N, 90:E, 180:S, 270:W, MAX_VALUE: not set yet.
+    protected double headingDegrees[];
+    // Unit vector of the heading, kept in sync with headingDegrees.
+    protected double ux[], uy[];
+    protected double linearSpeed[];
+    protected double fx[], fy[];
+    protected double mass[];
+    // Highest speed physically achievable; Double.MAX_VALUE when not enforced.
+    protected double maxSpeed[];
+
+    private boolean isUsed[];
+    private int freeSlots[];
+    private int nbFreeSlots;
+    // All slots in use are below this value.
+    private int slotLimit;
+
+    public TrainPhysicsStore() {
+        allocateArrays(DEFAULT_CAPACITY);
+        slotLimit = 0;
+        nbFreeSlots = 0;
+    }
+
+    private void allocateArrays(int capacity) {
+        x = new double[capacity];
+        y = new double[capacity];
+        headingDegrees = new double[capacity];
+        ux = new double[capacity];
+        uy = new double[capacity];
+        linearSpeed = new double[capacity];
+        fx = new double[capacity];
+        fy = new double[capacity];
+        mass = new double[capacity];
+        maxSpeed = new double[capacity];
+        isUsed = new boolean[capacity];
+        freeSlots = new int[capacity];
+    }
+
+    private void grow() {
+        int newCapacity = 2 * x.length;
+        x = Arrays.copyOf(x, newCapacity);
+        y = Arrays.copyOf(y, newCapacity);
+        headingDegrees = Arrays.copyOf(headingDegrees, newCapacity);
+        ux = Arrays.copyOf(ux, newCapacity);
+        uy = Arrays.copyOf(uy, newCapacity);
+        linearSpeed = Arrays.copyOf(linearSpeed, newCapacity);
+        fx = Arrays.copyOf(fx, newCapacity);
+        fy = Arrays.copyOf(fy, newCapacity);
+        mass = Arrays.copyOf(mass, newCapacity);
+        maxSpeed = Arrays.copyOf(maxSpeed, newCapacity);
+        isUsed = Arrays.copyOf(isUsed, newCapacity);
+        freeSlots = Arrays.copyOf(freeSlots, newCapacity);
+    }
+
+    /**
+     * Reserve a slot for a new element and set it to its default state.
+     *
+     * @return the index of the slot
+     */
+    protected int allocate() {
+        int slot;
+        if (nbFreeSlots > 0) {
+            nbFreeSlots--;
+            slot = freeSlots[nbFreeSlots];
+        } else {
+            if (slotLimit == x.length) {
+                grow();
+            }
+            slot = slotLimit;
+            slotLimit++;
+        }
+        isUsed[slot] = true;
+        x[slot] = 0;
+        y[slot] = 0;
+        headingDegrees[slot] = Double.MAX_VALUE;
+        ux[slot] = 0;
+        uy[slot] = 0;
+        linearSpeed[slot] = 0;
+        fx[slot] = 0;
+        fy[slot] = 0;
+        mass[slot] = 1;
+        maxSpeed[slot] = Double.MAX_VALUE;
+        return slot;
+    }
+
+    /**
+     * Give back the slot of an element that left the world.
+     *
+     * @param slot
+     */
+    protected void release(int slot) {
+        if (slot >= 0 && slot < slotLimit && isUsed[slot]) {
+            isUsed[slot] = false;
+            linearSpeed[slot] = 0;
+            fx[slot] = 0;
+            fy[slot] = 0;
+            freeSlots[nbFreeSlots] = slot;
+            nbFreeSlots++;
+        }
+    }
+
+    /**
+     * Release every slot.
+     */
+    protected void clear() {
+        Arrays.fill(isUsed, false);
+        slotLimit = 0;
+        nbFreeSlots = 0;
+    }
+
+    protected int getSlotLimit() {
+        return slotLimit;
+    }
+
+    protected boolean isUsed(int slot) {
+        return isUsed[slot];
+    }
+
+    /**
+     * Set the heading, and recompute the unit vector only when it changed.
+     *
+     * @param slot
+     * @param newHeadingDegrees
+     */
+    protected void setHeadingDegrees(int slot, double newHeadingDegrees) {
+        if (headingDegrees[slot] != newHeadingDegrees) {
+            headingDegrees[slot] = newHeadingDegrees;
+            double headingRad = ((90 - newHeadingDegrees) * 2 * PI) / 360;
+            ux[slot] = cos(headingRad);
+            uy[slot] = sin(headingRad);
+        }
+    }
+
+    /**
+     * Set the heading when its unit vector is already known, e.g. from the
+     * rails.
+     *
+     * @param slot
+     * @param newHeadingDegrees
+     * @param newUx
+     * @param newUy
+     */
+    protected void setHeading(int slot, double newHeadingDegrees, double newUx, double newUy) {
+        headingDegrees[slot] = newHeadingDegrees;
+        ux[slot] = newUx;
+        uy[slot] = newUy;
+    }
+
+    /**
+     * Add to the element the component of (forceX, forceY) that is aligned
+     * with its heading.
+     */
+    protected void addEfficientForce(int slot, double forceX, double forceY) {
+        double efficientForce = forceX * ux[slot] + forceY * uy[slot];
+        fx[slot] += efficientForce * ux[slot];
+        fy[slot] += efficientForce * uy[slot];
+    }
+
+    /**
+     * Set all forces to zero.
+     */
+    protected void resetForces() {
+        resetForces(0, slotLimit);
+    }
+
+    protected void resetForces(int firstSlot, int lastSlotExcluded) {
+        Arrays.fill(fx, firstSlot, lastSlotExcluded, 0);
+        Arrays.fill(fy, firstSlot, lastSlotExcluded, 0);
+    }
+
+    /**
+     * Compute the effect of the current force on the speed of every element.
+     * Only the part of the force aligned with the heading changes the speed.
+     *
+     * @param dt
+     */
+    protected void integrateSpeeds(double dt) {
+        integrateSpeeds(dt, 0, slotLimit);
+    }
+
+    protected void integrateSpeeds(double dt, int firstSlot, int lastSlotExcluded) {
+        for (int slot = firstSlot; slot < lastSlotExcluded; slot++) {
+            if (isUsed[slot]) {
+                double efficientForce = fx[slot] * ux[slot] + fy[slot] * uy[slot];
+                double newSpeed = linearSpeed[slot] + efficientForce * dt / mass[slot];
+                if (newSpeed > maxSpeed[slot]) {
+                    newSpeed = maxSpeed[slot];
+                }
+                linearSpeed[slot] = newSpeed;
+            }
+        }
+    }
+}
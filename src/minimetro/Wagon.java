@@ -3,8 +3,6 @@ package minimetro;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.geom.Point2D;
-import static java.lang.Math.cos;
-import static java.lang.Math.sin;
 import java.util.ArrayList;
 
 /**
@@ -17,8 +15,8 @@ public class Wagon extends TrainElement {
     private int maxCapacity;
     private int nbPassengerPerRow;
 
-    public Wagon(int newId) {
-        super(newId);
+    public Wagon(TrainPhysicsStore store, int newId) {
+        super(store, newId);
         maxSpeed = 10;
         color = Color.blue;
         imagePath = "src\\img\\Wagon.png";
@@ -28,13 +26,13 @@ public class Wagon extends TrainElement {
         nbPassengerPerRow = 2;
     }
 
-    public Wagon(Point2D.Double newAbsolutePosition) {
-        this(-1, newAbsolutePosition);
+    public Wagon(TrainPhysicsStore store, Point2D.Double newAbsolutePosition) {
+        this(store, -1, newAbsolutePosition);
     }
 
-    public Wagon(int newId, Point2D.Double newAbsolutePosition) {
-        this(newId);
-        this.absolutePosition = newAbsolutePosition;
+    public Wagon(TrainPhysicsStore store, int newId, Point2D.Double newAbsolutePosition) {
+        this(store, newId);
+        setPosition(newAbsolutePosition.x, newAbsolutePosition.y);
     }
 
     @Override
@@ -65,14 +63,15 @@ public class Wagon extends TrainElement {
         int nbRows = maxCapacity / nbPassengerPerRow;
         int nbCols = maxCapacity / nbRows;
         int passengerRank = 0;
+        double cosHeading = getUx();
+        double sinHeading = getUy();
         for (Passenger p : passengersList) {
             double row = passengerRank / nbPassengerPerRow + (isEven(nbCols) ? 0.0 : 0.5);
             double col = passengerRank % nbPassengerPerRow + (isEven(nbRows) ? 0.0 : 0.5);
             double passengerX = (row - nbRows / 2) * rowMargin;
             double passengerY = (col - nbCols / 2) * colMargin;
-            double headingRad = degToRad(headingDegrees);
-            double xRotated = this.getX() + passengerX * cos(headingRad) - passengerY * sin(headingRad);
-            double yRotated = this.getY() + passengerY * cos(headingRad) + passengerX * sin(headingRad);
+            double xRotated = this.getX() + passengerX * cosHeading - passengerY * sinHeading;
+            double yRotated = this.getY() + passengerY * cosHeading + passengerX * sinHeading;
             p.setCoordinates(xRotated, yRotated);
             passengerRank++;
         }
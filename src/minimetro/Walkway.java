@@ -46,6 +46,20 @@ public class Walkway {
         }
     }
 
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Walkway)) {
+            return false;
+        }
+        Walkway walkway = (Walkway) other;
+        return firstStationId == walkway.firstStationId && secondStationId == walkway.secondStationId;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * firstStationId + secondStationId;
+    }
+
     @Override
     public String toString() {
         return "w " + firstStationId + " " + secondStationId;
@@ -8,8 +8,14 @@ import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import static java.lang.Math.floor;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Random;
 import java.util.Scanner;
@@ -38,13 +44,52 @@ public class World {
     public static final String YES = "yes";
     public static final String NO = "no";
 
+    // Rows first, then columns, like a scan of the grid.
+    private static final Comparator<Cell> GRID_ORDER = new Comparator<Cell>() {
+        @Override
+        public int compare(Cell c0, Cell c1) {
+            int result = Integer.compare(c0.getRow(), c1.getRow());
+            if (result == 0) {
+                result = Integer.compare(c0.getCol(), c1.getCol());
+            }
+            return result;
+        }
+    };
+
     private double lowSpeedLimit = 2;
     private double mediumSpeedLimit = 10;
     private double highSpeedLimit = 50;
 
+    // Size of the area generated when the world is created; the world grows beyond it on demand.
+    // Row nbRows-1 is at y=0.
     private int nbRows, nbCols;
-    protected Cell cells[][];
-    protected ArrayList<Cell> activeCells;
+    // The chunks hold the terrain of every generated square, and the cells where something is built.
+    private ChunkMatrix<Cell> cells;
+    // The idle chunks are moved to region files, and read again when needed.
+    private RegionFileStore regionStore;
+    private boolean isChunkEvictionEnabled;
+    // Squares shown by the panel; their chunks are never evicted.
+    private int visibleRowMin, visibleRowMax, visibleColMin, visibleColMax;
+    // Number of steps without trains, passengers or display after which a chunk is evicted.
+    private static final int CHUNK_IDLE_STEPS = 3000;
+    private static final int EVICTION_PERIOD = 100;
+    // The terrain of the chunks is computed in the background, the visible chunks first;
+    // null until an area is displayed, so that a world that is never painted starts no thread.
+    private TerrainGenerator terrainGenerator;
+    // Incremented when the noise changes, so that the terrain computed with the previous noise is ignored.
+    private int terrainVersion;
+    // The chunks whose terrain was requested and is not installed yet.
+    private LongHashMap<TerrainGenerator.Request> pendingTerrain;
+    // Incremented each time the visible area changes, so that the latest view is served first.
+    private int viewSerial;
+    private int viewCenterChunkRow, viewCenterChunkCol;
+    // Only the chunks of this area keep the levels of their noise: the visible chunks and one more on each side.
+    private int levelsChunkRowMin, levelsChunkRowMax, levelsChunkColMin, levelsChunkColMax;
+    private TerrainPalette terrainPalette;
+    // The initial area is requested a few chunks at a time, so that its size does not delay the start.
+    private int nextInitialChunk;
+    private static final int INITIAL_AREA_BATCH = 64;
+    protected ActiveCellSet activeCells;
     private ArrayList<Cell> newlyActiveCells;
     private double simulationDt; // Time elapsed in world during one simulation step.
 
@@ -54,12 +99,26 @@ public class World {
 
     // Links between TrainElements;
     protected ArrayList<TrainLink> links;
+    // Position of every TrainElement, for the queries by distance or by area.
+    protected SpatialIndex trainIndex;
+    // Reused by updateTrainLinks.
+    private ArrayList<TrainElement> nearbyElements;
+    // Trains made of linked TrainElements.
+    protected ConsistRegistry consists;
+    private TrainMode trainMode;
+    private ChainSolver chainSolver;
+    private ConsistFollower consistFollower;
+    // The links that are applied as springs; all the links when every train is EXPLICIT.
+    private ArrayList<TrainLink> explicitLinks;
+    // Version of the registry when the trains were last dispatched, -1 to force a new dispatch.
+    private long trainModesVersion;
 
     private boolean isSettingLongDistanceTracks;
     private int longTrackStartRow;
     private int longTrackStartCol;
 
     private Timer timer;
+    private boolean isHeadless;
     private boolean isRunning;
     private int periodMillisec; // Time elapsed in real world between two simulation steps.
     private int step;
@@ -73,14 +132,42 @@ public class World {
     private double speedIndicatorValue;
     private double stopTimerValue;
 
+    // When true, the TrainElements of this world move along the rails by distance.
+    private boolean isTrackRelative;
+
+    // Multithreaded step
+    private boolean isParallelStepping;
+    private ParallelStepper parallelStepper;
+    // Force computed for the current link, used in serial mode.
+    private double linkForce[];
+
     public static WorldMap map;
     private ArrayList<StationCell> stationList;
+    // Each station at the index of its id, null for ids that are not in use.
+    private StationCell stationsById[];
+
+    // Physical state of the TrainElements of this world.
+    protected TrainPhysicsStore physics;
 
     public World() {
         this(10, 10);
     }
 
     public World(int newNbRows, int newNbCols) {
+        this(newNbRows, newNbCols, false);
+    }
+
+    /**
+     * Create a world.
+     *
+     * @param newNbRows
+     * @param newNbCols
+     * @param newIsHeadless when true, no Swing timer is created and the world
+     * only advances when step() is called, e.g. by a SimulationEngine.
+     */
+    public World(int newNbRows, int newNbCols, boolean newIsHeadless) {
+        isHeadless = newIsHeadless;
+        trainMode = TrainMode.EXPLICIT;
         nbRows = newNbRows;
         nbCols = newNbCols;
         System.out.println("init world, nbRows: " + nbRows + " cols: " + nbCols);
@@ -88,6 +175,9 @@ public class World {
         perlinCellSize = 128;
         perlinScale = perlinCellSize * Cell.cellSize;
         noiseGenerator = new PerlinNoise(perlinScale, 0);
+        terrainVersion = 0;
+        terrainGenerator = null;
+        physics = new TrainPhysicsStore();
 
         initializeGrid();
         isSettingLongDistanceTracks = false;
@@ -113,55 +203,405 @@ public class World {
      * @param col
      */
     protected void addNewCell(Cell newCell, int row, int col) {
+        generateChunkIfNeeded(row, col);
+        double xCell = col * Cell.cellSize;
+        double yCell = (nbRows - row - 1) * Cell.cellSize;
+        Point2D.Double newAbsPos = new Point2D.Double(xCell, yCell);
+        if (newCell == null) {
+            newCell = new Cell(newAbsPos);
+        } else {
+            newCell.absolutePosition = newAbsPos;
+        }
+        newCell.setRow(row);
+        newCell.setCol(col);
+        cells.set(newCell, row, col);
+    }
+
+    /**
+     * Make sure the chunk that contains a square exists; its terrain is
+     * requested when it is created.
+     *
+     * @param row
+     * @param col
+     * @return the chunk
+     */
+    private Chunk<Cell> generateChunkIfNeeded(int row, int col) {
+        Chunk<Cell> chunk = getChunkOf(row, col);
+        if (chunk == null) {
+            cells.generateChunkIfNeeded(row, col);
+            chunk = cells.getChunkOf(row, col);
+            chunk.lastUseStep = step;
+            requestTerrain(chunk.rowIndexInMap, chunk.colIndexInMap, TerrainGenerator.BACKGROUND);
+        }
+        return chunk;
+    }
+
+    /**
+     * Get the chunk that contains a square, and read it again from the region
+     * files if it was evicted.
+     *
+     * @param row
+     * @param col
+     * @return the chunk, or null if it was never generated.
+     */
+    private Chunk<Cell> getChunkOf(int row, int col) {
+        Chunk<Cell> chunk = cells.getChunkOf(row, col);
+        if (chunk == null) {
+            chunk = pageIn(ChunkMatrix.getChunkRow(row), ChunkMatrix.getChunkCol(col));
+        }
+        return chunk;
+    }
+
+    /**
+     * Read an evicted chunk from the region files. Its terrain is requested
+     * again, only its cells are stored.
+     *
+     * @param chunkRow
+     * @param chunkCol
+     * @return the chunk, or null if it was not evicted.
+     */
+    private Chunk<Cell> pageIn(int chunkRow, int chunkCol) {
+        if (regionStore == null || !regionStore.contains(chunkRow, chunkCol)) {
+            return null;
+        }
+        byte data[] = regionStore.read(chunkRow, chunkCol);
+        regionStore.remove(chunkRow, chunkCol);
+
+        int firstRow = chunkRow * ChunkMatrix.CHUNK_SIZE;
+        int firstCol = chunkCol * ChunkMatrix.CHUNK_SIZE;
+        cells.generateChunkIfNeeded(firstRow, firstCol);
+        Chunk<Cell> chunk = cells.getChunkOf(firstRow, firstCol);
+        chunk.lastUseStep = step;
+        requestTerrain(chunkRow, chunkCol, TerrainGenerator.BACKGROUND);
+        for (String line : new String(data, StandardCharsets.UTF_8).split("\n")) {
+            loadCellLine(line.split(" "));
+        }
+        return chunk;
+    }
+
+    /**
+     * Move to the region files the chunks that were not needed for a while.
+     * A chunk is needed when it contains an active cell (trains or
+     * passengers), when it is visible, or when it contains a station, because
+     * the lines and the walkways refer to the stations.
+     */
+    private void evictIdleChunks() {
+        for (Cell c : activeCells) {
+            cells.getChunkOf(c.getRow(), c.getCol()).lastUseStep = step;
+        }
+        for (Chunk<Cell> chunk : cells.getAllChunks()) {
+            if (isVisible(chunk)) {
+                chunk.lastUseStep = step;
+            } else if (step - chunk.lastUseStep > CHUNK_IDLE_STEPS) {
+                evictChunk(chunk);
+            }
+        }
+    }
+
+    private boolean isVisible(Chunk<Cell> chunk) {
+        return chunk.getFirstRow() <= visibleRowMax
+                && chunk.getFirstRow() + ChunkMatrix.CHUNK_SIZE > visibleRowMin
+                && chunk.getFirstCol() <= visibleColMax
+                && chunk.getFirstCol() + ChunkMatrix.CHUNK_SIZE > visibleColMin;
+    }
+
+    private void evictChunk(Chunk<Cell> chunk) {
+        StringWriter writer = new StringWriter();
         try {
-            double xCell = col * Cell.cellSize;
-            double yCell = (nbRows - row - 1) * Cell.cellSize;
-            Point2D.Double newAbsPos = new Point2D.Double(xCell, yCell);
-            if (newCell == null) {
-                newCell = new Cell(newAbsPos);
-            } else {
-                newCell.absolutePosition = newAbsPos;
+            for (Cell c : chunk.toList()) {
+                if (c instanceof StationCell || c.hasTrain()) {
+                    chunk.lastUseStep = step;
+                    return;
+                }
+                saveRails(c, writer);
+                saveSigns(c, writer);
+            }
+        } catch (IOException e) {
+            return;
+        }
+        if (writer.getBuffer().length() > 0) {
+            // A chunk without cells is not stored, its terrain is generated again when needed.
+            if (regionStore == null) {
+                regionStore = new RegionFileStore();
+            }
+            byte data[] = writer.toString().getBytes(StandardCharsets.UTF_8);
+            if (!regionStore.write(chunk.rowIndexInMap, chunk.colIndexInMap, data)) {
+                return;
+            }
+        }
+        cells.removeChunk(chunk.rowIndexInMap, chunk.colIndexInMap);
+        TerrainGenerator.Request pending = pendingTerrain.remove(ChunkMatrix.getKey(chunk.rowIndexInMap, chunk.colIndexInMap));
+        if (pending != null) {
+            pending.cancel();
+        }
+    }
+
+    /**
+     * Move the idle chunks to region files, so that the memory used depends on
+     * the active area rather than on the explored one.
+     *
+     * @param isEnabled
+     */
+    public void setChunkEviction(boolean isEnabled) {
+        isChunkEvictionEnabled = isEnabled;
+    }
+
+    /**
+     * Tell the world which squares are displayed; their chunks stay in memory.
+     * The terrain generator is started by the first area that is not empty.
+     * The terrain that is ready is installed, and the terrain of the
+     * displayed chunks and of the chunks around them is requested first.
+     *
+     * @param rowMin
+     * @param rowMax
+     * @param colMin
+     * @param colMax
+     */
+    protected void setVisibleArea(int rowMin, int rowMax, int colMin, int colMax) {
+        if (rowMin != visibleRowMin || rowMax != visibleRowMax || colMin != visibleColMin || colMax != visibleColMax) {
+            viewSerial++;
+        }
+        visibleRowMin = rowMin;
+        visibleRowMax = rowMax;
+        visibleColMin = colMin;
+        visibleColMax = colMax;
+
+        if (rowMin > rowMax || colMin > colMax) {
+            installGeneratedTerrain();
+            return;
+        }
+        if (terrainGenerator == null) {
+            terrainGenerator = new TerrainGenerator(this, () -> support.firePropertyChange("terrain", null, null));
+        }
+        installGeneratedTerrain();
+        int chunkRowMin = ChunkMatrix.getChunkRow(rowMin);
+        int chunkRowMax = ChunkMatrix.getChunkRow(rowMax);
+        int chunkColMin = ChunkMatrix.getChunkCol(colMin);
+        int chunkColMax = ChunkMatrix.getChunkCol(colMax);
+        viewCenterChunkRow = (chunkRowMin + chunkRowMax) / 2;
+        viewCenterChunkCol = (chunkColMin + chunkColMax) / 2;
+        if (chunkRowMin - 1 != levelsChunkRowMin || chunkRowMax + 1 != levelsChunkRowMax
+                || chunkColMin - 1 != levelsChunkColMin || chunkColMax + 1 != levelsChunkColMax) {
+            levelsChunkRowMin = chunkRowMin - 1;
+            levelsChunkRowMax = chunkRowMax + 1;
+            levelsChunkColMin = chunkColMin - 1;
+            levelsChunkColMax = chunkColMax + 1;
+            releaseDistantLevels();
+        }
+        // One more chunk on each side, to be ready when the view moves.
+        for (int chunkRow = chunkRowMin - 1; chunkRow <= chunkRowMax + 1; chunkRow++) {
+            for (int chunkCol = chunkColMin - 1; chunkCol <= chunkColMax + 1; chunkCol++) {
+                boolean isVisible = chunkRow >= chunkRowMin && chunkRow <= chunkRowMax
+                        && chunkCol >= chunkColMin && chunkCol <= chunkColMax;
+                requestTerrain(chunkRow, chunkCol, isVisible ? TerrainGenerator.VISIBLE : TerrainGenerator.NEAR_VISIBLE);
+            }
+        }
+    }
+
+    private boolean isKeepingLevels(int chunkRow, int chunkCol) {
+        return chunkRow >= levelsChunkRowMin && chunkRow <= levelsChunkRowMax
+                && chunkCol >= levelsChunkColMin && chunkCol <= levelsChunkColMax;
+    }
+
+    /**
+     * Release the levels of the noise of the chunks that are away from the
+     * visible area; their terrain is computed again if the amplitudes change.
+     */
+    private void releaseDistantLevels() {
+        for (Chunk<Cell> chunk : cells.getAllChunks()) {
+            if (chunk.terrain != null && chunk.terrain.hasLevels()
+                    && !isKeepingLevels(ChunkMatrix.getChunkRow(chunk.getFirstRow()), ChunkMatrix.getChunkCol(chunk.getFirstCol()))) {
+                chunk.terrain.releaseLevels();
+            }
+        }
+    }
+
+    /**
+     * Ask the terrain generator for the terrain of a chunk, unless it is ready
+     * or already requested with at least the same priority.
+     *
+     * @param chunkRow
+     * @param chunkCol
+     * @param level the priority of the request
+     */
+    private void requestTerrain(int chunkRow, int chunkCol, int level) {
+        if (terrainGenerator == null) {
+            // Nothing is displayed yet.
+            return;
+        }
+        Chunk<Cell> chunk = cells.getChunk(chunkRow, chunkCol);
+        if (chunk != null && chunk.terrain != null && chunk.terrainVersion == terrainVersion) {
+            return;
+        }
+        long key = ChunkMatrix.getKey(chunkRow, chunkCol);
+        TerrainGenerator.Request pending = pendingTerrain.get(key);
+        if (pending != null) {
+            if (pending.level < level
+                    || (pending.level == level && (level == TerrainGenerator.BACKGROUND || pending.viewSerial == viewSerial))) {
+                return;
             }
-            newCell.setRow(row);
-            newCell.setCol(col);
-            cells[row][col] = newCell;
-        } catch (ArrayIndexOutOfBoundsException e) {
+            // Replace the request with a more urgent one.
+            pending.cancel();
         }
+        long dRow = chunkRow - viewCenterChunkRow;
+        long dCol = chunkCol - viewCenterChunkCol;
+        pendingTerrain.put(key, terrainGenerator.request(chunkRow, chunkCol, terrainVersion, level, viewSerial,
+                dRow * dRow + dCol * dCol));
     }
 
+    /**
+     * Give to their chunks the terrain layers computed by the generator.
+     * A chunk that does not exist yet is created, unless it was evicted.
+     */
+    private void installGeneratedTerrain() {
+        if (terrainGenerator == null) {
+            return;
+        }
+        TerrainGenerator.Request result = terrainGenerator.takeResult();
+        while (result != null) {
+            if (result.version == terrainVersion) {
+                long key = ChunkMatrix.getKey(result.chunkRow, result.chunkCol);
+                TerrainGenerator.Request pending = pendingTerrain.remove(key);
+                if (pending != null && pending != result) {
+                    pending.cancel();
+                }
+                Chunk<Cell> chunk = cells.getChunk(result.chunkRow, result.chunkCol);
+                if (chunk == null && (regionStore == null || !regionStore.contains(result.chunkRow, result.chunkCol))) {
+                    int firstRow = result.chunkRow * ChunkMatrix.CHUNK_SIZE;
+                    int firstCol = result.chunkCol * ChunkMatrix.CHUNK_SIZE;
+                    cells.generateChunkIfNeeded(firstRow, firstCol);
+                    chunk = cells.getChunkOf(firstRow, firstCol);
+                    chunk.lastUseStep = step;
+                }
+                if (chunk != null && (chunk.terrain == null || chunk.terrainVersion != terrainVersion)) {
+                    // The amplitudes may have changed while the layer was computed.
+                    result.terrain.combineLevels(noiseGenerator);
+                    if (!isKeepingLevels(result.chunkRow, result.chunkCol)) {
+                        result.terrain.releaseLevels();
+                    }
+                    chunk.terrain = result.terrain;
+                    chunk.terrainVersion = terrainVersion;
+                }
+            }
+            result = terrainGenerator.takeResult();
+        }
+        requestInitialArea();
+    }
+
+    /**
+     * Request the next chunks of the initial area when the generator is
+     * almost idle. Its chunks are created when their terrain is ready.
+     */
+    private void requestInitialArea() {
+        int nbChunkCols = ChunkMatrix.getChunkCol(nbCols - 1) + 1;
+        int nbChunks = (ChunkMatrix.getChunkRow(nbRows - 1) + 1) * nbChunkCols;
+        while (nextInitialChunk < nbChunks && terrainGenerator.getNbWaitingRequests() < INITIAL_AREA_BATCH) {
+            requestTerrain(nextInitialChunk / nbChunkCols, nextInitialChunk % nbChunkCols, TerrainGenerator.BACKGROUND);
+            nextInitialChunk++;
+        }
+    }
+
+    /**
+     * Compute the terrain of a chunk with the noise generator.
+     * This is called by the threads of the terrain generator: it only reads
+     * the noise and returns a new layer.
+     *
+     * @param chunkRow
+     * @param chunkCol
+     * @return
+     */
+    protected TerrainLayer computeTerrain(int chunkRow, int chunkCol) {
+        TerrainLayer terrain = new TerrainLayer(ChunkMatrix.CHUNK_SIZE, ChunkMatrix.CHUNK_SIZE);
+        int firstRow = chunkRow * ChunkMatrix.CHUNK_SIZE;
+        int firstCol = chunkCol * ChunkMatrix.CHUNK_SIZE;
+        // The whole chunk at once; the rows go towards lower y.
+        double x0 = firstCol * Cell.cellSize;
+        double y0 = (getNbRows() - firstRow - 1) * Cell.cellSize;
+        if (noiseGenerator instanceof BiomePerlinNoise) {
+            int biomes[] = new int[ChunkMatrix.CHUNK_SIZE * ChunkMatrix.CHUNK_SIZE];
+            ((BiomePerlinNoise) noiseGenerator).fillBiomeTile(biomes, ChunkMatrix.CHUNK_SIZE, ChunkMatrix.CHUNK_SIZE,
+                    x0, y0, Cell.cellSize, -Cell.cellSize);
+            for (int rowInChunk = 0; rowInChunk < ChunkMatrix.CHUNK_SIZE; rowInChunk++) {
+                for (int colInChunk = 0; colInChunk < ChunkMatrix.CHUNK_SIZE; colInChunk++) {
+                    terrain.setBiome(rowInChunk, colInChunk, biomes[rowInChunk * ChunkMatrix.CHUNK_SIZE + colInChunk] % 3);
+                }
+            }
+        }
+        terrain.fillAltitudes(noiseGenerator, x0, y0, Cell.cellSize, -Cell.cellSize);
+        return terrain;
+    }
+
+    /**
+     * Compute again the altitude of all the generated squares after the
+     * amplitudes of the noise changed. The layers around the visible area
+     * keep the levels of their noise, so only their weighted sum is computed
+     * again; the colors that were already computed are updated in place.
+     * The other layers are marked as outdated and computed again when they
+     * are displayed.
+     * The layers that are still computed in the background are combined with
+     * the new amplitudes when they are installed.
+     */
     public void computeAltitudes() {
-        for (int row = 0; row < nbRows; row++) {
-            for (int col = 0; col < nbCols; col++) {
-                Cell c = getCell(row, col);
-                c.altitude = getAltitude(col, row);
-                c.color = null;
+        for (Chunk<Cell> chunk : cells.getAllChunks()) {
+            if (chunk.terrain != null && !chunk.terrain.hasLevels()) {
+                chunk.terrainVersion = -1;
+            } else if (chunk.terrain != null) {
+                chunk.terrain.combineLevels(noiseGenerator);
+                if (terrainPalette != null) {
+                    chunk.terrain.recolor(terrainPalette);
+                } else {
+                    chunk.terrain.clearColors();
+                }
             }
         }
         updateListeners();
     }
 
+    /**
+     * Set the colors of the terrain, so that they can be updated with the
+     * altitudes.
+     *
+     * @param newPalette
+     */
+    protected void setTerrainPalette(TerrainPalette newPalette) {
+        terrainPalette = newPalette;
+    }
+
     private void initializeGrid() {
         System.out.println("World.initializeGrid()");
-        cells = new Cell[nbRows][];
-        for (int row = 0; row < nbRows; row++) {
-            cells[row] = new Cell[nbCols];
-            for (int col = 0; col < nbCols; col++) {
-                Cell newCell = new Cell(row, col);
-                newCell.altitude = getAltitude(col, row);
-                newCell.biome = getBiome(col, row) % 3;
-                newCell.color = null;
-                newCell.absolutePosition = new Point2D.Double(col * Cell.cellSize, (nbRows - row - 1) * Cell.cellSize);
-                cells[row][col] = newCell;
-                newCell.setRow(row);
-                newCell.setCol(col);
-            }
+        physics.clear();
+        if (regionStore != null) {
+            regionStore.close();
+            regionStore = null;
+        }
+        cells = new ChunkMatrix<>();
+        isChunkEvictionEnabled = true;
+        // The terrain of the previous world is not needed any more.
+        terrainVersion++;
+        if (terrainGenerator != null) {
+            terrainGenerator.clear();
         }
-        computeAltitudes();
+        pendingTerrain = new LongHashMap<>();
+        viewSerial = 0;
+        nextInitialChunk = 0;
+        levelsChunkRowMin = 0;
+        levelsChunkRowMax = -1;
+        levelsChunkColMin = 0;
+        levelsChunkColMax = -1;
+        setVisibleArea(0, -1, 0, -1);
 
         System.out.println("End cells initialization");
-        activeCells = new ArrayList<>();
+        activeCells = new ActiveCellSet();
         newlyActiveCells = new ArrayList<>();
+        linkForce = new double[2];
         links = new ArrayList<>();
+        consists = new ConsistRegistry();
+        trainIndex = new SpatialIndex(Cell.cellSize);
+        nearbyElements = new ArrayList<>();
+        chainSolver = new ChainSolver();
+        consistFollower = new ConsistFollower();
+        explicitLinks = links;
+        trainModesVersion = -1;
         step = 0;
         isRunning = false;
         simulationDt = 0.03;
@@ -171,6 +611,7 @@ public class World {
         stopTimerValue = 5;
         map = new WorldMap(this);
         stationList = new ArrayList<>();
+        stationsById = new StationCell[16];
     }
 
     public int getNbRows() {
@@ -184,17 +625,33 @@ public class World {
     /**
      * Retrieve the cell at specified row and col, or null if no such cell
      * exists.
+     * Only the squares where something is built have a cell.
      *
      * @param row
      * @param col
      * @return
      */
     public Cell getCell(int row, int col) {
-        try {
-            return cells[row][col];
-        } catch (IndexOutOfBoundsException e) {
+        Chunk<Cell> chunk = getChunkOf(row, col);
+        if (chunk == null) {
             return null;
         }
+        return chunk.get(Math.floorMod(row, ChunkMatrix.CHUNK_SIZE), Math.floorMod(col, ChunkMatrix.CHUNK_SIZE));
+    }
+
+    /**
+     * Get a chunk of the world, without generating it.
+     *
+     * @param chunkRow
+     * @param chunkCol
+     * @return the chunk, or null if it was not generated yet.
+     */
+    protected Chunk<Cell> getChunk(int chunkRow, int chunkCol) {
+        Chunk<Cell> chunk = cells.getChunk(chunkRow, chunkCol);
+        if (chunk == null) {
+            chunk = pageIn(chunkRow, chunkCol);
+        }
+        return chunk;
     }
 
     /**
@@ -215,17 +672,25 @@ public class World {
 
     /**
      * Get all the cells in the form of an ArrayList.
+     * The cells of the evicted chunks are not included; they contain no
+     * train, passenger or station.
      *
-     * @return a list containing all the cells.
+     * @return a list containing all the existing cells, in no particular order.
      */
     protected ArrayList<Cell> getAllCells() {
-        ArrayList<Cell> allCells = new ArrayList<>();
-        for (int row = 0; row < nbRows; row++) {
-            for (int col = 0; col < nbCols; col++) {
-                allCells.add(cells[row][col]);
-            }
+        return new ArrayList<>(cells.toList());
+    }
+
+    /**
+     * Forget a cell that does not contain anything any more; its square is
+     * only terrain again.
+     *
+     * @param c
+     */
+    private void removeCellIfUnused(Cell c) {
+        if (c != null && c.isUnused() && !activeCells.contains(c) && getCell(c.row, c.col) == c) {
+            cells.remove(c.row, c.col);
         }
-        return allCells;
     }
 
     public void togglePlayPause() {
@@ -240,50 +705,49 @@ public class World {
 
     public void step() {
 
-        for (Cell c : activeCells) {
-            c.resetForces();
-        }
+        activeCells.sortIfNeeded();
 
-        for (Cell c : activeCells) {
-            c.computeMotorForces(simulationDt); // Set the force applied on each loco
+        if (isParallelStepping) {
+            parallelStepper.resetForces(physics);
+        } else {
+            physics.resetForces();
         }
 
-        for (Cell c : activeCells) {
-            c.snapToRail();
-        }
+        runPhase(StepPhase.MOTOR_FORCES);
+        runPhase(StepPhase.SNAP_TO_RAIL);
 
+        updateTrainModes();
         applyLinkForces();
 
-        for (Cell c : activeCells) {
-            c.computeNewSpeeds(simulationDt);
+        if (isParallelStepping) {
+            parallelStepper.integrateSpeeds(physics, simulationDt);
+        } else {
+            physics.integrateSpeeds(simulationDt);
         }
 
-        for (Cell c : activeCells) {
-            c.moveTrains(simulationDt);
-        }
+        chainSolver.solve(physics, simulationDt);
 
-        for (Cell c : activeCells) {
-            c.movePassengers(simulationDt);
-        }
+        runPhase(StepPhase.MOVE_TRAINS);
+        // Wagons of KINEMATIC trains follow the new position of their locomotive.
+        consistFollower.place(physics);
+        runPhase(StepPhase.MOVE_PASSENGERS);
 
+        // Trains and passengers that left their cell are moved serially, in the order of the active cells.
         getPassengersOff();
         boardPassengers();
         reinsertMovingPassengers();
         transferTrainsBetweenCells();
 
         // Update paths for passengers in stations or stopped trains
-        for (Cell c : getAllCells()) {
-            if (c instanceof StationCell) {
-                StationCell station = (StationCell) c;
-                for (Passenger p : station.passengerList) {
-                    World.map.computePath(station.getId(), p);
-                }
-                for (TrainElement te : c.getAllElements()) {
-                    if (te instanceof Wagon && te.isStopped()) {
-                        Wagon wagon = (Wagon) te;
-                        for (Passenger p : wagon.getPassengers()) {
-                            World.map.computePath(station.getId(), p);
-                        }
+        for (StationCell station : stationList) {
+            for (Passenger p : station.passengerList) {
+                World.map.computePath(station.getId(), p);
+            }
+            for (TrainElement te : station.getAllElements()) {
+                if (te instanceof Wagon && te.isStopped()) {
+                    Wagon wagon = (Wagon) te;
+                    for (Passenger p : wagon.getPassengers()) {
+                        World.map.computePath(station.getId(), p);
                     }
                 }
             }
@@ -295,26 +759,143 @@ public class World {
         }
 
         for (Cell c : newlyActiveCells) {
-            if (!activeCells.contains(c)) {
-                activeCells.add(c);
-            }
+            activeCells.add(c);
         }
         newlyActiveCells.clear();
 
-        Iterator iter = activeCells.iterator();
+        Iterator<Cell> iter = activeCells.iterator();
         while (iter.hasNext()) {
-            Cell c = (Cell) iter.next();
+            Cell c = iter.next();
             if (!c.hasTrain() && !c.hasPassengers()) {
                 iter.remove();
                 c.setActive(false);
+                // A train that went off the rails leaves an empty cell behind.
+                removeCellIfUnused(c);
             }
         }
 
         step++;
 
+        installGeneratedTerrain();
+        if (isChunkEvictionEnabled && step % EVICTION_PERIOD == 0) {
+            evictIdleChunks();
+        }
+
         updateListeners();
     }
 
+    /**
+     * Apply one phase of the step to every active cell.
+     *
+     * @param phase
+     */
+    private void runPhase(StepPhase phase) {
+        if (isParallelStepping) {
+            parallelStepper.runPhase(phase, activeCells.getArray(), activeCells.size(), simulationDt);
+        } else {
+            for (Cell c : activeCells) {
+                phase.apply(c, simulationDt);
+            }
+        }
+    }
+
+    /**
+     * Choose whether the cell-local phases of each step run on several
+     * threads.
+     *
+     * @param newIsParallelStepping
+     */
+    public void setParallelStepping(boolean newIsParallelStepping) {
+        if (newIsParallelStepping && parallelStepper == null) {
+            parallelStepper = new ParallelStepper();
+        }
+        isParallelStepping = newIsParallelStepping;
+    }
+
+    public boolean isParallelStepping() {
+        return isParallelStepping;
+    }
+
+    /**
+     * Choose whether the TrainElements move along the rails by distance, or
+     * move freely and are snapped back onto the rails at each step.
+     *
+     * @param newIsTrackRelative
+     */
+    public void setTrackRelativePositioning(boolean newIsTrackRelative) {
+        isTrackRelative = newIsTrackRelative;
+        for (Consist consist : consists.getAllConsists()) {
+            for (TrainElement te : consist.getElements()) {
+                te.isTrackRelative = newIsTrackRelative;
+                if (!newIsTrackRelative) {
+                    te.detachFromTrack();
+                }
+            }
+        }
+    }
+
+    public boolean isTrackRelativePositioning() {
+        return isTrackRelative;
+    }
+
+    /**
+     * Time elapsed in the world during one step.
+     *
+     * @return the duration of a step, in simulated seconds
+     */
+    public double getSimulationDt() {
+        return simulationDt;
+    }
+
+    /**
+     * Time elapsed in the real world between two steps when the simulation is
+     * not accelerated.
+     *
+     * @return the period in milliseconds
+     */
+    public int getPeriodMillisec() {
+        return periodMillisec;
+    }
+
+    /**
+     * Change the time elapsed in the world during one step. A large value
+     * requires the IMPLICIT train mode.
+     *
+     * @param newSimulationDt in simulated seconds
+     */
+    public void setSimulationDt(double newSimulationDt) {
+        simulationDt = newSimulationDt;
+    }
+
+    public TrainMode getTrainMode() {
+        return trainMode;
+    }
+
+    public void setTrainMode(TrainMode newTrainMode) {
+        trainMode = newTrainMode;
+        trainModesVersion = -1;
+    }
+
+    /**
+     * Choose the mode of one train, overriding the mode of the world.
+     *
+     * @param trainNumber
+     * @param newTrainMode null to use the mode of the world again
+     */
+    public void setTrainMode(int trainNumber, TrainMode newTrainMode) {
+        Consist consist = consists.getConsist(trainNumber);
+        if (consist == null) {
+            System.out.println("World: no train " + trainNumber);
+            return;
+        }
+        consist.setMode(newTrainMode);
+        trainModesVersion = -1;
+    }
+
+    public int getStep() {
+        return step;
+    }
+
     private void reinsertMovingPassengers() {
         // Reinsert moving passengers
         for (Cell c : activeCells) {
@@ -423,7 +1004,21 @@ public class World {
     }
 
     protected void setCell(int row, int col, Cell newCell) {
-        cells[row][col] = newCell;
+        cells.set(newCell, row, col);
+    }
+
+    /**
+     * Drop the cached tracks of the chunk that contains a cell, after the
+     * cell was modified in place. Setting or removing a cell does it already.
+     *
+     * @param row
+     * @param col
+     */
+    protected void invalidateTrackLayer(int row, int col) {
+        Chunk<Cell> chunk = cells.getChunkOf(row, col);
+        if (chunk != null) {
+            chunk.trackLayer = null;
+        }
     }
 
     /**
@@ -445,11 +1040,14 @@ public class World {
                 // Remove a station
                 newCell = new Cell(oldCell);
                 stationList.remove((StationCell) oldCell);
+                unindexStation((StationCell) oldCell);
+                map.removeStationWalkways((StationCell) oldCell);
                 setCell(row, col, newCell);
             } else {
                 // Create a station
                 newCell = new StationCell(oldCell, newStationId);
                 stationList.add((StationCell) newCell);
+                indexStation((StationCell) newCell);
             }
             if (!newCell.isEmpty()) {
                 this.setCell(row, col, newCell);
@@ -457,10 +1055,14 @@ public class World {
                     newCell.addTrainElement(oldTrain);
                 }
             }
+            if (newCell instanceof StationCell && getCell(row, col) == newCell) {
+                map.addStationWalkways((StationCell) newCell);
+            }
             activeCells.remove(oldCell);
             if (newCell.hasTrain() || newCell.hasPassengers()) {
                 activeCells.add(newCell);
             }
+            removeCellIfUnused(newCell);
         }
     }
 
@@ -533,9 +1135,9 @@ public class World {
 
         TrainElement newElement;
         if (isLoco) {
-            newElement = new Locomotive(id, newAbsolutePosition);
+            newElement = new Locomotive(physics, id, newAbsolutePosition);
         } else {
-            newElement = new Wagon(id, newAbsolutePosition);
+            newElement = new Wagon(physics, id, newAbsolutePosition);
         }
 
         if (isEngineActive) {
@@ -546,15 +1148,20 @@ public class World {
         newElement.setHeadingDegrees(headingDegrees);
         newElement.setLinearSpeed(linearSpeed);
         newElement.setSpeedLimit(currentSpeedLimit);
+        newElement.isTrackRelative = isTrackRelative;
 
         Cell cell = getCell(row, col);
         if (cell != null && cell.hasRails()) {
             cell.addTrainElement(newElement);
-            if (!activeCells.contains(cell)) {
-                activeCells.add(cell);
+            if (activeCells.add(cell)) {
                 cell.setActive(true);
             }
-            updateTrainLinks(newElement, row, col);
+            consists.addElement(newElement);
+            updateTrainLinks(newElement);
+            trainIndex.add(newElement);
+        } else {
+            // The element was not placed on any track.
+            newElement.release();
         }
         return newElement;
     }
@@ -566,59 +1173,82 @@ public class World {
      * @return
      */
     private int getCol(double xReal) {
-        int result = (int) ((xReal + Cell.cellSize / 2) / Cell.cellSize);
+        int result = (int) floor((xReal + Cell.cellSize / 2) / Cell.cellSize);
         return result;
     }
 
     private int getRow(double yReal) {
-        int result = nbRows - (int) ((yReal + Cell.cellSize / 2) / Cell.cellSize) - 1;
+        int result = nbRows - (int) floor((yReal + Cell.cellSize / 2) / Cell.cellSize) - 1;
         return result;
     }
 
     /**
-     * Link the TrainElements in the given cell to their closest neighbors.
+     * Link a new TrainElement to its closest neighbors.
      *
      */
-    private void updateTrainLinks(TrainElement te, int row, int col) {
+    private void updateTrainLinks(TrainElement te) {
 
         // Find all element that could share a potential link with @te
-        // The list allElementsNearby contains all elements in this cell or in a neighboring cell.
-        ArrayList<TrainElement> allElementNearby = new ArrayList<>();
-        for (int currentRow = row - 1; currentRow <= row + 1; currentRow++) {
-            for (int currentCol = col - 1; currentCol <= col + 1; currentCol++) {
-                Cell neighborCell = getCell(currentRow, currentCol);
-                if (neighborCell != null) {
-                    allElementNearby.addAll(neighborCell.getAllElements());
-                }
-            }
-        }
-        allElementNearby.remove(te);
+        trainIndex.getElementsInRadius(te.getX(), te.getY(), distanceMax * 1.5, nearbyElements);
+        nearbyElements.remove(te);
 
-        for (TrainElement neighbor : allElementNearby) {
-            double currentDistance = computeDistance(te, neighbor);
-            if (currentDistance < distanceMax * 1.5) {
-                if (getNbLinks(neighbor) < 2) {
-                    links.add(new TrainLink(te, neighbor, distanceMax));
-                }
+        for (TrainElement neighbor : nearbyElements) {
+            if (neighbor.canAddLink() && te.canAddLink()) {
+                addLink(new TrainLink(te, neighbor, distanceMax));
             }
         }
+        nearbyElements.clear();
     }
 
     /**
-     * Return the number of links that involve the given element.
+     * Find the elements that may be visible in a rectangle.
      *
-     * @param e
-     * @return
+     * @param xMin
+     * @param yMin
+     * @param xMax
+     * @param yMax
+     * @param result this list is emptied, then receives the elements found.
      */
-    private int getNbLinks(TrainElement e) {
-        int result = 0;
-        for (TrainLink link : links) {
-            if (link.getElement(0).equals(e) || link.getElement(1).equals(e)) {
-                // This link is related to the parameter element.
-                result++;
-            }
+    protected void getTrainElementsInRect(double xMin, double yMin, double xMax, double yMax,
+            ArrayList<TrainElement> result) {
+        trainIndex.getElementsInRect(xMin, yMin, xMax, yMax, result);
+    }
+
+    /**
+     * Find the element closest to a point, e.g. under the mouse.
+     *
+     * @param x
+     * @param y
+     * @param maxDistance
+     * @return the closest element, or null if none is closer than maxDistance.
+     */
+    protected TrainElement getTrainElementAt(double x, double y, double maxDistance) {
+        return trainIndex.getElementAt(x, y, maxDistance);
+    }
+
+    private void addLink(TrainLink link) {
+        link.listIndex = links.size();
+        links.add(link);
+        consists.addLink(link);
+    }
+
+    /**
+     * Remove a link from the world; the last link of the list takes its place.
+     *
+     * @param link
+     */
+    private void removeLink(TrainLink link) {
+        int index = link.listIndex;
+        if (index < 0 || index >= links.size() || links.get(index) != link) {
+            return;
         }
-        return result;
+        TrainLink lastLink = links.remove(links.size() - 1);
+        if (lastLink != link) {
+            links.set(index, lastLink);
+            lastLink.listIndex = index;
+        }
+        link.listIndex = -1;
+        consists.removeLink(link);
     }
 
     /**
@@ -659,6 +1289,7 @@ public class World {
                 }
             }
             newTrackCell.addLink(newLinkDirection);
+            invalidateTrackLayer(rowNeighbor, colNeighbor);
         }
     }
 
@@ -677,6 +1308,7 @@ public class World {
                 System.out.println("World: error, next cell is null");
             } else {
                 newCell.addTrainElement(movingTrain);
+                trainIndex.update(movingTrain);
                 newCell.setActive(true);
                 newlyActiveCells.add(newCell);
             }
@@ -685,6 +1317,10 @@ public class World {
 
     private void startTimer() {
 
+        if (isHeadless) {
+            return;
+        }
+
         if (timer != null && timer.isRunning()) {
             System.out.println("Stopping timer.");
             timer.stop();
@@ -725,33 +1361,62 @@ public class World {
     }
 
     /**
-     * Compute the distance between the elements, in absolute coordinates.
+     * Give each train to the part of the engine that moves it, according to its
+     * mode. This is done again only when the trains or the modes have changed.
      *
-     * @param elem0
-     * @param cell0
-     * @param elem1
-     * @param cell1
-     * @return
+     * A KINEMATIC train needs a locomotive at one end, and an IMPLICIT or
+     * KINEMATIC train must not be a loop; otherwise the next mode that applies
+     * is used, down to EXPLICIT.
      */
-    private double computeDistance(TrainElement elem0, TrainElement elem1) {
-
-        Point2D.Double pos0 = elem0.absolutePosition;
-        Point2D.Double pos1 = elem1.absolutePosition;
-
-        double x0 = pos0.x;
-        double y0 = pos0.y;
-        double x1 = pos1.x;
-        double y1 = pos1.y;
-        double dx = x0 - x1;
-        double dy = y0 - y1;
+    private void updateTrainModes() {
+        if (trainModesVersion == consists.getVersion()) {
+            return;
+        }
+        chainSolver.clear();
+        consistFollower.clear();
+        HashSet<Integer> explicitTrains = new HashSet<>();
+        for (Consist consist : consists.getAllConsists()) {
+            TrainMode mode = consist.getMode() != null ? consist.getMode() : trainMode;
+            boolean isHandled = false;
+            if (mode != TrainMode.EXPLICIT && consist.size() > 1) {
+                TrainElement chain[] = consist.getChain();
+                if (chain != null) {
+                    TrainLink chainLinks[] = Consist.getChainLinks(chain);
+                    if (mode == TrainMode.KINEMATIC) {
+                        isHandled = consistFollower.addTrain(chain, chainLinks);
+                    }
+                    if (!isHandled) {
+                        chainSolver.addChain(chain, chainLinks);
+                        isHandled = true;
+                    }
+                }
+            }
+            if (!isHandled) {
+                explicitTrains.add(consist.getNumber());
+            }
+        }
 
-        double distance = Math.sqrt(dx * dx + dy * dy);
-        return distance;
+        if (explicitTrains.size() == consists.getAllConsists().size()) {
+            explicitLinks = links;
+        } else {
+            // Keep the order of the world list, so that the result does not depend on the modes of the other trains.
+            explicitLinks = new ArrayList<>();
+            for (TrainLink link : links) {
+                if (explicitTrains.contains(link.getElement(0).trainNumber)) {
+                    explicitLinks.add(link);
+                }
+            }
+        }
+        trainModesVersion = consists.getVersion();
     }
 
     private void applyLinkForces() {
-        for (TrainLink link : links) {
-            applyLinkForce(link);
+        if (isParallelStepping) {
+            parallelStepper.applyLinkForces(explicitLinks);
+        } else {
+            for (int rank = 0; rank < explicitLinks.size(); rank++) {
+                applyLinkForce(explicitLinks.get(rank));
+            }
         }
     }
 
@@ -761,50 +1426,8 @@ public class World {
      * @param link
      */
     private void applyLinkForce(TrainLink link) {
-        TrainElement e0 = null, e1 = null;
-        try {
-            e0 = link.getElement(0);
-            e1 = link.getElement(1);
-
-            if (e0 != null && e1 != null) {
-
-                Cell c0 = getCell(e0.row, e0.col);
-                Cell c1 = getCell(e1.row, e1.col);
-
-                Point2D.Double posC0 = getCellPosition(c0);
-                if (posC0 == null) {
-                    System.out.println("pos c0 is null");
-                }
-                Point2D.Double posC1 = getCellPosition(c1);
-                if (posC1 == null) {
-                    System.out.println("pos c1 is null");
-                }
-
-                Point2D.Double posElem0 = c0.getTrainPosition(e0);
-                if (posElem0 == null) {
-                    System.out.println("pos elem0 is null");
-                }
-                Point2D.Double posElem1 = c1.getTrainPosition(e1);
-                if (posElem1 == null) {
-                    System.out.println("pos elem1 is null");
-                }
-
-                Point2D.Double force = link.computeForce(posElem0, posElem1);
-                Point2D.Double forceOpposite = new Point2D.Double(-force.x, -force.y);
-
-                e0.increaseEfficientForce(force);
-                e1.increaseEfficientForce(forceOpposite);
-            }
-        } catch (NullPointerException e) {
-            System.out.println("NPE in World.applyLinkForce "
-                    + ", e0: " + e0 + ", e1: " + e1);
-        }
-    }
-
-    private Point2D.Double getCellPosition(Cell c) {
-        int row = c.getRow();
-        int col = c.getCol();
-        return new Point2D.Double(col, row);
+        link.computeForce(linkForce, 0);
+        link.applyComputedForce(linkForce[0], linkForce[1]);
     }
 
     protected void removeTrack(int row, int col) {
@@ -819,6 +1442,8 @@ public class World {
                 } else {
                     c.removeTracksAndLinks();
                     c.removeTracksAndLinks();
+                    invalidateTrackLayer(row, col);
+                    removeCellIfUnused(c);
                 }
             }
         }
@@ -830,30 +1455,32 @@ public class World {
             ArrayList<TrainElement> list = c.getAllElements();
             // Before we remove elem, we must remove any TrainLink involved.
             for (TrainElement elem : list) {
-                Iterator<TrainLink> iterator = links.iterator();
-                while (iterator.hasNext()) {
-                    TrainLink link = iterator.next();
-                    if (link.getElement(0).equals(elem) || link.getElement(1).equals(elem)) {
-                        iterator.remove();
-                    }
+                while (elem.getNbLinks() > 0) {
+                    removeLink(elem.getLink(0));
                 }
             }
+            for (TrainElement elem : list) {
+                consists.removeElement(elem);
+                trainIndex.remove(elem);
+                elem.release();
+            }
             c.removeTrains();
             if (!c.hasTrain()) {
                 activeCells.remove(c);
             }
+            removeCellIfUnused(c);
         }
     }
 
     protected void startLocos() {
-        for (Cell c : getAllCells()) {
-            c.startLocos();
+        for (Consist consist : consists.getAllConsists()) {
+            consist.start();
         }
     }
 
     protected void stopLocos() {
-        for (Cell c : getAllCells()) {
-            c.stopLocos();
+        for (Consist consist : consists.getAllConsists()) {
+            consist.stop();
         }
     }
 
@@ -862,9 +1489,11 @@ public class World {
     }
 
     protected void setSpeedIndicator(int row, int col) {
-        Cell c = getCell(row, col);
+        Cell c = getCellOrCreateIfNull(row, col);
         if (c != null) {
             c.setSpeedIndicator(speedIndicatorValue);
+            invalidateTrackLayer(row, col);
+            removeCellIfUnused(c);
         }
     }
 
@@ -873,9 +1502,11 @@ public class World {
     }
 
     protected void setStopTimer(int row, int col) {
-        Cell c = getCell(row, col);
+        Cell c = getCellOrCreateIfNull(row, col);
         if (c != null) {
             c.setStopTimer(stopTimerValue);
+            invalidateTrackLayer(row, col);
+            removeCellIfUnused(c);
         }
     }
 
@@ -904,11 +1535,7 @@ public class World {
                 startingRank = new Random().nextInt(stationList.size());
                 startingStation = stationList.get(startingRank);
             } else {
-                for (StationCell c : stationList) {
-                    if (c.stationId == startStationId) {
-                        startingStation = (StationCell) c;
-                    }
-                }
+                startingStation = getStation(startStationId);
                 if (startingStation == null) {
                     System.out.println("Error World, cannot find station " + startStationId);
                 }
@@ -926,23 +1553,20 @@ public class World {
             Passenger newPassenger = new Passenger(currentTarget);
             // Add the passenger to the station
             startingStation.addPassenger(newPassenger);
-            if (!activeCells.contains(startingStation)) {
-                activeCells.add(startingStation);
+            if (activeCells.add(startingStation)) {
                 startingStation.setActive(true);
             }
             nbPassengersGenerated++;
         }
-
-        World.map.computeWalkways();
     }
 
     /**
      * Remove all passengers from all stations and all trains.
      */
     protected void removePassengers() {
-        Iterator iter = activeCells.iterator();
+        Iterator<Cell> iter = activeCells.iterator();
         while (iter.hasNext()) {
-            Cell c = (Cell) iter.next();
+            Cell c = iter.next();
             c.removePassengers();
             if (!c.hasTrain()) {
                 iter.remove();
@@ -970,6 +1594,12 @@ public class World {
     protected void clearMap() {
         System.out.println("Reset world map");
         map = new WorldMap(this);
+        // The lines are forgotten, the walkways still exist.
+        for (StationCell station : stationList) {
+            if (getCell(station.getRow(), station.getCol()) == station) {
+                map.addStationWalkways(station);
+            }
+        }
     }
 
     protected void save(FileWriter writer) {
@@ -982,46 +1612,28 @@ public class World {
 
             writer.write("isRunning " + (isRunning ? YES : NO) + "\n");
 
-            int rowIndex = 0;
-            for (Cell[] row : cells) {
-                int colIndex = 0;
-                for (Cell c : row) {
+            // The cells are saved row by row, like the grid.
+            ArrayList<Cell> allCells = getAllCells();
+            allCells.sort(GRID_ORDER);
+            for (Cell c : allCells) {
+                saveRails(c, writer);
 
-                    // Save rails
-                    if (c instanceof SwitchCell) {
-                        // Save a switch cell
-                        String switchText = SWITCH + " " + rowIndex + " " + colIndex + " " + ((SwitchCell) c).getLinks() + "\n";
-                        writer.write(switchText);
-                    } else {
-                        String cellLinks = c.getLinks();
-                        if (!cellLinks.isEmpty()) {
-                            for (String singleLink : cellLinks.split(" ")) {
-                                writer.write(RAIL_LINK + " " + rowIndex + " " + colIndex + " " + singleLink + "\n");
-                            }
-                        }
-                    }
-
-                    c.saveTrains(writer);
-
-                    // Save stations
-                    if (c instanceof StationCell) {
-                        String text = STATION + " " + ((StationCell) c).getId() + " " + rowIndex + " " + colIndex + "\n";
-                        writer.write(text);
-                    }
-                    c.savePassengers(writer);
+                c.saveTrains(writer);
 
-                    // Save speed limits
-                    if (c.speedLimit != Integer.MAX_VALUE) {
-                        writer.write(SPEED_LIMIT + " " + rowIndex + " " + colIndex + " " + c.speedLimit + "\n");
-                    }
+                // Save stations
+                if (c instanceof StationCell) {
+                    String text = STATION + " " + ((StationCell) c).getId() + " " + c.getRow() + " " + c.getCol() + "\n";
+                    writer.write(text);
+                }
+                c.savePassengers(writer);
 
-                    // Save stop timers
-                    if (c.stopTimerDuration > 0) {
-                        writer.write(STOP_TIMER + " " + rowIndex + " " + colIndex + " " + c.stopTimerDuration + "\n");
-                    }
-                    colIndex++;
+                saveSigns(c, writer);
+            }
+            // The evicted chunks are already in the same format.
+            if (regionStore != null) {
+                for (byte data[] : regionStore.readAll()) {
+                    writer.write(new String(data, StandardCharsets.UTF_8));
                 }
-                rowIndex++;
             }
             map.save(writer);
 
@@ -1031,6 +1643,87 @@ public class World {
 
     }
 
+    private void saveRails(Cell c, Writer writer) throws IOException {
+        int rowIndex = c.getRow();
+        int colIndex = c.getCol();
+        if (c instanceof SwitchCell) {
+            // Save a switch cell
+            String switchText = SWITCH + " " + rowIndex + " " + colIndex + " " + ((SwitchCell) c).getLinks() + "\n";
+            writer.write(switchText);
+        } else {
+            String cellLinks = c.getLinks();
+            if (!cellLinks.isEmpty()) {
+                for (String singleLink : cellLinks.split(" ")) {
+                    writer.write(RAIL_LINK + " " + rowIndex + " " + colIndex + " " + singleLink + "\n");
+                }
+            }
+        }
+    }
+
+    private void saveSigns(Cell c, Writer writer) throws IOException {
+        // Save speed limits
+        if (c.speedLimit != Integer.MAX_VALUE) {
+            writer.write(SPEED_LIMIT + " " + c.getRow() + " " + c.getCol() + " " + c.speedLimit + "\n");
+        }
+
+        // Save stop timers
+        if (c.stopTimerDuration > 0) {
+            writer.write(STOP_TIMER + " " + c.getRow() + " " + c.getCol() + " " + c.stopTimerDuration + "\n");
+        }
+    }
+
+    /**
+     * Load one line that describes the rails or the signs of a cell.
+     *
+     * @param split the words of the line
+     */
+    private void loadCellLine(String split[]) {
+        int row, col;
+        Cell c;
+        switch (split[0]) {
+        case RAIL_LINK:
+            row = Integer.valueOf(split[1]);
+            col = Integer.valueOf(split[2]);
+            c = getCellOrCreateIfNull(row, col);
+            CardinalPoint direction = CardinalPoint.valueOf(split[3]);
+            c.addLink(direction);
+            invalidateTrackLayer(row, col);
+            break;
+        case SWITCH:
+            row = Integer.valueOf(split[1]);
+            col = Integer.valueOf(split[2]);
+            // SWITCH 1 1 NORTH EAST WEST EAST
+            c = getCellOrCreateIfNull(row, col);
+            SwitchCell sc = new SwitchCell(c);
+            setCell(row, col, sc);
+            try {
+                sc.addConnections(
+                        CardinalPoint.valueOf(split[3]),
+                        CardinalPoint.valueOf(split[4]),
+                        CardinalPoint.valueOf(split[5]));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Cannot load incomplete switch (row " + row + ", col " + col + ");");
+            }
+            break;
+        case SPEED_LIMIT:
+            row = Integer.valueOf(split[1]);
+            col = Integer.valueOf(split[2]);
+            c = getCellOrCreateIfNull(row, col);
+            double limit = Double.valueOf(split[3]);
+            c.setSpeedIndicator(limit);
+            invalidateTrackLayer(row, col);
+            break;
+        case STOP_TIMER:
+            row = Integer.valueOf(split[1]);
+            col = Integer.valueOf(split[2]);
+            c = getCellOrCreateIfNull(row, col);
+            double stopDuration = Double.valueOf(split[3]);
+            c.setStopTimer(stopDuration);
+            invalidateTrackLayer(row, col);
+            break;
+        }
+    }
+
     protected void load(Scanner scanner) {
         TrainElement.NB_TRAIN_ELEMENTS_CREATED = 0;
         String text = "";
@@ -1074,12 +1767,10 @@ public class World {
             String split[] = text.split(" ");
             int row, col;
             int id, wagonId;
-            Cell c;
             double x, y, headingDegrees, linearSpeed, currentSpeedLimit;
             boolean isEngineActive, isBraking;
             int rank, targetStationId;
             Passenger newPassenger;
-            CardinalPoint direction;
 
             switch (split[0]) {
             case STATION:
@@ -1089,42 +1780,10 @@ public class World {
                 toggleStation(row, col, id);
                 break;
             case RAIL_LINK:
-                row = Integer.valueOf(split[1]);
-                col = Integer.valueOf(split[2]);
-                c = getCellOrCreateIfNull(row, col);
-                direction = CardinalPoint.valueOf(split[3]);
-                c.addLink(direction);
-                break;
             case SWITCH:
-                row = Integer.valueOf(split[1]);
-                col = Integer.valueOf(split[2]);
-                // SWITCH 1 1 NORTH EAST WEST EAST
-                c = getCellOrCreateIfNull(row, col);
-                SwitchCell sc = new SwitchCell(c);
-                setCell(row, col, sc);
-                try {
-                    sc.addConnections(
-                            CardinalPoint.valueOf(split[3]),
-                            CardinalPoint.valueOf(split[4]),
-                            CardinalPoint.valueOf(split[5]));
-                } catch (IllegalArgumentException e) {
-                    System.out.println("Cannot load incomplete switch (row " + row + ", col " + col + ");");
-                }
-
-                break;
             case SPEED_LIMIT:
-                row = Integer.valueOf(split[1]);
-                col = Integer.valueOf(split[2]);
-                c = getCell(row, col);
-                double limit = Double.valueOf(split[3]);
-                c.setSpeedIndicator(limit);
-                break;
             case STOP_TIMER:
-                row = Integer.valueOf(split[1]);
-                col = Integer.valueOf(split[2]);
-                c = getCell(row, col);
-                double stopDuration = Double.valueOf(split[3]);
-                c.setStopTimer(stopDuration);
+                loadCellLine(split);
                 break;
             case LOCOMOTIVE:
                 id = Integer.valueOf(split[1]);
@@ -1178,8 +1837,7 @@ public class World {
                 Cell receivingCell = getCellOrCreateIfNull(row, col);
                 if (receivingCell != null && receivingCell instanceof StationCell) {
                     ((StationCell) receivingCell).addPassenger(newPassenger);
-                    if (!activeCells.contains(receivingCell)) {
-                        activeCells.add(receivingCell);
+                    if (activeCells.add(receivingCell)) {
                         receivingCell.setActive(true);
                     }
                 }
@@ -1195,12 +1853,25 @@ public class World {
     }
 
     protected StationCell getStation(int stationId) {
-        for (StationCell station : stationList) {
-            if (station.getId() == stationId) {
-                return station;
-            }
+        if (stationId < 0 || stationId >= stationsById.length) {
+            return null;
+        }
+        return stationsById[stationId];
+    }
+
+    private void indexStation(StationCell station) {
+        int stationId = station.getId();
+        if (stationId >= stationsById.length) {
+            stationsById = Arrays.copyOf(stationsById, Math.max(2 * stationsById.length, stationId + 1));
+        }
+        stationsById[stationId] = station;
+    }
+
+    private void unindexStation(StationCell station) {
+        int stationId = station.getId();
+        if (stationId < stationsById.length && stationsById[stationId] == station) {
+            stationsById[stationId] = null;
         }
-        return null;
     }
 
     /**
@@ -1231,9 +1902,7 @@ public class World {
                 Passenger newPassenger = new Passenger(endStationId);
                 s.addPassenger(newPassenger);
             }
-            if (!activeCells.contains(s)) {
-                activeCells.add(s);
-            }
+            activeCells.add(s);
         }
     }
 
@@ -1313,7 +1982,7 @@ public class World {
     }
 
     protected void setSwitchPoint(double currentRow, double currentCol) {
-        Cell c = getCellOrCreateIfNull((int) currentRow, (int) currentCol);
+        Cell c = getCellOrCreateIfNull((int) floor(currentRow), (int) floor(currentCol));
 
         if (!c.hasTrain() && !(c instanceof StationCell)) {
             // Click coordinates in the cell's reference
@@ -1332,7 +2001,7 @@ public class World {
                 activeCells.remove(c);
                 s = new SwitchCell(c);
                 s.removeTracksAndLinks();
-                addNewCell(s, (int) currentRow, (int) currentCol);
+                addNewCell(s, (int) floor(currentRow), (int) floor(currentCol));
             }
             s.setSwitchPoint(localX, localY);
         }
@@ -1346,9 +2015,8 @@ public class World {
     }
 
     /**
-     * Get the altitude at a specific location.
-     * Use the cell already in cells list if it exists, otherwise compute the
-     * altitude with the noise generator.
+     * Compute the altitude at a specific location with the noise generator.
+     * The stored altitude of the grid is in the terrain layer.
      *
      * @param col
      * @param row
@@ -1364,7 +2032,6 @@ public class World {
 
     protected int getBiome(int col, int row) {
         if (noiseGenerator instanceof BiomePerlinNoise) {
-            System.out.println("is a biome noise");
             double xCell = col * Cell.cellSize;
             double yCell = (getNbRows() - row - 1) * Cell.cellSize;
 
@@ -1374,53 +2041,89 @@ public class World {
     }
 
     private void removeCell(Cell oldCell) {
-        for (int row = 0; row < nbRows; row++) {
-            for (int col = 0; col < nbCols; col++) {
-                if (cells[row][col].equals(oldCell)) {
-                    cells[row][col] = null;
+        if (getCell(oldCell.row, oldCell.col) == oldCell) {
+            cells.remove(oldCell.row, oldCell.col);
+        }
+    }
+
+    private static boolean isBuildable(double altitude) {
+        return altitude >= -0.05 // not sea
+                && altitude <= 0.15 // not mountains
+                ;
+    }
+
+    /**
+     * Copy the buildable squares of an area, so that a search may read them on
+     * another thread. Only the chunks that exist and whose terrain is ready
+     * are copied; no chunk is created.
+     *
+     * @param rowMin
+     * @param rowMax
+     * @param colMin
+     * @param colMax
+     * @return for each copied chunk, indexed by ChunkMatrix.getKey, one flag
+     * per square, row by row.
+     */
+    protected LongHashMap<boolean[]> getBuildableSquares(int rowMin, int rowMax, int colMin, int colMax) {
+        LongHashMap<boolean[]> result = new LongHashMap<>();
+        for (int chunkRow = ChunkMatrix.getChunkRow(rowMin); chunkRow <= ChunkMatrix.getChunkRow(rowMax); chunkRow++) {
+            for (int chunkCol = ChunkMatrix.getChunkCol(colMin); chunkCol <= ChunkMatrix.getChunkCol(colMax); chunkCol++) {
+                Chunk<Cell> chunk = getChunk(chunkRow, chunkCol);
+                if (chunk != null && chunk.terrain != null) {
+                    boolean squares[] = new boolean[ChunkMatrix.CHUNK_SIZE * ChunkMatrix.CHUNK_SIZE];
+                    for (int row = 0; row < ChunkMatrix.CHUNK_SIZE; row++) {
+                        for (int col = 0; col < ChunkMatrix.CHUNK_SIZE; col++) {
+                            squares[row * ChunkMatrix.CHUNK_SIZE + col] = isBuildable(chunk.terrain.getAltitude(row, col));
+                        }
+                    }
+                    result.put(ChunkMatrix.getKey(chunkRow, chunkCol), squares);
                 }
             }
         }
+        return result;
     }
 
-    private boolean isBuildable(Cell c) {
-        return c.altitude >= -0.05 // not sea
-                && c.altitude <= 0.15 // not mountains
-                ;
+    /**
+     * Tell if a square is buildable in a copy made by getBuildableSquares.
+     *
+     * @return false for the squares that were not copied.
+     */
+    private static boolean isBuildable(LongHashMap<boolean[]> buildableSquares, int row, int col) {
+        boolean squares[] = buildableSquares.get(ChunkMatrix.getKey(ChunkMatrix.getChunkRow(row), ChunkMatrix.getChunkCol(col)));
+        return squares != null
+                && squares[Math.floorMod(row, ChunkMatrix.CHUNK_SIZE) * ChunkMatrix.CHUNK_SIZE + Math.floorMod(col, ChunkMatrix.CHUNK_SIZE)];
     }
 
     /**
      * Any cell shall have 8 available neighbors: horizontal, vertical and
      * diagonal movements are allowed.
+     * Only the copied squares are read, so this may be called from any thread.
      *
+     * @param buildableSquares the squares given by getBuildableSquares
      * @param row the row of the cell of which we get the neighbors
      * @param col the columns of the cell of which we get the neighbors
      * @return the list of all neighbors that may be linked to the specified
-     * cell
+     * cell, as (col, row) points
      */
-    public ArrayList<Cell> getAvailableNeighbors(int row, int col) {
+    public static ArrayList<Point> getAvailableNeighbors(LongHashMap<boolean[]> buildableSquares, int row, int col) {
 
-        ArrayList<Cell> neighbors = new ArrayList<>();
+        ArrayList<Point> neighbors = new ArrayList<>();
 
         for (int dRow = -1; dRow <= 1; dRow++) {
             for (int dCol = -1; dCol <= 1; dCol++) {
                 if (dRow != 0 || dCol != 0) {
-                    Cell candidateNeighbor = getCell(row + dRow, col + dCol);
-                    if (candidateNeighbor != null // Cell actually exists
-                            && isBuildable(candidateNeighbor)) {
+                    if (isBuildable(buildableSquares, row + dRow, col + dCol)) {
                         // The cell is buildable.
 
                         if (dRow != 0 && dCol != 0) {
                             // The path is diagonal, check that the other 2 cells are both terrain.
-                            Cell neighbor1 = getCell(row + dRow, col);
-                            Cell neighbor2 = getCell(row, col + dCol);
-                            if (isBuildable(neighbor1) && isBuildable(neighbor2)) {
+                            if (isBuildable(buildableSquares, row + dRow, col) && isBuildable(buildableSquares, row, col + dCol)) {
                                 // Add this neighbor only if the diagonal has 2 buildable borders
-                                neighbors.add(candidateNeighbor);
+                                neighbors.add(new Point(col + dCol, row + dRow));
                             }
                         } else {
                             // Not a diagonal, not a problem
-                            neighbors.add(candidateNeighbor);
+                            neighbors.add(new Point(col + dCol, row + dRow));
                         }
                     }
                 }
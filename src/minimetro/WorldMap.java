@@ -3,7 +3,10 @@ package minimetro;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Scanner;
 
 /**
@@ -14,13 +17,29 @@ import java.util.Scanner;
 public class WorldMap {
 
     private HashMap<Integer, TrainLine> linesList; // For any Loco id, there is one TrainLine.
+    private ArrayList<TrainLine> linesByRank;
+    // For each station id, the ranks of the lines that serve it; null if none.
+    private BitSet linesOfStation[];
     private ArrayList<Walkway> walkwayList;
+    // Ids of the stations linked by a walkway to each station.
+    private HashMap<Integer, int[]> walkwayNeighbors;
+    private static final int NO_NEIGHBOR[] = new int[0];
     private World w;
 
+    // Incremented each time the lines or the walkways actually change.
+    private long networkVersion;
+    // Next stop between all the stations, for the current networkVersion.
+    private RoutingTable routingTable;
+
     public WorldMap(World newW) {
         w = newW;
         linesList = new HashMap<>();
+        linesByRank = new ArrayList<>();
+        linesOfStation = new BitSet[16];
         walkwayList = new ArrayList<>();
+        walkwayNeighbors = new HashMap<>();
+        networkVersion = 0;
+        routingTable = new RoutingTable();
     }
 
     protected void addStation(StationCell station, int trainElementId) {
@@ -31,10 +50,13 @@ public class WorldMap {
         } else {
             // Add a new line for that loco
             line = new TrainLine(trainElementId);
-            linesList.put(trainElementId, line);
+            putLine(line);
+        }
+        if (line.addCell(station)) {
+            setLineOfStation(station, line);
+            // Every station of the line now has a new neighbor, and the new station may use this line.
+            networkVersion++;
         }
-        line.addCell(station);
-        computeWalkways();
     }
 
     public String toFormattedString() {
@@ -52,35 +74,118 @@ public class WorldMap {
         return res;
     }
 
-    protected void computeWalkways() {
-        walkwayList = new ArrayList<>();
-        for (int row = 0; row < w.getNbRows(); row++) {
-            for (int col = 0; col < w.getNbCols(); col++) {
-                // If station (row, col) is located next to another station to its east or south, then we create a walkway.
-                Cell currentCell = w.getCell(row, col);
-                if (currentCell instanceof StationCell) {
-                    Cell cellEast = w.getCell(row, col + 1);
-                    if (cellEast != null && cellEast instanceof StationCell) {
-                        walkwayList.add(new Walkway(((StationCell) currentCell).getId(),
-                                ((StationCell) cellEast).getId()));
-                        currentCell.addWalkwayDirection((StationCell) cellEast, CardinalPoint.EAST);
-                        cellEast.addWalkwayDirection((StationCell) currentCell, CardinalPoint.WEST);
-                    }
-                    Cell cellSouth = w.getCell(row + 1, col);
-                    if (cellSouth != null && cellSouth instanceof StationCell) {
-                        walkwayList.add(new Walkway(((StationCell) currentCell).getId(),
-                                ((StationCell) cellSouth).getId()));
-                        currentCell.addWalkwayDirection((StationCell) cellSouth, CardinalPoint.SOUTH);
-                        cellSouth.addWalkwayDirection((StationCell) currentCell, CardinalPoint.NORTH);
-                    }
-                }
+    /**
+     * Create the walkways between a new station and the stations next to it.
+     *
+     * @param station
+     */
+    protected void addStationWalkways(StationCell station) {
+        int row = station.getRow();
+        int col = station.getCol();
+        // The station on the west or north side is the first one of the walkway.
+        boolean isChanged = addWalkway(w.getCell(row - 1, col), station, CardinalPoint.SOUTH);
+        isChanged |= addWalkway(station, w.getCell(row, col + 1), CardinalPoint.EAST);
+        isChanged |= addWalkway(station, w.getCell(row + 1, col), CardinalPoint.SOUTH);
+        isChanged |= addWalkway(w.getCell(row, col - 1), station, CardinalPoint.EAST);
+        if (isChanged) {
+            networkVersion++;
+        }
+    }
+
+    /**
+     * Create a walkway between two cells if both are stations.
+     *
+     * @param first the west or north cell
+     * @param second the east or south cell
+     * @param direction the direction from first to second, EAST or SOUTH
+     * @return true if a new walkway was created
+     */
+    private boolean addWalkway(Cell first, Cell second, CardinalPoint direction) {
+        if (first instanceof StationCell && second instanceof StationCell) {
+            StationCell firstStation = (StationCell) first;
+            StationCell secondStation = (StationCell) second;
+            int firstId = firstStation.getId();
+            int secondId = secondStation.getId();
+            if (!containsId(getWalkwayNeighbors(firstId), secondId)) {
+                walkwayList.add(new Walkway(firstId, secondId));
+                walkwayNeighbors.put(firstId, appendId(getWalkwayNeighbors(firstId), secondId));
+                walkwayNeighbors.put(secondId, appendId(getWalkwayNeighbors(secondId), firstId));
+                firstStation.addWalkwayDirection(secondStation, direction);
+                secondStation.addWalkwayDirection(firstStation, CardinalPoint.getOpposite(direction));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove all the walkways of a station that is about to disappear.
+     *
+     * @param station
+     */
+    protected void removeStationWalkways(StationCell station) {
+        int stationId = station.getId();
+        int neighbors[] = walkwayNeighbors.remove(stationId);
+        if (neighbors == null) {
+            return;
+        }
+        for (int neighborId : neighbors) {
+            walkwayList.remove(new Walkway(stationId, neighborId));
+            walkwayList.remove(new Walkway(neighborId, stationId));
+            int remaining[] = removeId(getWalkwayNeighbors(neighborId), stationId);
+            if (remaining.length == 0) {
+                walkwayNeighbors.remove(neighborId);
+            } else {
+                walkwayNeighbors.put(neighborId, remaining);
+            }
+            StationCell neighbor = w.getStation(neighborId);
+            if (neighbor != null) {
+                neighbor.removeWalkwayDirection(station);
+            }
+        }
+        networkVersion++;
+    }
+
+    private int[] getWalkwayNeighbors(int stationId) {
+        int neighbors[] = walkwayNeighbors.get(stationId);
+        return neighbors == null ? NO_NEIGHBOR : neighbors;
+    }
+
+    private static boolean containsId(int ids[], int id) {
+        for (int value : ids) {
+            if (value == id) {
+                return true;
             }
         }
+        return false;
+    }
+
+    private static int[] appendId(int ids[], int id) {
+        int result[] = Arrays.copyOf(ids, ids.length + 1);
+        result[ids.length] = id;
+        return result;
+    }
+
+    private static int[] removeId(int ids[], int id) {
+        int result[] = new int[ids.length];
+        int size = 0;
+        for (int value : ids) {
+            if (value != id) {
+                result[size] = value;
+                size++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    protected long getNetworkVersion() {
+        return networkVersion;
     }
 
     /**
-     * Tell the passenger what trains and walkways to use in order to reach
-     * their target station
+     * Tell the passenger the next station on the way to their target station,
+     * by train or walkway. The routing table gives it directly; it is read
+     * again at each station, or when the network changes.
      *
      * @param currentStationId
      * @param p
@@ -97,46 +202,19 @@ public class WorldMap {
      */
     protected void computePath(int currentStationId, Passenger p) {
 
-//        System.out.println("Map.computePath(" + currentStationId + " for " + p.toString());
-        ArrayList<PathTree> openList = new ArrayList<>();
-        ArrayList<PathTree> closedList = new ArrayList<>();
-
-        openList.add(new PathTree(currentStationId, null));
-
-        PathTree currentNode;
-        boolean success = false;
-        // LOOP
-        do {
-            currentNode = openList.remove(0);
-            closedList.add(currentNode);
-            for (int neighborId : getNeighbors(currentNode.getStationId())) {
-                // Add only stations not already in closed or open list.
-                if (!isInList(neighborId, openList) && !isInList(neighborId, closedList)) {
-                    openList.add(new PathTree(neighborId, currentNode));
-                }
-            }
-            success = (currentNode.getStationId() == p.getTargetStationId());
-        } while (!success && !openList.isEmpty());
-        // END LOOP
-        if (success) {
-            p.clearPath();
-            while (currentNode != null) {
-                int stationId = currentNode.getStationId();
-                if (stationId != currentStationId) {
-                    p.addPathStep(stationId);
-                }
-                currentNode = currentNode.getPrev();
-            }
+        if (p.isPathUpToDate(currentStationId, networkVersion)) {
+            return;
         }
-    }
-
-    private boolean isInList(int id, ArrayList<PathTree> list) {
-        for (PathTree tree : list) {
-            if (tree.getStationId() == id) {
-                return true;
+        int targetStationId = p.getTargetStationId();
+        if (targetStationId == currentStationId) {
+            p.clearPath();
+        } else {
+            int nextStop = getNextStop(currentStationId, targetStationId);
+            if (nextStop != -1) {
+                p.setNextStop(nextStop);
             }
         }
-        return false;
+        p.setPathStamp(currentStationId, networkVersion);
     }
 
     /**
@@ -146,42 +224,126 @@ public class WorldMap {
      * @param currentStationId
      * @return
      */
-    private ArrayList<Integer> getNeighbors(int currentStationId) {
+    protected ArrayList<Integer> getNeighbors(int currentStationId) {
 
         ArrayList<Integer> neighbors = new ArrayList<>();
 
         // Get all the other stations reachable via the same line (if we find a line that contains it).
+        // They are sorted by id, so that the order of the visits of the train does not change the next stops.
         TrainLine currentLine = findCurrentLine(currentStationId);
         if (currentLine != null) {
-            for (StationCell station : currentLine.getAllStations()) {
-                int otherStationId = station.getId();
+            for (int otherStationId : currentLine.getSortedStationIds()) {
                 if (otherStationId != currentStationId) {
                     neighbors.add(otherStationId);
                 }
             }
         }
         // Get all the stations reachable via a walkway.
-        for (Walkway w : walkwayList) {
-            if (w.contains(currentStationId)) {
-                int otherStationId = w.getOtherStation(currentStationId);
-                neighbors.add(otherStationId);
-            }
+        for (int otherStationId : getWalkwayNeighbors(currentStationId)) {
+            neighbors.add(otherStationId);
         }
 
         return neighbors;
     }
 
+    /**
+     * Get the ids of all the stations that belong to a line or a walkway.
+     *
+     * @return the ids, each one only once.
+     */
+    protected ArrayList<Integer> getAllStationIds() {
+        HashSet<Integer> known = new HashSet<>();
+        ArrayList<Integer> result = new ArrayList<>();
+        for (TrainLine line : linesList.values()) {
+            for (int stationId : line.getSortedStationIds()) {
+                if (known.add(stationId)) {
+                    result.add(stationId);
+                }
+            }
+        }
+        for (Walkway walkway : walkwayList) {
+            for (int rank = 0; rank < 2; rank++) {
+                if (known.add(walkway.getStation(rank))) {
+                    result.add(walkway.getStation(rank));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the next station on the way between two stations.
+     *
+     * @param currentStationId
+     * @param targetStationId
+     * @return the id of the next station, or -1 if the target is not reachable.
+     */
+    protected int getNextStop(int currentStationId, int targetStationId) {
+        if (!routingTable.isUpToDate(networkVersion)) {
+            routingTable.rebuild(this, networkVersion);
+        }
+        return routingTable.getNextStop(currentStationId, targetStationId);
+    }
+
+    /**
+     * Find the line used from a given station. When several lines serve that
+     * station, the line of the loco with the highest id is chosen.
+     *
+     * @param currentStationId
+     * @return the line, or null if no line serves the station.
+     */
     protected TrainLine findCurrentLine(int currentStationId) {
+        if (currentStationId < 0 || currentStationId >= linesOfStation.length
+                || linesOfStation[currentStationId] == null) {
+            return null;
+        }
+        BitSet lines = linesOfStation[currentStationId];
         TrainLine result = null;
-        for (int lineNumber : linesList.keySet()) {
-            TrainLine line = linesList.get(lineNumber);
-            if (line.containsStation(currentStationId)) {
+        for (int rank = lines.nextSetBit(0); rank >= 0; rank = lines.nextSetBit(rank + 1)) {
+            TrainLine line = linesByRank.get(rank);
+            if (result == null || line.getLocoId() > result.getLocoId()) {
                 result = line;
             }
         }
         return result;
     }
 
+    /**
+     * Add a line to the map, in place of the line of the same loco if there
+     * is one.
+     *
+     * @param line
+     */
+    private void putLine(TrainLine line) {
+        TrainLine previousLine = linesList.get(line.getLocoId());
+        if (previousLine != null) {
+            // The new line takes the rank of the previous one.
+            for (int stationId : previousLine.getAllStationsIds()) {
+                linesOfStation[stationId].clear(previousLine.getRank());
+            }
+            line.setRank(previousLine.getRank());
+            linesByRank.set(line.getRank(), line);
+        } else {
+            line.setRank(linesByRank.size());
+            linesByRank.add(line);
+        }
+        linesList.put(line.getLocoId(), line);
+        for (StationCell station : line.getAllStations()) {
+            setLineOfStation(station, line);
+        }
+    }
+
+    private void setLineOfStation(StationCell station, TrainLine line) {
+        int stationId = station.getId();
+        if (stationId >= linesOfStation.length) {
+            linesOfStation = Arrays.copyOf(linesOfStation, Math.max(2 * linesOfStation.length, stationId + 1));
+        }
+        if (linesOfStation[stationId] == null) {
+            linesOfStation[stationId] = new BitSet();
+        }
+        linesOfStation[stationId].set(line.getRank());
+    }
+
     protected void save(FileWriter writer) {
         try {
             writer.write("map\n");
@@ -198,6 +360,7 @@ public class WorldMap {
     }
 
     protected void load(Scanner scanner) {
+        networkVersion++;
         String text = scanner.nextLine();
         while (scanner.hasNextLine() && !text.equals("endmap")) {
             String split[] = text.split(" |_");
@@ -208,7 +371,7 @@ public class WorldMap {
                 StationCell station = w.getStation(stationId);
                 newLine.addCell(station);
             }
-            linesList.put(locoId, newLine);
+            putLine(newLine);
             text = scanner.nextLine();
         }
     }
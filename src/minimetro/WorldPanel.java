@@ -5,6 +5,7 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
@@ -17,7 +18,6 @@ import java.beans.PropertyChangeListener;
 import java.io.FileWriter;
 import java.io.IOException;
 import static java.lang.Double.max;
-import static java.lang.Double.min;
 import static java.lang.Math.floor;
 import java.util.ArrayList;
 import java.util.Scanner;
@@ -41,6 +41,8 @@ public class WorldPanel extends JPanel implements MouseListener,
     private static String ZOOM_IN = "ZOOM_IN";
     private static String ZOOM_OUT = "ZOOM_OUT";
     private int panSize = 50;
+    // Distance in pixels under which the mouse designates a train element.
+    private static int PICKING_DISTANCE = 10;
 
     World world;
     private double zoomLevel;
@@ -66,10 +68,21 @@ public class WorldPanel extends JPanel implements MouseListener,
     private boolean mustDisplayTerrain;
 
     private Color defaultBackgroundColor;
+    // Color of the chunks whose terrain is not computed yet.
+    private Color placeholderColor;
+    private TerrainPalette terrainPalette;
 
     private AStarSolver solver;
     private Thread astarThread;
 
+    // Reused for each frame: the train elements that may be visible.
+    private ArrayList<TrainElement> visibleElements;
+    // Track layers painted in the current and the previous frames; the images of the layers that
+    // are not visible any more are released.
+    private ArrayList<TrackLayer> visibleTrackLayers;
+    private ArrayList<TrackLayer> previousTrackLayers;
+    private TrainElement hoveredElement;
+
     public WorldPanel(World w) {
         super();
         setSize(new Dimension(800, 600));
@@ -78,6 +91,10 @@ public class WorldPanel extends JPanel implements MouseListener,
         x0 = 83;
         y0 = 49;
         currentTool = GuiTool.NO_TOOL;
+        visibleElements = new ArrayList<>();
+        visibleTrackLayers = new ArrayList<>();
+        previousTrackLayers = new ArrayList<>();
+        hoveredElement = null;
         prevMouseX = 0;
         prevMouseY = 0;
         prevRow = Integer.MAX_VALUE;
@@ -96,6 +113,9 @@ public class WorldPanel extends JPanel implements MouseListener,
         loadColorRamps();
 
         defaultBackgroundColor = Color.gray;
+        placeholderColor = Color.lightGray;
+        terrainPalette = (altitude, biome) -> computeCellColor(altitude, biome).getRGB();
+        world.setTerrainPalette(terrainPalette);
 
         mustDisplayTerrain = true;
 
@@ -187,25 +207,45 @@ public class WorldPanel extends JPanel implements MouseListener,
         g.setColor(defaultBackgroundColor);
         g.fillRect(0, 0, graphicsCurrentWidth, graphicsCurrentHeight);
 
-        for (int row = getMinVisibleRow(); row <= getMaxVisibleRow(); row++) {
-            for (int col = getMinVisibleCol(); col <= getMaxVisibleCol(); col++) {
-                Cell c = world.getCell(row, col);
-                if (c.color == null) {
-                    // The color of this cell is defined once now.
-                    c.color = computeCellColor(c.altitude, c.biome);
+        // The world is painted chunk by chunk; the terrain of a chunk is one cached image,
+        // the chunks whose terrain is not ready yet are shown as placeholders.
+        world.setVisibleArea(getMinVisibleRow(), getMaxVisibleRow(), getMinVisibleCol(), getMaxVisibleCol());
+        int chunkRowMin = ChunkMatrix.getChunkRow(getMinVisibleRow());
+        int chunkRowMax = ChunkMatrix.getChunkRow(getMaxVisibleRow());
+        int chunkColMin = ChunkMatrix.getChunkCol(getMinVisibleCol());
+        int chunkColMax = ChunkMatrix.getChunkCol(getMaxVisibleCol());
+        if (mustDisplayTerrain) {
+            for (int chunkRow = chunkRowMin; chunkRow <= chunkRowMax; chunkRow++) {
+                for (int chunkCol = chunkColMin; chunkCol <= chunkColMax; chunkCol++) {
+                    Chunk<Cell> chunk = world.getChunk(chunkRow, chunkCol);
+                    if (chunk != null && chunk.terrain != null) {
+                        paintTerrainTile(g, chunk);
+                    } else {
+                        paintPlaceholder(g, chunkRow, chunkCol);
+                    }
                 }
-                Color color = c.color;
-                if (mustDisplayTerrain) {
-                    c.paintBackground(g, x0, y0, zoomLevel, color);
+            }
+        }
+        for (TrackLayer layer : previousTrackLayers) {
+            layer.isVisible = false;
+        }
+        for (int chunkRow = chunkRowMin; chunkRow <= chunkRowMax; chunkRow++) {
+            for (int chunkCol = chunkColMin; chunkCol <= chunkColMax; chunkCol++) {
+                Chunk<Cell> chunk = world.getChunk(chunkRow, chunkCol);
+                if (chunk != null && chunk.size() > 0) {
+                    paintChunk(g, chunk);
                 }
             }
         }
-        for (int row = getMinVisibleRow(); row <= getMaxVisibleRow(); row++) {
-            for (int col = getMinVisibleCol(); col <= getMaxVisibleCol(); col++) {
-                Cell c = world.getCell(row, col);
-                c.paintForeground(g, x0, y0, zoomLevel);
+        for (TrackLayer layer : previousTrackLayers) {
+            if (!layer.isVisible) {
+                layer.releaseImage();
             }
         }
+        ArrayList<TrackLayer> swap = previousTrackLayers;
+        previousTrackLayers = visibleTrackLayers;
+        visibleTrackLayers = swap;
+        visibleTrackLayers.clear();
 
         if (DISPLAY_ACTIVE_CELLS_BORDERS) {
             for (Cell c : world.activeCells) {
@@ -221,10 +261,14 @@ public class WorldPanel extends JPanel implements MouseListener,
         // Paint the train links
         paintTrainLinks(g, x0, y0, zoomLevel);
 
-        // Paint the trains
-        for (Cell c : world.getAllCells()) {
-            c.paintTrains(g, x0, y0, zoomLevel);
+        // Paint the trains that may be visible, with a margin of one cell for their sprites.
+        world.getTrainElementsInRect(getXReal(0) - Cell.cellSize, getYReal(graphicsCurrentHeight) - Cell.cellSize,
+                getXReal(graphicsCurrentWidth) + Cell.cellSize, getYReal(0) + Cell.cellSize, visibleElements);
+        for (TrainElement te : visibleElements) {
+            te.paint(g, x0, y0, zoomLevel);
         }
+        visibleElements.clear();
+        paintHoveredElement(g);
 
         // Draw origin
         g.setColor(Color.orange);
@@ -249,6 +293,19 @@ public class WorldPanel extends JPanel implements MouseListener,
         solver.paint(g, x0, y0, zoomLevel);
     }
 
+    /**
+     * Circle the train element that is under the mouse.
+     */
+    private void paintHoveredElement(Graphics g) {
+        if (hoveredElement != null && hoveredElement.isIndexed) {
+            int xApp = (int) (x0 + zoomLevel * hoveredElement.getX());
+            int yApp = (int) (graphicsCurrentHeight - (y0 + zoomLevel * hoveredElement.getY()));
+            int radius = (int) max(PICKING_DISTANCE, zoomLevel * hoveredElement.size);
+            g.setColor(Color.yellow);
+            g.drawOval(xApp - radius, yApp - radius, 2 * radius, 2 * radius);
+        }
+    }
+
     private void paintStraightTracksPossibilities(Graphics g) {
         if (world.isSettingLongDistanceTracks()) {
             int startRow = world.getLongDistanceTrackRow();
@@ -286,20 +343,74 @@ public class WorldPanel extends JPanel implements MouseListener,
         }
     }
 
+    /**
+     * Paint the tracks, stations and signs of a chunk, with the shapes cached
+     * in its track layer; the layer is built again after the chunk was
+     * modified.
+     *
+     * @param g
+     * @param chunk
+     */
+    private void paintChunk(Graphics g, Chunk<Cell> chunk) {
+        if (chunk.trackLayer == null) {
+            chunk.trackLayer = new TrackLayer(chunk.toList());
+        }
+        chunk.trackLayer.paint(g, x0, y0, zoomLevel);
+        chunk.trackLayer.isVisible = true;
+        visibleTrackLayers.add(chunk.trackLayer);
+    }
+
+    /**
+     * Get the area of the panel covered by a chunk.
+     */
+    private Rectangle getChunkBounds(int chunkRow, int chunkCol) {
+        int firstRow = chunkRow * ChunkMatrix.CHUNK_SIZE;
+        int firstCol = chunkCol * ChunkMatrix.CHUNK_SIZE;
+        final double xLeft = (firstCol - 0.5) * Cell.cellSize;
+        final double xRight = (firstCol + ChunkMatrix.CHUNK_SIZE - 0.5) * Cell.cellSize;
+        // The first row of the chunk is the highest one.
+        final double yTop = (world.getNbRows() - firstRow - 0.5) * Cell.cellSize;
+        final double yBottom = (world.getNbRows() - firstRow - ChunkMatrix.CHUNK_SIZE - 0.5) * Cell.cellSize;
+        final int xAppLeft = (int) (xLeft * zoomLevel + x0);
+        final int xAppRight = (int) (xRight * zoomLevel + x0) + 1;
+        final int yAppTop = (int) (graphicsCurrentHeight - (yTop * zoomLevel + y0));
+        final int yAppBottom = (int) (graphicsCurrentHeight - (yBottom * zoomLevel + y0)) + 1;
+        return new Rectangle(xAppLeft, yAppTop, xAppRight - xAppLeft, yAppBottom - yAppTop);
+    }
+
+    /**
+     * Paint a chunk whose terrain is being computed.
+     */
+    private void paintPlaceholder(Graphics g, int chunkRow, int chunkCol) {
+        Rectangle bounds = getChunkBounds(chunkRow, chunkCol);
+        g.setColor(placeholderColor);
+        g.fillRect(bounds.x, bounds.y, bounds.width, bounds.height);
+    }
+
+    /**
+     * Paint the nature of the terrain (grass, sea, ...) of a whole chunk, with
+     * the image of its tile that fits the zoom level.
+     */
+    private void paintTerrainTile(Graphics g, Chunk<Cell> chunk) {
+        TerrainTile tile = chunk.terrain.getTile(terrainPalette);
+        Rectangle bounds = getChunkBounds(chunk.rowIndexInMap, chunk.colIndexInMap);
+        g.drawImage(tile.getImage(zoomLevel * Cell.cellSize), bounds.x, bounds.y, bounds.width, bounds.height, null);
+    }
+
     private int getMinVisibleCol() {
-        return (int) max(0, getCol(0));
+        return (int) floor(getCol(0));
     }
 
     private int getMaxVisibleCol() {
-        return (int) min(world.getNbCols() - 1, getCol(graphicsCurrentWidth));
+        return (int) floor(getCol(graphicsCurrentWidth));
     }
 
     private int getMinVisibleRow() {
-        return (int) (max(0, getRow(0)));
+        return (int) floor(getRow(0));
     }
 
     private int getMaxVisibleRow() {
-        return (int) min(world.getNbRows() - 1, getRow(graphicsCurrentHeight));
+        return (int) floor(getRow(graphicsCurrentHeight));
     }
 
     protected void paintCellBorders(Graphics g) {
@@ -310,26 +421,21 @@ public class WorldPanel extends JPanel implements MouseListener,
         int rowMaxVisible = getMaxVisibleRow();
         int xApp, yApp;
 
-        // The vertical and horizontal lines shall not extend beyond the borders of the world.
-        int xMin = (int) (x0 - 0.5 * Cell.cellSize * zoomLevel);
-        int xMax = (int) (x0 + (world.getNbCols() - 0.5) * Cell.cellSize * zoomLevel);
-        int yMin = (int) (graphicsCurrentHeight - (-0.5 * Cell.cellSize * zoomLevel + y0));
-        int yMax = (int) (graphicsCurrentHeight - ((world.getNbRows() - 0.5) * Cell.cellSize * zoomLevel + y0));
-
         g.setColor(Color.black);
 
+        // The world has no borders, the lines cross the whole panel.
         // Vertical lines
         for (int col = colMinVisible; col <= colMaxVisible; col++) {
             double xCol = (col - 0.5) * Cell.cellSize;
             xApp = (int) (x0 + xCol * zoomLevel);
-            g.drawLine(xApp, (int) max(0, yMin), xApp, (int) max(0, yMax));
+            g.drawLine(xApp, 0, xApp, graphicsCurrentHeight);
         }
 
         // Horizontal lines
         for (int row = rowMinVisible; row <= rowMaxVisible; row++) {
             double yRow = (world.getNbRows() - row - 0.5) * Cell.cellSize;
             yApp = (int) (graphicsCurrentHeight - (y0 + yRow * zoomLevel));
-            g.drawLine((int) max(0, xMin), yApp, (int) min(xMax, gWidth), yApp);
+            g.drawLine(0, yApp, gWidth, yApp);
         }
     }
 
@@ -461,8 +567,8 @@ public class WorldPanel extends JPanel implements MouseListener,
         } else if (currentTool.equals(GuiTool.TRACK)) {
             currentCol = getCol(e.getX());
             currentRow = getRow(e.getY());
-            int currentColInt = (int) currentCol;
-            int currentRowInt = (int) currentRow;
+            int currentColInt = (int) floor(currentCol);
+            int currentRowInt = (int) floor(currentRow);
             int delta;
 
             if (ctrlIsPressed && currentDirection != null) {
@@ -541,15 +647,15 @@ public class WorldPanel extends JPanel implements MouseListener,
                 prevRow = currentRowInt;
             }
         } else if (currentTool.equals(GuiTool.TRACK_REMOVAL)) {
-            int currentColInt = (int) currentCol;
-            int currentRowInt = (int) currentRow;
+            int currentColInt = (int) floor(currentCol);
+            int currentRowInt = (int) floor(currentRow);
             currentCol = getCol(e.getX());
             currentRow = getRow(e.getY());
             world.removeTrack(currentRowInt, currentColInt);
             repaint();
         } else if (currentTool.equals(GuiTool.TRAIN_REMOVAL)) {
-            int currentColInt = (int) currentCol;
-            int currentRowInt = (int) currentRow;
+            int currentColInt = (int) floor(currentCol);
+            int currentRowInt = (int) floor(currentRow);
             currentCol = getCol(e.getX());
             currentRow = getRow(e.getY());
             world.removeTrains(currentRowInt, currentColInt);
@@ -566,6 +672,13 @@ public class WorldPanel extends JPanel implements MouseListener,
         prevMouseY = e.getY();
         currentCol = getCol(e.getX());
         currentRow = getRow(e.getY());
+
+        TrainElement newHoveredElement = world.getTrainElementAt(getXReal(e.getX()), getYReal(e.getY()),
+                PICKING_DISTANCE / zoomLevel);
+        if (newHoveredElement != hoveredElement) {
+            hoveredElement = newHoveredElement;
+            repaint();
+        }
     }
 
     @Override
@@ -590,6 +703,20 @@ public class WorldPanel extends JPanel implements MouseListener,
      * @param x the on-screen x-coorrdinate
      * @return the column that contains the given pixel
      */
+    /**
+     * Convert a horizontal position on screen into an absolute coordinate.
+     */
+    private double getXReal(int x) {
+        return (x - x0) / zoomLevel;
+    }
+
+    /**
+     * Convert a vertical position on screen into an absolute coordinate.
+     */
+    private double getYReal(int y) {
+        return (graphicsCurrentHeight - y - y0) / zoomLevel;
+    }
+
     private double getCol(int x) {
         double appCellSize = Cell.cellSize * zoomLevel;
         double result = ((double) (x + appCellSize / 2 - x0) / (Cell.cellSize * zoomLevel));
@@ -622,8 +749,8 @@ public class WorldPanel extends JPanel implements MouseListener,
      * the side of the cell.
      */
     private boolean isInCorner(double row, double col) {
-        double dRow = row - (int) row;
-        double dCol = col - (int) col;
+        double dRow = row - floor(row);
+        double dCol = col - floor(col);
 
         boolean result = (dCol < cornerMargin | dCol > 1 - cornerMargin)
                 && (dRow < cornerMargin | dRow > 1 - cornerMargin);